@@ -0,0 +1,67 @@
+import java.security.PublicKey;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Interns output addresses. Each distinct public key is assigned a small integer id the first time
+ * it is seen, and the bytes that represent it in {@link Transaction#getRawTx()} are computed once
+ * and cached. Ids are never reused, so they stay valid for the lifetime of the process.
+ *
+ * <p>
+ * The table only ever grows: every address ever paid to stays interned, with its encoding, until
+ * the process exits, so a long-running process that sees many one-off addresses should expect
+ * its memory use to grow with them.
+ */
+public class AddressTable {
+
+    private static final ConcurrentHashMap<PublicKey, Integer> ids =
+        new ConcurrentHashMap<PublicKey, Integer>();
+
+    /** Interned keys and their encodings, indexed by id; replaced by larger copies as they fill */
+    private static volatile PublicKey[] keys = new PublicKey[1024];
+    private static volatile byte[][] encodings = new byte[1024][];
+    private static int size;
+
+    /** @return the id of {@code address}, assigning it a new one if it has not been seen before */
+    public static int intern(PublicKey address) {
+        Integer id = ids.get(address);
+        if (id != null)
+            return id;
+        synchronized (AddressTable.class) {
+            id = ids.get(address);
+            if (id != null)
+                return id;
+            if (size == keys.length) {
+                encodings = Arrays.copyOf(encodings, size * 2);
+                keys = Arrays.copyOf(keys, size * 2);
+            }
+            encodings[size] = encode(address);
+            keys[size] = address;
+            // Publishing the id after filling in the arrays makes them visible to its readers.
+            ids.put(address, size);
+            return size++;
+        }
+    }
+
+    /** @return the address with id {@code id} */
+    public static PublicKey getAddress(int id) {
+        return keys[id];
+    }
+
+    /**
+     * @return the bytes representing the address with id {@code id} in raw transactions. The array is
+     *         shared and must not be modified.
+     */
+    public static byte[] getEncoded(int id) {
+        return encodings[id];
+    }
+
+    /** @return the number of interned addresses */
+    public static int size() {
+        return ids.size();
+    }
+
+    private static byte[] encode(PublicKey address) {
+        return address.getEncoded();
+    }
+}
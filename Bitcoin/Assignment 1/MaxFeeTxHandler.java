@@ -9,6 +9,7 @@ import java.util.Set;
 public class MaxFeeTxHandler {
 
     private UTXOPool utxoPool;
+    private TxValidator validator = new TxValidator();
 
     /**
      * Creates a public ledger whose current UTXOPool (collection of unspent transaction outputs) is
@@ -27,57 +28,10 @@ public class MaxFeeTxHandler {
      * (4) all of {@code tx}s output values are non-negative, and
      * (5) the sum of {@code tx}s input values is greater than or equal to the sum of its output
      *     values; and false otherwise.
+     * The checks run as the stages of a {@link TxValidator}, which counts the rejections of each.
      */
     public boolean isValidTx(Transaction tx) {
-        
-        Set<UTXO> claimedUtxo = new HashSet<UTXO>();
-        double sumInputs = 0;
-        double sumOutputs = 0;
-
-        for (int i = 0; i < tx.numInputs(); i++) {
-            Transaction.Input input = tx.getInput(i);
-
-            // Grab the output that is claimed by this input and ensure that it exists.
-            UTXO inputUtxo = new UTXO(input.prevTxHash, input.outputIndex);
-            Transaction.Output output = utxoPool.getTxOutput(inputUtxo);
-            if (output == null) {
-                return false;
-            }
-
-            // Ensure that the claimed UTXO hasn't been claimed already.
-            if (claimedUtxo.contains(inputUtxo)) {
-                return false;
-            }
-
-            // Validate that the signature of the input is valid for the output.
-            if (!Crypto.verifySignature(output.address, tx.getRawDataToSign(i), input.signature)) {
-                return false;
-            }
-
-            // Mark the UTXO as claimed.
-            claimedUtxo.add(inputUtxo);
-
-            // Add the value of the claimed output to the total sum.
-            sumInputs += output.value;
-        }
-
-        for (int i = 0; i < tx.numOutputs(); i++) {
-            // Ensure that the value of the output is non-negative.
-            double outputValue = tx.getOutput(i).value;
-            if (outputValue < 0) {
-                return false;
-            }
-
-            // Add the value of this output to the total sum.
-            sumOutputs += outputValue;
-        }
-
-        // Ensure that the total sum of outputs is no greater than the total sum of inputs.
-        if (sumOutputs > sumInputs) {
-            return false;
-        }
-
-        return true;
+        return validator.isValid(tx, utxoPool);
     }
 
     /**
@@ -226,6 +180,19 @@ public class MaxFeeTxHandler {
      * updating the current UTXO pool as appropriate.
      */
     public Transaction[] handleTxs(Transaction[] possibleTxs) {
+        long start = Metrics.startTimer();
+        Transaction[] accepted = selectTxs(possibleTxs);
+        if (Metrics.isEnabled()) {
+            Metrics.recordLatency("maxfee.handle_txs", start);
+            Metrics.add("maxfee.accepted", accepted.length);
+            Metrics.add("maxfee.rejected", possibleTxs.length - accepted.length);
+            Metrics.setGauge("utxo_pool.size", utxoPool.size());
+        }
+        return accepted;
+    }
+
+    /** @return the accepted transactions of {@link #handleTxs}, updating the UTXO pool */
+    private Transaction[] selectTxs(Transaction[] possibleTxs) {
         // Store the original UTXO pool, since we need to mutate it for validation purposes.
         UTXOPool originalUtxoPool = new UTXOPool(utxoPool);
 
@@ -247,10 +214,16 @@ public class MaxFeeTxHandler {
         List<Set<UTXO>> claimedUTXOs = new ArrayList<Set<UTXO>>();
         for (int i = 0; i < possibleTxs.length; i++) {
             Transaction tx = possibleTxs[i];
-            if (isValidTx(tx)) {
+            long start = Metrics.startTimer();
+            TxValidator.Stage failed = validator.validate(tx, utxoPool);
+            Metrics.recordLatency("tx.validate", start);
+            if (failed == null) {
                 fees[i] = getFee(tx);
                 claimedUTXOs.add(getClaimedUTXOs(tx));
             } else {
+                // Valid transactions left out of the best combination are neither accepted nor
+                // rejected by a stage, so only these count as rejections.
+                TxValidator.recordVerdict(failed);
                 fees[i] = -1;
                 claimedUTXOs.add(new HashSet<UTXO>());
             }
@@ -259,11 +232,13 @@ public class MaxFeeTxHandler {
         // Reset the UTXO pool to the original one.
         utxoPool = originalUtxoPool;
 
-        // Figure out all the possible valid combinations of transactions.
+        // Figure out all the possible valid combinations of transactions. The search keys its
+        // cache on the set of available UTXOs, so it starts from a snapshot of the pool, copied
+        // straight from the set view rather than through a list of all the UTXOs.
         List<Set<Integer>> validCombos =
             computeValidTransactionCombos(possibleTxs, claimedUTXOs,
                                           new HashSet<Integer>(),
-                                          new HashSet<UTXO>(utxoPool.getAllUTXO()),
+                                          new HashSet<UTXO>(utxoPool.asSet()),
                                           new ComboCache());
 
         // Now go through each combination and figure out which one has the highest fees.
@@ -298,9 +273,15 @@ public class MaxFeeTxHandler {
             }
 
             // Add the transaction to the list of accepted transactions.
+            TxValidator.recordVerdict(null);
             accepted.add(tx);
         }
 
         return accepted.toArray(new Transaction[0]);
     }
+
+    /** @return the validator used by {@link #isValidTx}, with its per-stage rejection counts */
+    public TxValidator getValidator() {
+        return validator;
+    }
 }
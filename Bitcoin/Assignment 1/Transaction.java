@@ -1,8 +1,6 @@
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 
 public class Transaction {
@@ -36,17 +34,40 @@ public class Transaction {
         public double value;
         /** the address or public key of the recipient */
         public PublicKey address;
+        /** the address last interned, so that it is only interned again once reassigned */
+        private volatile PublicKey internedAddress;
+        /** id of {@code internedAddress} in the {@link AddressTable} */
+        private int addressId = -1;
 
         public Output(double v, PublicKey addr) {
             value = v;
             address = addr;
         }
+
+        /** @return the id of {@code address} in the {@link AddressTable}, or -1 if it is null */
+        public int getAddressId() {
+            PublicKey addr = address;
+            if (addr == null)
+                return -1;
+            // An equal key other than the interned instance is interned once and then cached.
+            if (addr != internedAddress) {
+                int id = AddressTable.intern(addr);
+                // Publish the id before the key it belongs to, readers check the key first.
+                addressId = id;
+                internedAddress = addr;
+                return id;
+            }
+            return addressId;
+        }
     }
 
     /** hash of the transaction, its unique id */
     private byte[] hash;
     private ArrayList<Input> inputs;
     private ArrayList<Output> outputs;
+    /** raw transaction and raw outputs section, cached once the transaction is sealed */
+    private byte[] rawTx;
+    private byte[] rawOutputs;
 
     public Transaction() {
         inputs = new ArrayList<Input>();
@@ -60,20 +81,24 @@ public class Transaction {
     }
 
     public void addInput(byte[] prevTxHash, int outputIndex) {
+        checkNotSealed();
         Input in = new Input(prevTxHash, outputIndex);
         inputs.add(in);
     }
 
     public void addOutput(double value, PublicKey address) {
+        checkNotSealed();
         Output op = new Output(value, address);
         outputs.add(op);
     }
 
     public void removeInput(int index) {
+        checkNotSealed();
         inputs.remove(index);
     }
 
     public void removeInput(UTXO ut) {
+        checkNotSealed();
         for (int i = 0; i < inputs.size(); i++) {
             Input in = inputs.get(i);
             UTXO u = new UTXO(in.prevTxHash, in.outputIndex);
@@ -86,89 +111,148 @@ public class Transaction {
 
     public byte[] getRawDataToSign(int index) {
         // ith input and all outputs
-        ArrayList<Byte> sigData = new ArrayList<Byte>();
         if (index > inputs.size())
             return null;
         Input in = inputs.get(index);
-        byte[] prevTxHash = in.prevTxHash;
-        ByteBuffer b = ByteBuffer.allocate(Integer.SIZE / 8);
-        b.putInt(in.outputIndex);
-        byte[] outputIndex = b.array();
-        if (prevTxHash != null)
-            for (int i = 0; i < prevTxHash.length; i++)
-                sigData.add(prevTxHash[i]);
-        for (int i = 0; i < outputIndex.length; i++)
-            sigData.add(outputIndex[i]);
-        for (Output op : outputs) {
-            ByteBuffer bo = ByteBuffer.allocate(Double.SIZE / 8);
-            bo.putDouble(op.value);
-            byte[] value = bo.array();
-            byte[] addressBytes = op.address.getEncoded();
-            for (int i = 0; i < value.length; i++)
-                sigData.add(value[i]);
-
-            for (int i = 0; i < addressBytes.length; i++)
-                sigData.add(addressBytes[i]);
+        if (isSealed()) {
+            // Only the input prefix is serialized, the outputs section is shared by every input.
+            ByteBuffer sigData = ByteBuffer.allocate(inputSize(in, false) + rawOutputs.length);
+            writeInput(sigData, in, false);
+            sigData.put(rawOutputs);
+            return sigData.array();
         }
-        byte[] sigD = new byte[sigData.size()];
-        int i = 0;
-        for (Byte sb : sigData)
-            sigD[i++] = sb;
-        return sigD;
+        byte[][] addresses = encodeAddresses();
+        ByteBuffer sigData = ByteBuffer.allocate(inputSize(in, false) + outputsSize(addresses));
+        writeInput(sigData, in, false);
+        writeOutputs(sigData, addresses);
+        return sigData.array();
     }
 
     public void addSignature(byte[] signature, int index) {
+        checkNotSealed();
         inputs.get(index).addSignature(signature);
     }
 
     public byte[] getRawTx() {
-        ArrayList<Byte> rawTx = new ArrayList<Byte>();
-        for (Input in : inputs) {
-            byte[] prevTxHash = in.prevTxHash;
-            ByteBuffer b = ByteBuffer.allocate(Integer.SIZE / 8);
-            b.putInt(in.outputIndex);
-            byte[] outputIndex = b.array();
-            byte[] signature = in.signature;
-            if (prevTxHash != null)
-                for (int i = 0; i < prevTxHash.length; i++)
-                    rawTx.add(prevTxHash[i]);
-            for (int i = 0; i < outputIndex.length; i++)
-                rawTx.add(outputIndex[i]);
-            if (signature != null)
-                for (int i = 0; i < signature.length; i++)
-                    rawTx.add(signature[i]);
-        }
-        for (Output op : outputs) {
-            ByteBuffer b = ByteBuffer.allocate(Double.SIZE / 8);
-            b.putDouble(op.value);
-            byte[] value = b.array();
-            byte[] addressBytes = op.address.getEncoded();
-            for (int i = 0; i < value.length; i++) {
-                rawTx.add(value[i]);
-            }
-            for (int i = 0; i < addressBytes.length; i++) {
-                rawTx.add(addressBytes[i]);
-            }
+        if (isSealed())
+            return rawTx.clone();
+        byte[][] addresses = encodeAddresses();
+        ByteBuffer rawTx = ByteBuffer.allocate(rawTxSize(addresses));
+        writeRawTx(rawTx, addresses);
+        return rawTx.array();
+    }
+
+    /** @return the exact length in bytes of the array returned by {@link #getRawTx()} */
+    public int getRawTxSize() {
+        if (isSealed())
+            return rawTx.length;
+        return rawTxSize(encodeAddresses());
+    }
+
+    /**
+     * Writes the same bytes as {@link #getRawTx()} into {@code buf} starting at its current
+     * position, so that callers can serialize many transactions into one reusable buffer.
+     * 
+     * @throws java.nio.BufferOverflowException if fewer than {@link #getRawTxSize()} bytes remain
+     */
+    public void writeRawTx(ByteBuffer buf) {
+        if (isSealed())
+            buf.put(rawTx);
+        else
+            writeRawTx(buf, encodeAddresses());
+    }
+
+    /**
+     * Freezes this transaction. Its raw bytes, the outputs section shared by the signing data of
+     * every input and, if not yet computed, its hash are computed once and cached, so that
+     * {@link #getRawTx()}, {@link #getRawDataToSign(int)} and {@link #finalize()} no longer
+     * re-serialize the outputs. After sealing, the mutators of this class throw
+     * {@link IllegalStateException}; inputs and outputs must not be modified directly either.
+     */
+    public void seal() {
+        if (isSealed())
+            return;
+        byte[][] addresses = encodeAddresses();
+        ByteBuffer outputsSection = ByteBuffer.allocate(outputsSize(addresses));
+        writeOutputs(outputsSection, addresses);
+        ByteBuffer raw = ByteBuffer.allocate(rawTxSize(addresses));
+        for (Input in : inputs)
+            writeInput(raw, in, true);
+        raw.put(outputsSection.array());
+        rawOutputs = outputsSection.array();
+        rawTx = raw.array();
+        if (hash == null)
+            finalize();
+    }
+
+    /** @return true if {@link #seal()} has been called on this transaction */
+    public boolean isSealed() {
+        return rawTx != null;
+    }
 
+    private void checkNotSealed() {
+        if (isSealed())
+            throw new IllegalStateException("transaction has been sealed");
+    }
+
+    /** Looks up each output's cached address bytes once, for sizing and writing to share. */
+    private byte[][] encodeAddresses() {
+        byte[][] addresses = new byte[outputs.size()][];
+        for (int i = 0; i < addresses.length; i++)
+            addresses[i] = AddressTable.getEncoded(outputs.get(i).getAddressId());
+        return addresses;
+    }
+
+    private int rawTxSize(byte[][] addresses) {
+        int size = 0;
+        for (Input in : inputs)
+            size += inputSize(in, true);
+        return size + outputsSize(addresses);
+    }
+
+    private void writeRawTx(ByteBuffer buf, byte[][] addresses) {
+        for (Input in : inputs)
+            writeInput(buf, in, true);
+        writeOutputs(buf, addresses);
+    }
+
+    private static int inputSize(Input in, boolean withSignature) {
+        int size = Integer.SIZE / 8;
+        if (in.prevTxHash != null)
+            size += in.prevTxHash.length;
+        if (withSignature && in.signature != null)
+            size += in.signature.length;
+        return size;
+    }
+
+    private static void writeInput(ByteBuffer buf, Input in, boolean withSignature) {
+        if (in.prevTxHash != null)
+            buf.put(in.prevTxHash);
+        buf.putInt(in.outputIndex);
+        if (withSignature && in.signature != null)
+            buf.put(in.signature);
+    }
+
+    private static int outputsSize(byte[][] addresses) {
+        int size = 0;
+        for (byte[] address : addresses)
+            size += Double.SIZE / 8 + address.length;
+        return size;
+    }
+
+    private void writeOutputs(ByteBuffer buf, byte[][] addresses) {
+        for (int i = 0; i < addresses.length; i++) {
+            buf.putDouble(outputs.get(i).value);
+            buf.put(addresses[i]);
         }
-        byte[] tx = new byte[rawTx.size()];
-        int i = 0;
-        for (Byte b : rawTx)
-            tx[i++] = b;
-        return tx;
     }
 
     public void finalize() {
-        try {
-            MessageDigest md = MessageDigest.getInstance("SHA-256");
-            md.update(getRawTx());
-            hash = md.digest();
-        } catch (NoSuchAlgorithmException x) {
-            x.printStackTrace(System.err);
-        }
+        hash = HashService.sha256(isSealed() ? rawTx : getRawTx());
     }
 
     public void setHash(byte[] h) {
+        checkNotSealed();
         hash = h;
     }
 
@@ -1,11 +1,10 @@
 import java.util.ArrayList;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Set;
 
 public class TxHandler {
 
     private UTXOPool utxoPool;
+    private TxValidator validator = new TxValidator();
 
     /**
      * Creates a public ledger whose current UTXOPool (collection of unspent transaction outputs) is
@@ -24,57 +23,10 @@ public class TxHandler {
      * (4) all of {@code tx}s output values are non-negative, and
      * (5) the sum of {@code tx}s input values is greater than or equal to the sum of its output
      *     values; and false otherwise.
+     * The checks run as the stages of a {@link TxValidator}, which counts the rejections of each.
      */
     public boolean isValidTx(Transaction tx) {
-        
-        Set<UTXO> claimedUtxo = new HashSet<UTXO>();
-        double sumInputs = 0;
-        double sumOutputs = 0;
-
-        for (int i = 0; i < tx.numInputs(); i++) {
-            Transaction.Input input = tx.getInput(i);
-
-            // Grab the output that is claimed by this input and ensure that it exists.
-            UTXO inputUtxo = new UTXO(input.prevTxHash, input.outputIndex);
-            Transaction.Output output = utxoPool.getTxOutput(inputUtxo);
-            if (output == null) {
-                return false;
-            }
-
-            // Ensure that the claimed UTXO hasn't been claimed already.
-            if (claimedUtxo.contains(inputUtxo)) {
-                return false;
-            }
-
-            // Validate that the signature of the input is valid for the output.
-            if (!Crypto.verifySignature(output.address, tx.getRawDataToSign(i), input.signature)) {
-                return false;
-            }
-
-            // Mark the UTXO as claimed.
-            claimedUtxo.add(inputUtxo);
-
-            // Add the value of the claimed output to the total sum.
-            sumInputs += output.value;
-        }
-
-        for (int i = 0; i < tx.numOutputs(); i++) {
-            // Ensure that the value of the output is non-negative.
-            double outputValue = tx.getOutput(i).value;
-            if (outputValue < 0) {
-                return false;
-            }
-
-            // Add the value of this output to the total sum.
-            sumOutputs += outputValue;
-        }
-
-        // Ensure that the total sum of outputs is no greater than the total sum of inputs.
-        if (sumOutputs > sumInputs) {
-            return false;
-        }
-
-        return true;
+        return validator.isValid(tx, utxoPool);
     }
 
     /**
@@ -85,7 +37,11 @@ public class TxHandler {
     public Transaction[] handleTxs(Transaction[] possibleTxs) {
         List<Transaction> accepted = new ArrayList<Transaction>();
         for (Transaction t : possibleTxs) {
-            if (isValidTx(t)) {
+            long start = Metrics.startTimer();
+            TxValidator.Stage failed = validator.validate(t, utxoPool);
+            Metrics.recordLatency("tx.validate", start);
+            TxValidator.recordVerdict(failed);
+            if (failed == null) {
                 // Remove the UTXOs claimed by the inputs.
                 for (Transaction.Input input : t.getInputs()) {
                     utxoPool.removeUTXO(new UTXO(input.prevTxHash, input.outputIndex));
@@ -104,4 +60,9 @@ public class TxHandler {
         }
         return accepted.toArray(new Transaction[0]);
     }
+
+    /** @return the validator used by {@link #isValidTx}, with its per-stage rejection counts */
+    public TxValidator getValidator() {
+        return validator;
+    }
 }
@@ -0,0 +1,121 @@
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Checks transactions against a UTXO pool in stages ordered from the cheapest to the most
+ * expensive, so that a transaction failing any of the cheap checks is rejected before any of its
+ * signatures are verified. The number of transactions rejected by each stage is counted.
+ */
+public class TxValidator {
+
+    /** The validation stages, in the order in which they run */
+    public enum Stage {
+        /** every input names a previous output and is signed, and every output has an address */
+        STRUCTURE,
+        /** every output claimed by an input is in the pool and is claimed only once */
+        UTXO,
+        /** no output value is negative and the outputs sum to no more than the claimed outputs */
+        VALUE,
+        /** the signature of every input is valid for the output it claims */
+        SIGNATURE
+    }
+
+    /** The name of the metric counting the rejections by each stage */
+    private static final String[] REJECTION_METRICS = new String[Stage.values().length];
+
+    static {
+        for (Stage stage : Stage.values())
+            REJECTION_METRICS[stage.ordinal()] = "tx.rejected." + stage.name().toLowerCase();
+    }
+
+    private LongAdder[] rejections;
+    private LongAdder accepted = new LongAdder();
+
+    public TxValidator() {
+        rejections = new LongAdder[Stage.values().length];
+        for (int i = 0; i < rejections.length; i++)
+            rejections[i] = new LongAdder();
+    }
+
+    /** @return true if {@code tx} passes every stage against {@code utxoPool} */
+    public boolean isValid(Transaction tx, UTXOPool utxoPool) {
+        return validate(tx, utxoPool) == null;
+    }
+
+    /** @return the first stage that {@code tx} fails against {@code utxoPool}, or null if none */
+    public Stage validate(Transaction tx, UTXOPool utxoPool) {
+        Stage failed = runStages(tx, utxoPool);
+        if (failed == null)
+            accepted.increment();
+        else
+            rejections[failed.ordinal()].increment();
+        return failed;
+    }
+
+    /**
+     * Counts a transaction accepted by a handler in the metrics if {@code failed} is null, or one
+     * rejected by the stage {@code failed} otherwise. Handlers call this once for each transaction
+     * they decide on, since {@link #validate} also runs for checks that decide nothing, e.g. of
+     * replacements or of transactions the handler then leaves out.
+     */
+    static void recordVerdict(Stage failed) {
+        if (Metrics.isEnabled())
+            Metrics.increment(failed == null ? "tx.accepted" : REJECTION_METRICS[failed.ordinal()]);
+    }
+
+    /** @return the number of transactions rejected by {@code stage} */
+    public long getRejections(Stage stage) {
+        return rejections[stage.ordinal()].sum();
+    }
+
+    /** @return the number of transactions that passed every stage */
+    public long getAccepted() {
+        return accepted.sum();
+    }
+
+    private Stage runStages(Transaction tx, UTXOPool utxoPool) {
+        for (Transaction.Input input : tx.getInputs()) {
+            if (input.prevTxHash == null || input.signature == null)
+                return Stage.STRUCTURE;
+        }
+        for (Transaction.Output output : tx.getOutputs()) {
+            if (output.address == null)
+                return Stage.STRUCTURE;
+        }
+
+        // Grab the output claimed by each input, ensuring that it exists and is claimed only once.
+        Set<UTXO> claimedUtxo = new HashSet<UTXO>();
+        List<Transaction.Output> claimedOutputs = new ArrayList<Transaction.Output>();
+        for (Transaction.Input input : tx.getInputs()) {
+            UTXO inputUtxo = new UTXO(input.prevTxHash, input.outputIndex);
+            Transaction.Output output = utxoPool.getTxOutput(inputUtxo);
+            if (output == null || !claimedUtxo.add(inputUtxo))
+                return Stage.UTXO;
+            claimedOutputs.add(output);
+        }
+
+        double sumInputs = 0;
+        for (Transaction.Output output : claimedOutputs)
+            sumInputs += output.value;
+        double sumOutputs = 0;
+        for (Transaction.Output output : tx.getOutputs()) {
+            if (output.value < 0)
+                return Stage.VALUE;
+            sumOutputs += output.value;
+        }
+        if (sumOutputs > sumInputs)
+            return Stage.VALUE;
+
+        // Only now verify the signatures.
+        for (int i = 0; i < tx.numInputs(); i++) {
+            if (!Crypto.verifySignature(claimedOutputs.get(i).address, tx.getRawDataToSign(i),
+                                        tx.getInput(i).signature))
+                return Stage.SIGNATURE;
+        }
+
+        return null;
+    }
+}
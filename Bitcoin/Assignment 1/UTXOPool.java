@@ -1,8 +1,13 @@
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Set;
+import java.util.Spliterator;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
-public class UTXOPool {
+public class UTXOPool implements Iterable<UTXO> {
 
     /**
      * The current collection of UTXOs, with each one mapped to its corresponding transaction output
@@ -42,6 +47,37 @@ public class UTXOPool {
         return H.containsKey(utxo);
     }
 
+    /** @return the number of UTXOs in the pool */
+    public int size() {
+        return H.size();
+    }
+
+    /**
+     * @return a read-only view of the UTXOs in the pool, which reflects later changes to the pool.
+     *         Unlike {@link #getAllUTXO()}, this copies nothing.
+     */
+    public Set<UTXO> asSet() {
+        return Collections.unmodifiableSet(H.keySet());
+    }
+
+    /** @return an iterator over the UTXOs in the pool, which must not change during iteration */
+    public Iterator<UTXO> iterator() {
+        return asSet().iterator();
+    }
+
+    /**
+     * @return a spliterator over the UTXOs in the pool, which splits for parallel traversal. The
+     *         pool must not change during traversal.
+     */
+    public Spliterator<UTXO> spliterator() {
+        return asSet().spliterator();
+    }
+
+    /** @return a sequential stream of the UTXOs in the pool; use {@code parallel()} to split it */
+    public Stream<UTXO> stream() {
+        return StreamSupport.stream(spliterator(), false);
+    }
+
     /** Returns an {@code ArrayList} of all UTXOs in the pool */
     public ArrayList<UTXO> getAllUTXO() {
         Set<UTXO> setUTXO = H.keySet();
@@ -0,0 +1,79 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An index from each address, by its {@link AddressTable} id, to the UTXOs paying it and the sum of
+ * their values, so that the coins and balance of an address are found without scanning the pool.
+ * Outputs without an address are not indexed.
+ */
+public class AddressIndex {
+
+    private static final class Coins {
+        final Set<UTXO> utxos = new LinkedHashSet<UTXO>();
+        long balance;
+    }
+
+    private final Map<Integer, Coins> coins = new HashMap<Integer, Coins>();
+
+    /** Creates an empty index */
+    public AddressIndex() {
+    }
+
+    /** Creates a copy of {@code other} */
+    public AddressIndex(AddressIndex other) {
+        synchronized (other) {
+            for (Map.Entry<Integer, Coins> entry : other.coins.entrySet()) {
+                Coins copy = new Coins();
+                copy.utxos.addAll(entry.getValue().utxos);
+                copy.balance = entry.getValue().balance;
+                coins.put(entry.getKey(), copy);
+            }
+        }
+    }
+
+    /** Records that the UTXO {@code (txHash, index)} pays {@code output} */
+    public synchronized void add(byte[] txHash, int index, Transaction.Output output) {
+        if (output.address == null)
+            return;
+        Integer id = output.getAddressId();
+        Coins owned = coins.get(id);
+        if (owned == null) {
+            owned = new Coins();
+            coins.put(id, owned);
+        }
+        if (owned.utxos.add(new UTXO(txHash, index)))
+            owned.balance += output.getAmount();
+    }
+
+    /** Records that the UTXO {@code (txHash, index)}, which paid {@code output}, is gone */
+    public synchronized void remove(byte[] txHash, int index, Transaction.Output output) {
+        if (output.address == null)
+            return;
+        Integer id = output.getAddressId();
+        Coins owned = coins.get(id);
+        if (owned == null || !owned.utxos.remove(new UTXO(txHash, index)))
+            return;
+        if (owned.utxos.isEmpty())
+            coins.remove(id);
+        else
+            owned.balance -= output.getAmount();
+    }
+
+    /** @return a new list of the UTXOs paying the address with id {@code addressId} */
+    public synchronized ArrayList<UTXO> getUTXOs(int addressId) {
+        Coins owned = coins.get(addressId);
+        return owned != null ? new ArrayList<UTXO>(owned.utxos) : new ArrayList<UTXO>();
+    }
+
+    /**
+     * @return the sum in base units of the values of the UTXOs paying the address with id
+     *         {@code addressId}
+     */
+    public synchronized long getBalance(int addressId) {
+        Coins owned = coins.get(addressId);
+        return owned != null ? owned.balance : 0;
+    }
+}
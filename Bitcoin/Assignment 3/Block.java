@@ -1,8 +1,8 @@
 
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.nio.ByteBuffer;
 import java.security.PublicKey;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 public class Block {
 
@@ -12,12 +12,32 @@ public class Block {
     private byte[] prevBlockHash;
     private Transaction coinbase;
     private ArrayList<Transaction> txs;
+    /** Merkle tree whose leaves are the hashes of the coinbase followed by {@code txs} */
+    private MerkleTree merkleTree;
+    /**
+     * Whether {@code merkleTree} may no longer match the transactions, because the list of
+     * transactions has been handed out or a transaction in it has not been sealed
+     */
+    private boolean merkleTreeStale;
 
     /** {@code address} is the address to which the coinbase transaction would go */
     public Block(byte[] prevHash, PublicKey address) {
         prevBlockHash = prevHash;
         coinbase = new Transaction(COINBASE, address);
         txs = new ArrayList<Transaction>();
+        merkleTree = new MerkleTree();
+        merkleTree.addLeaf(leafHash(coinbase));
+        merkleTreeStale = !coinbase.isSealed();
+    }
+
+    /** create a block whose coinbase is {@code coinbase}, used by {@link WireFormat} */
+    Block(byte[] prevHash, Transaction coinbase) {
+        prevBlockHash = prevHash;
+        this.coinbase = coinbase;
+        txs = new ArrayList<Transaction>();
+        merkleTree = new MerkleTree();
+        merkleTree.addLeaf(leafHash(coinbase));
+        merkleTreeStale = !coinbase.isSealed();
     }
 
     public Transaction getCoinbase() {
@@ -32,7 +52,12 @@ public class Block {
         return prevBlockHash;
     }
 
+    /**
+     * @return the transactions of the block. Changes made to the list before the Merkle root is
+     *         next computed are taken into account; get the list again to change it after that.
+     */
     public ArrayList<Transaction> getTransactions() {
+        merkleTreeStale = true;
         return txs;
     }
 
@@ -40,34 +65,82 @@ public class Block {
         return txs.get(index);
     }
 
+    /** Adds {@code tx} to the block, updating only its path in the Merkle tree */
     public void addTransaction(Transaction tx) {
         txs.add(tx);
+        if (merkleTree.size() == txs.size())
+            merkleTree.addLeaf(leafHash(tx));
+        if (!tx.isSealed())
+            merkleTreeStale = true;
+    }
+
+    /** @return the root of the Merkle tree over the hashes of the coinbase and the transactions */
+    public byte[] getMerkleRoot() {
+        syncMerkleTree();
+        return merkleTree.getRoot();
+    }
+
+    /**
+     * @return the fixed-size block header whose hash is the block hash: the previous block hash
+     *         (all zeros for the genesis block) followed by the Merkle root
+     */
+    public byte[] getRawHeader() {
+        byte[] prev = prevBlockHash != null ? prevBlockHash : new byte[MerkleTree.HASH_SIZE];
+        ByteBuffer header = ByteBuffer.allocate(prev.length + MerkleTree.HASH_SIZE);
+        header.put(prev);
+        header.put(getMerkleRoot());
+        return header.array();
     }
 
+    /** @return the previous block hash followed by the raw bytes of every transaction */
     public byte[] getRawBlock() {
-        ArrayList<Byte> rawBlock = new ArrayList<Byte>();
+        int size = prevBlockHash != null ? prevBlockHash.length : 0;
+        for (Transaction tx : txs)
+            size += tx.getRawTxSize();
+        ByteBuffer rawBlock = ByteBuffer.allocate(size);
         if (prevBlockHash != null)
-            for (int i = 0; i < prevBlockHash.length; i++)
-                rawBlock.add(prevBlockHash[i]);
-        for (int i = 0; i < txs.size(); i++) {
-            byte[] rawTx = txs.get(i).getRawTx();
-            for (int j = 0; j < rawTx.length; j++) {
-                rawBlock.add(rawTx[j]);
-            }
-        }
-        byte[] raw = new byte[rawBlock.size()];
-        for (int i = 0; i < raw.length; i++)
-            raw[i] = rawBlock.get(i);
-        return raw;
+            rawBlock.put(prevBlockHash);
+        for (Transaction tx : txs)
+            tx.writeRawTx(rawBlock);
+        return rawBlock.array();
     }
 
     public void finalize() {
-        try {
-            MessageDigest md = MessageDigest.getInstance("SHA-256");
-            md.update(getRawBlock());
-            hash = md.digest();
-        } catch (NoSuchAlgorithmException x) {
-            x.printStackTrace(System.err);
+        byte[] prev = prevBlockHash != null ? prevBlockHash : new byte[MerkleTree.HASH_SIZE];
+        hash = HashService.sha256(prev, getMerkleRoot());
+    }
+
+    /**
+     * Rebuilds the Merkle tree if it may be stale and no longer matches the transactions, which
+     * happens when the list returned by {@link #getTransactions()} is modified directly or a
+     * transaction is finalized after being added. Sealed transactions cannot change, so once the
+     * coinbase and the transactions are all sealed, the leaves are only compared again after the
+     * list has been handed out.
+     */
+    private void syncMerkleTree() {
+        if (!merkleTreeStale)
+            return;
+        boolean inSync = merkleTree.size() == txs.size() + 1
+                && Arrays.equals(merkleTree.getLeaf(0), leafHash(coinbase));
+        for (int i = 0; inSync && i < txs.size(); i++)
+            inSync = Arrays.equals(merkleTree.getLeaf(i + 1), leafHash(txs.get(i)));
+        if (!inSync) {
+            merkleTree = new MerkleTree();
+            merkleTree.addLeaf(leafHash(coinbase));
+            for (Transaction tx : txs)
+                merkleTree.addLeaf(leafHash(tx));
         }
+
+        boolean sealed = coinbase.isSealed();
+        for (int i = 0; sealed && i < txs.size(); i++)
+            sealed = txs.get(i).isSealed();
+        merkleTreeStale = !sealed;
+    }
+
+    /** @return the hash of {@code tx}, computed from its raw bytes if it has not been finalized */
+    private static byte[] leafHash(Transaction tx) {
+        if (tx.getHash() != null)
+            return tx.getHash();
+        return HashService.sha256(tx.getRawTx());
     }
 }
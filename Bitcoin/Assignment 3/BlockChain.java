@@ -1,5 +1,8 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -21,19 +24,79 @@ public class BlockChain {
     // The global transaction pool for this block chain.
     private TransactionPool transactionPool = new TransactionPool();
 
+    // Append-only store holding every block ever added, or null to keep only the recent blocks.
+    private BlockStore blockStore;
+
     // The current maximum block height.
     private int maxHeight = 0;
     private BlockInfo maxHeightBlockInfo;
 
+    // Why a block was rejected, each counted in the metrics under its own name.
+    private enum Rejection {
+        NO_PARENT, UNKNOWN_PARENT, TOO_OLD, STALE_HASH, INVALID_TRANSACTIONS;
+
+        final String metric = "block.rejected." + name().toLowerCase();
+    }
+
     private class BlockInfo {
         public Block block;
         public int height;
+        // The parent of this block, or null once the parent has been dropped.
+        public BlockInfo parent;
+        // The UTXOs this block created and spent.
+        public UndoJournal journal;
+        // The UTXO pool after this block, kept only for the block at the maximum height and for
+        // blocks whose parent has been dropped and that are not its ancestors; the pool of any
+        // other block is rebuilt from these.
         public UTXOPool utxoPool;
 
-        public BlockInfo(Block block, int height, UTXOPool utxoPool) {
+        public BlockInfo(Block block, int height, BlockInfo parent, UndoJournal journal) {
             this.block = block;
             this.height = height;
-            this.utxoPool = utxoPool;
+            this.parent = parent;
+            this.journal = journal;
+        }
+    }
+
+    // The changes a block made to the UTXO pool of its parent, in the order it made them, from
+    // which either pool can be rebuilt from the other.
+    private static class UndoJournal {
+        private ArrayList<UTXO> utxos = new ArrayList<>();
+        private ArrayList<Transaction.Output> outputs = new ArrayList<>();
+        // Which of the changes spent a UTXO rather than created one.
+        private BitSet spent = new BitSet();
+
+        public void recordCreated(UTXO utxo, Transaction.Output output) {
+            utxos.add(utxo);
+            outputs.add(output);
+        }
+
+        public void recordSpent(UTXO utxo, Transaction.Output output) {
+            spent.set(utxos.size());
+            utxos.add(utxo);
+            outputs.add(output);
+        }
+
+        // Turn the pool of the parent into the pool of the block.
+        public void redo(UTXOPool utxoPool) {
+            for (int i = 0; i < utxos.size(); i++) {
+                if (spent.get(i)) {
+                    utxoPool.removeUTXO(utxos.get(i));
+                } else {
+                    utxoPool.addUTXO(utxos.get(i), outputs.get(i));
+                }
+            }
+        }
+
+        // Turn the pool of the block back into the pool of its parent.
+        public void undo(UTXOPool utxoPool) {
+            for (int i = utxos.size() - 1; i >= 0; i--) {
+                if (spent.get(i)) {
+                    utxoPool.addUTXO(utxos.get(i), outputs.get(i));
+                } else {
+                    utxoPool.removeUTXO(utxos.get(i));
+                }
+            }
         }
     }
 
@@ -42,56 +105,193 @@ public class BlockChain {
      * block.
      */
     public BlockChain(Block genesisBlock) {
-        UTXOPool utxoPool = new UTXOPool();
+        this(genesisBlock, null);
+    }
+
+    /**
+     * create a block chain with just a genesis block, which additionally appends every block it
+     * accepts to {@code blockStore}, so that blocks older than {@code CUT_OFF_AGE} can still be
+     * retrieved with {@link #getBlock(byte[])} after they are dropped from memory.
+     */
+    public BlockChain(Block genesisBlock, BlockStore blockStore) {
+        this(genesisBlock, blockStore, new PersistentUTXOStore());
+    }
+
+    /**
+     * create a block chain with just a genesis block like {@link #BlockChain(Block, BlockStore)},
+     * which keeps the UTXO pool at the maximum height in {@code utxoStore}, e.g. a
+     * {@link MappedUTXOStore} for UTXO sets larger than the heap. {@code utxoStore} must be empty.
+     * The pools of other blocks are copies of it, but blocks built on the maximum height block
+     * update its pool in place.
+     */
+    public BlockChain(Block genesisBlock, BlockStore blockStore, UTXOStore utxoStore) {
+        this.blockStore = blockStore;
+        UTXOPool utxoPool = new UTXOPool(utxoStore);
+        UndoJournal journal = new UndoJournal();
         
         for (Transaction tx : genesisBlock.getTransactions()) {
             // Add new UTXOs for the produced outputs.
-            addTransactionToUTXOPool(utxoPool, tx);
+            addTransactionToUTXOPool(utxoPool, tx, journal);
         }
          // Now do this for the coinbase.
-        addTransactionToUTXOPool(utxoPool, genesisBlock.getCoinbase());
+        addTransactionToUTXOPool(utxoPool, genesisBlock.getCoinbase(), journal);
 
-        storeBlock(genesisBlock, 1, utxoPool);
+        appendToBlockStore(genesisBlock);
+        storeBlock(genesisBlock, 1, null, journal, utxoPool);
     }
 
-    private void addTransactionToUTXOPool(UTXOPool utxoPool, Transaction tx) {
+    // Append block to the block store, if there is one. This comes before the block is added to
+    // the in-memory structures, so that a block the store fails to take is not half added.
+    private void appendToBlockStore(Block block) {
+        if (blockStore != null) {
+            try {
+                blockStore.append(block);
+            } catch (IOException x) {
+                throw new UncheckedIOException(x);
+            }
+        }
+    }
+
+    private void addTransactionToUTXOPool(UTXOPool utxoPool, Transaction tx,
+                                          UndoJournal journal) {
         byte[] hash = tx.getHash();
         for (int i = 0; i < tx.numOutputs(); i++) {
-            Transaction.Output output = tx.getOutput(i);
-            UTXO utxo = new UTXO(hash, i);
+            // A fresh output rather than tx.getOutput(i), which the caller may still change if tx
+            // is not sealed yet.
+            Transaction.Output output = tx.new Output(tx.getValue(i), tx.getAddressId(i));
             // Disallow transactions from overwriting contents of the UTXO pool.
-            if (!utxoPool.contains(utxo)) {
-                utxoPool.addUTXO(utxo, output);    
+            if (!utxoPool.contains(hash, i)) {
+                utxoPool.addUTXO(hash, i, output);
+                journal.recordCreated(new UTXO(hash, i), output);
+            }
+        }
+    }
+
+    // Rebuild the UTXO pool after the block described by blockInfo: starting from a copy of the
+    // pool at the maximum height, undo blocks back to the common ancestor and redo blocks from
+    // there, or start from the nearest kept pool on the way back from blockInfo if that comes
+    // first.
+    private UTXOPool rebuildUTXOPool(BlockInfo blockInfo) {
+        UTXOPool utxoPool = new UTXOPool(maxHeightBlockInfo.utxoPool);
+        ArrayList<BlockInfo> toRedo = new ArrayList<>();
+        BlockInfo from = maxHeightBlockInfo;
+        BlockInfo to = blockInfo;
+        while (from != to) {
+            if (to.utxoPool != null) {
+                utxoPool = new UTXOPool(to.utxoPool);
+                break;
             }
+            if (from != null && from.height >= to.height) {
+                from.journal.undo(utxoPool);
+                from = from.parent;
+            } else {
+                toRedo.add(to);
+                to = to.parent;
+                if (to == null) {
+                    // Unreachable while every root other than that of the maximum height block
+                    // keeps its pool.
+                    throw new IllegalStateException("no UTXO pool to rebuild from");
+                }
+            }
+        }
+        for (int i = toRedo.size() - 1; i >= 0; i--) {
+            toRedo.get(i).journal.redo(utxoPool);
+        }
+        return utxoPool;
+    }
+
+    // The oldest block still linked to blockInfo through parents.
+    private static BlockInfo root(BlockInfo blockInfo) {
+        while (blockInfo.parent != null) {
+            blockInfo = blockInfo.parent;
         }
+        return blockInfo;
     }
 
-    private void storeBlock(Block block, int height, UTXOPool utxoPool) {
-        BlockInfo blockInfo = new BlockInfo(block, height, utxoPool);
+    private void storeBlock(Block block, int height, BlockInfo parent, UndoJournal journal,
+                            UTXOPool utxoPool) {
         ByteArrayWrapper hash = new ByteArrayWrapper(block.getHash());
+        // Adding a block again changes nothing, and its children must keep pointing at the
+        // original.
+        if (blocks.containsKey(hash)) {
+            return;
+        }
+        BlockInfo blockInfo = new BlockInfo(block, height, parent, journal);
         blocks.put(hash, blockInfo);
 
-        List<ByteArrayWrapper> blocksAtHeight = heightsToBlocks.get(height);
+        ArrayList<ByteArrayWrapper> blocksAtHeight = heightsToBlocks.get(height);
         if (blocksAtHeight == null) {
             blocksAtHeight = new ArrayList<>();
+            heightsToBlocks.put(height, blocksAtHeight);
         }
         blocksAtHeight.add(hash);
 
         if (height > maxHeight) {
             maxHeight = height;
+            BlockInfo oldMaxHeightBlockInfo = maxHeightBlockInfo;
+            if (oldMaxHeightBlockInfo != null) {
+                // Pools are rebuilt through the common ancestor with the maximum height block, so
+                // if that block moves to a different tree, the root of the old tree needs a pool
+                // of its own, and the root of the new one no longer does.
+                BlockInfo oldRoot = root(oldMaxHeightBlockInfo);
+                BlockInfo newRoot = root(blockInfo);
+                if (oldRoot != newRoot) {
+                    if (oldRoot.utxoPool == null) {
+                        oldRoot.utxoPool = rebuildUTXOPool(oldRoot);
+                    }
+                    newRoot.utxoPool = null;
+                }
+                if (oldMaxHeightBlockInfo != oldRoot || oldRoot == newRoot) {
+                    oldMaxHeightBlockInfo.utxoPool = null;
+                }
+            }
             maxHeightBlockInfo = blockInfo;
-            for (int i = 0; i < maxHeight - CUT_OFF_AGE; i++) {
-                List<ByteArrayWrapper> blockHashes = heightsToBlocks.get(i);
-                if (blockHashes != null) {
-                    heightsToBlocks.remove(i);
-                    for (ByteArrayWrapper h : blockHashes) {
-                        blocks.remove(h);
+            blockInfo.utxoPool = utxoPool;
+            // The maximum height only ever grows by one, so only a single height falls out of the
+            // window of blocks that new blocks may still be built on.
+            int droppedHeight = maxHeight - CUT_OFF_AGE - 1;
+            List<ByteArrayWrapper> blockHashes = heightsToBlocks.remove(droppedHeight);
+            if (blockHashes != null) {
+                // The children of the dropped blocks become roots. All of them except the
+                // ancestor of the maximum height block need their own pools, which are rebuilt
+                // before their parents are dropped.
+                List<ByteArrayWrapper> childHashes = heightsToBlocks.get(droppedHeight + 1);
+                if (childHashes != null) {
+                    BlockInfo ancestor = maxHeightBlockInfo;
+                    while (ancestor.height > droppedHeight + 1) {
+                        ancestor = ancestor.parent;
+                    }
+                    for (ByteArrayWrapper h : childHashes) {
+                        BlockInfo child = blocks.get(h);
+                        if (child != ancestor && child.utxoPool == null) {
+                            child.utxoPool = rebuildUTXOPool(child);
+                        }
+                    }
+                    for (ByteArrayWrapper h : childHashes) {
+                        blocks.get(h).parent = null;
                     }
                 }
+                for (ByteArrayWrapper h : blockHashes) {
+                    blocks.remove(h);
+                }
             }
         }
     }
 
+    /**
+     * Get the block with hash {@code hash}: recent blocks are kept in memory, older ones are read
+     * from the block store, if there is one.
+     * 
+     * @return the block, or null if it is unknown or has been dropped
+     */
+    public Block getBlock(byte[] hash) {
+        BlockInfo blockInfo = blocks.get(new ByteArrayWrapper(hash));
+        if (blockInfo != null) {
+            return blockInfo.block;
+        }
+        return blockStore != null ? blockStore.get(hash) : null;
+    }
+
     /** Get the maximum height block */
     public Block getMaxHeightBlock() {
         return maxHeightBlockInfo.block;
@@ -102,6 +302,13 @@ public class BlockChain {
         return new UTXOPool(maxHeightBlockInfo.utxoPool);
     }
 
+    // Get a UTXOPool for mining a new block on top of max height block without copying the UTXO
+    // set, which for a MappedUTXOStore means copying a file. It changes with the chain, so it
+    // must not be used once another block has been added.
+    UTXOPool getMaxHeightUTXOPoolView() {
+        return maxHeightBlockInfo.utxoPool.overlay();
+    }
+
     /** Get the transaction pool to mine a new block */
     public TransactionPool getTransactionPool() {
         return new TransactionPool(transactionPool);
@@ -120,32 +327,117 @@ public class BlockChain {
      * @return true if block is successfully added
      */
     public boolean addBlock(Block block) {
+        long start = Metrics.startTimer();
+        Rejection rejection = tryAddBlock(block);
+        if (Metrics.isEnabled()) {
+            Metrics.recordLatency("block.add", start);
+            if (rejection == null) {
+                Metrics.increment("block.accepted");
+                Metrics.setGauge("chain.blocks_retained", blocks.size());
+                Metrics.setGauge("utxo_pool.size", maxHeightBlockInfo.utxoPool.size());
+                Metrics.setGauge("mempool.size", transactionPool.size());
+            } else {
+                Metrics.increment(rejection.metric);
+            }
+        }
+        return rejection == null;
+    }
+
+    // Add block to the block chain if it is valid.
+    //
+    // Return null if it was added, or why it was rejected.
+    private Rejection tryAddBlock(Block block) {
         byte[] prevBlockHash = block.getPrevBlockHash();
         // Every block added via this function must have a parent.
         if (prevBlockHash == null) {
-            return false;
+            return Rejection.NO_PARENT;
         }
 
         BlockInfo prevBlockInfo = blocks.get(new ByteArrayWrapper(prevBlockHash));
         // If we don't have the parent in our map, either the parent is too old (height too low),
         // or this is an invalid block. In either case, we reject it.
         if (prevBlockInfo == null) {
-            return false;
+            return Rejection.UNKNOWN_PARENT;
         }
         int blockHeight = prevBlockInfo.height + 1;
 
         // If the block is too low, reject it.
         if (blockHeight <= maxHeight - CUT_OFF_AGE) {
+            return Rejection.TOO_OLD;
+        }
+
+        // A transaction whose hash does not match its contents could neither be sealed nor be read
+        // back from the block store, which recomputes the hashes, so reject the block up front.
+        if (!hashesMatch(block)) {
+            return Rejection.STALE_HASH;
+        }
+
+        // Attempt to process the transactions. A block built on the maximum height block becomes
+        // the new maximum height block, so it updates that pool in place, which is undone if the
+        // block turns out to be invalid, or applying or persisting it throws.
+        boolean inPlace = prevBlockInfo == maxHeightBlockInfo;
+        UTXOPool utxoPool = inPlace ? prevBlockInfo.utxoPool : rebuildUTXOPool(prevBlockInfo);
+        UndoJournal journal = new UndoJournal();
+        boolean applied = false;
+        boolean appended = false;
+        try {
+            applied = applyBlock(block, utxoPool, journal);
+            if (applied) {
+                appendToBlockStore(block);
+                appended = true;
+            }
+        } finally {
+            if (!appended && inPlace) {
+                journal.undo(utxoPool);
+            }
+        }
+        if (!applied) {
+            return Rejection.INVALID_TRANSACTIONS;
+        }
+
+        // Seal the transactions of the accepted block, so that their hashes and raw bytes are
+        // computed only once from now on. Those of a rejected block stay the caller's to change.
+        for (Transaction tx : block.getTransactions()) {
+            tx.seal();
+        }
+
+        // Update the transaction pool to remove the transactions in this block.
+        for (Transaction tx : block.getTransactions()) {
+            transactionPool.removeTransaction(tx.getHash());
+        }
+
+        // Store the block.
+        storeBlock(block, blockHeight, prevBlockInfo, journal, utxoPool);
+
+        return null;
+    }
+
+    // Return true if the hash of every transaction of block, its coinbase included, is the one
+    // computed from its contents. Sealed transactions checked theirs when they were sealed.
+    private static boolean hashesMatch(Block block) {
+        if (!hashMatches(block.getCoinbase())) {
             return false;
         }
+        for (Transaction tx : block.getTransactions()) {
+            if (!hashMatches(tx)) {
+                return false;
+            }
+        }
+        return true;
+    }
 
-        // Attempt to process the transactions.
-        //
+    private static boolean hashMatches(Transaction tx) {
+        return tx.isSealed() || Arrays.equals(tx.getHash(), HashService.sha256(tx.getRawTx()));
+    }
+
+    // Apply the transactions of block to utxoPool, recording the changes in journal.
+    //
+    // Return false if the block is invalid, in which case utxoPool is left partly updated.
+    private boolean applyBlock(Block block, UTXOPool utxoPool, UndoJournal journal) {
         // First, add all the new outputs being added in this block's list of transactions to the
         // UTXO pool.
-        UTXOPool utxoPool = new UTXOPool(prevBlockInfo.utxoPool);
         for (Transaction tx : block.getTransactions()) {
-            addTransactionToUTXOPool(utxoPool, tx);
+            addTransactionToUTXOPool(utxoPool, tx, journal);
         }
 
         // Now go through all the inputs in the transactions and remove the associated UTXOs.
@@ -156,34 +448,36 @@ public class BlockChain {
             if (tx.numInputs() == 0) {
                 return false;
             }
-            for (Transaction.Input input : tx.getInputs()) {
-                UTXO inputUtxo = new UTXO(input.prevTxHash, input.outputIndex);
-                if (!utxoPool.contains(inputUtxo)) {
+            for (int i = 0; i < tx.numInputs(); i++) {
+                byte[] prevTxHash = tx.getPrevTxHash(i);
+                int outputIndex = tx.getOutputIndex(i);
+                if (prevTxHash == null) {
                     return false;
                 }
-
                 // Remove the UTXO, it has been consumed.
-                utxoPool.removeUTXO(inputUtxo);
+                Transaction.Output spent = utxoPool.removeUTXO(prevTxHash, outputIndex);
+                if (spent == null) {
+                    return false;
+                }
+                journal.recordSpent(new UTXO(prevTxHash, outputIndex), spent);
             }
         }
 
         // Add the coinbase transaction to the pool, since it should be spendable by children of
         // this block.
-        addTransactionToUTXOPool(utxoPool, block.getCoinbase());
-
-        // Update the transaction pool to remove the transactions in this block.
-        for (Transaction tx : block.getTransactions()) {
-            transactionPool.removeTransaction(tx.getHash());
-        }
-
-        // Store the block.
-        storeBlock(block, blockHeight, utxoPool);
-
+        addTransactionToUTXOPool(utxoPool, block.getCoinbase(), journal);
         return true;
     }
 
-    /** Add a transaction to the transaction pool */
+    /**
+     * Add a transaction to the transaction pool, subject to its replacement policy, which looks up
+     * claimed outputs in the pool of the maximum height block
+     */
     public void addTransaction(Transaction tx) {
-        transactionPool.addTransaction(tx);
+        if (transactionPool.addTransaction(tx, maxHeightBlockInfo.utxoPool)) {
+            // Sealed only once accepted, as a rejected transaction stays the caller's to change.
+            tx.seal();
+        }
+        Metrics.setGauge("mempool.size", transactionPool.size());
     }
 }
\ No newline at end of file
@@ -0,0 +1,320 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Checks that a {@link BlockChain} keeps the UTXO pool of its maximum height block right as blocks
+ * are added on forks, rejected or fail while being applied. Throws {@link IllegalStateException}
+ * on the first failure.
+ *
+ * <p>
+ * Usage: {@code java BlockChainTest}
+ */
+public class BlockChainTest {
+
+    private static KeyPair owner;
+    private static PublicKey miner;
+
+    public static void main(String[] args) throws GeneralSecurityException, IOException {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(1024);
+        owner = generator.generateKeyPair();
+        miner = generator.generateKeyPair().getPublic();
+
+        testForks(new PersistentUTXOStore());
+        testForks(new MappedUTXOStore(Files.createTempDirectory("utxo")));
+        testFailedBlockIsUndone();
+        testFailedAppendIsUndone();
+        testOnlyAcceptedBlocksAreSealed();
+        testStaleHashesAreRejected();
+        testCreateBlock(new PersistentUTXOStore());
+        testCreateBlock(new MappedUTXOStore(Files.createTempDirectory("utxo")));
+        System.out.println("BlockChainTest passed");
+    }
+
+    /**
+     * Adds random blocks near the top of the chain, some spending missing outputs, and checks the
+     * pool of the maximum height block against the UTXOs expected after it, so that switching
+     * forks exercises undoing and redoing blocks.
+     */
+    private static void testForks(UTXOStore store) {
+        PublicKey address = owner.getPublic();
+        Random random = new Random(7);
+        Block genesis = new Block(null, address);
+        genesis.finalize();
+        BlockChain chain = new BlockChain(genesis, null, store);
+
+        Map<ByteArrayWrapper, Set<UTXO>> utxosAfter = new HashMap<ByteArrayWrapper, Set<UTXO>>();
+        Map<ByteArrayWrapper, Integer> heights = new HashMap<ByteArrayWrapper, Integer>();
+        List<byte[]> added = new ArrayList<byte[]>();
+        Set<UTXO> genesisUtxos = new HashSet<UTXO>();
+        genesisUtxos.add(new UTXO(genesis.getCoinbase().getHash(), 0));
+        utxosAfter.put(new ByteArrayWrapper(genesis.getHash()), genesisUtxos);
+        heights.put(new ByteArrayWrapper(genesis.getHash()), 1);
+        added.add(genesis.getHash());
+        int maxHeight = 1;
+        byte[] tip = genesis.getHash();
+
+        for (int step = 0; step < 600; step++) {
+            int back = random.nextInt(10) < 7 ? random.nextInt(3) : random.nextInt(20);
+            byte[] parent = added.get(Math.max(0, added.size() - 1 - back));
+            ByteArrayWrapper parentHash = new ByteArrayWrapper(parent);
+            Block block = new Block(parent, address);
+            List<UTXO> spendable = new ArrayList<UTXO>(utxosAfter.get(parentHash));
+            Collections.sort(spendable);
+            Set<UTXO> utxos = new HashSet<UTXO>(utxosAfter.get(parentHash));
+            boolean valid = true;
+            for (int t = random.nextInt(4); t > 0; t--) {
+                UTXO spent;
+                if (spendable.isEmpty() || random.nextInt(20) == 0) {
+                    byte[] missing = new byte[32];
+                    random.nextBytes(missing);
+                    spent = new UTXO(missing, 0);
+                } else {
+                    spent = spendable.remove(random.nextInt(spendable.size()));
+                }
+                Transaction tx = new Transaction();
+                tx.addInput(spent.getTxHash(), spent.getIndex());
+                tx.addSignature(new byte[] { (byte) step, (byte) t }, 0);
+                tx.addOutput(random.nextInt(10), address);
+                tx.finalize();
+                block.addTransaction(tx);
+                valid &= utxos.remove(spent);
+                utxos.add(new UTXO(tx.getHash(), 0));
+            }
+            block.finalize();
+            utxos.add(new UTXO(block.getCoinbase().getHash(), 0));
+
+            int height = heights.get(parentHash) + 1;
+            boolean expected = valid && height > maxHeight - BlockChain.CUT_OFF_AGE;
+            check(chain.addBlock(block) == expected, "wrong verdict at step " + step);
+            if (expected) {
+                ByteArrayWrapper hash = new ByteArrayWrapper(block.getHash());
+                utxosAfter.put(hash, utxos);
+                heights.put(hash, height);
+                added.add(block.getHash());
+                if (height > maxHeight) {
+                    maxHeight = height;
+                    tip = block.getHash();
+                }
+            }
+            check(new HashSet<UTXO>(chain.getMaxHeightUTXOPool().getAllUTXO())
+                    .equals(utxosAfter.get(new ByteArrayWrapper(tip))), "pool wrong at " + step);
+        }
+    }
+
+    /** A store that throws on the next additions once armed, as a full disk would */
+    private static class FailingStore extends UTXOTable {
+        int putsBeforeFailure = -1;
+
+        @Override
+        public Transaction.Output put(byte[] txHash, int index, Transaction.Output output) {
+            if (putsBeforeFailure == 0)
+                throw new IllegalStateException("store failed");
+            if (putsBeforeFailure > 0)
+                putsBeforeFailure--;
+            return super.put(txHash, index, output);
+        }
+    }
+
+    private static void testFailedBlockIsUndone() {
+        PublicKey address = owner.getPublic();
+        Block genesis = new Block(null, address);
+        genesis.finalize();
+        FailingStore store = new FailingStore();
+        BlockChain chain = new BlockChain(genesis, null, store);
+        Set<UTXO> before = new HashSet<UTXO>(chain.getMaxHeightUTXOPool().getAllUTXO());
+
+        Block block = new Block(genesis.getHash(), address);
+        Transaction tx = new Transaction();
+        tx.addInput(genesis.getCoinbase().getHash(), 0);
+        tx.addOutput(1, address);
+        tx.addOutput(2, address);
+        tx.finalize();
+        block.addTransaction(tx);
+        block.finalize();
+
+        store.putsBeforeFailure = 1;
+        try {
+            chain.addBlock(block);
+            throw new AssertionError("store failure was swallowed");
+        } catch (IllegalStateException expected) {
+        }
+        store.putsBeforeFailure = -1;
+        check(new HashSet<UTXO>(chain.getMaxHeightUTXOPool().getAllUTXO()).equals(before),
+              "failed block left the pool changed");
+        check(chain.addBlock(block), "block rejected after the store recovered");
+    }
+
+    /** A block store that fails to append once armed, as a full disk would */
+    private static class FailingBlockStore extends BlockStore {
+        boolean failing;
+
+        FailingBlockStore() throws IOException {
+            super(Files.createTempDirectory("blocks"), 1 << 16);
+        }
+
+        @Override
+        public synchronized void append(Block block) throws IOException {
+            if (failing)
+                throw new IOException("disk full");
+            super.append(block);
+        }
+    }
+
+    private static void testFailedAppendIsUndone() throws IOException {
+        PublicKey address = owner.getPublic();
+        Block genesis = new Block(null, address);
+        genesis.finalize();
+        FailingBlockStore blockStore = new FailingBlockStore();
+        BlockChain chain = new BlockChain(genesis, blockStore);
+        Set<UTXO> before = new HashSet<UTXO>(chain.getMaxHeightUTXOPool().getAllUTXO());
+
+        Block block = new Block(genesis.getHash(), miner);
+        block.finalize();
+        blockStore.failing = true;
+        try {
+            chain.addBlock(block);
+            throw new AssertionError("append failure was swallowed");
+        } catch (UncheckedIOException expected) {
+        }
+        check(chain.getMaxHeightBlock() == genesis, "unstored block became the tip");
+        check(new HashSet<UTXO>(chain.getMaxHeightUTXOPool().getAllUTXO()).equals(before),
+              "unstored block left the pool changed");
+
+        // The block was not registered, so adding it again stores it rather than ignoring it.
+        blockStore.failing = false;
+        check(chain.addBlock(block), "block rejected after the store recovered");
+        check(blockStore.contains(block.getHash()), "block not stored");
+        check(chain.getMaxHeightBlock() == block, "stored block is not the tip");
+    }
+
+    private static void testOnlyAcceptedBlocksAreSealed() {
+        PublicKey address = owner.getPublic();
+        Block genesis = new Block(null, address);
+        genesis.finalize();
+        BlockChain chain = new BlockChain(genesis);
+
+        Block invalid = new Block(genesis.getHash(), miner);
+        Transaction missing = new Transaction();
+        missing.addInput(new byte[32], 0);
+        missing.addOutput(1, address);
+        missing.finalize();
+        invalid.addTransaction(missing);
+        invalid.finalize();
+        check(!chain.addBlock(invalid), "block spending a missing output accepted");
+        check(!missing.isSealed(), "transaction of a rejected block sealed");
+
+        Block valid = new Block(genesis.getHash(), miner);
+        Transaction tx = new Transaction();
+        tx.addInput(genesis.getCoinbase().getHash(), 0);
+        tx.addOutput(1, address);
+        tx.finalize();
+        Transaction.Output output = tx.getOutput(0);
+        valid.addTransaction(tx);
+        valid.finalize();
+        check(chain.addBlock(valid), "valid block rejected");
+        check(tx.isSealed(), "transaction of an accepted block not sealed");
+        output.value = 1000;
+        check(chain.getMaxHeightUTXOPool().getTxOutput(new UTXO(tx.getHash(), 0)).value == 1,
+              "pool shares an output the caller can change");
+    }
+
+    /**
+     * Offers blocks holding a transaction whose hash does not match its contents, which the store
+     * could not read back, then reads an accepted block back once it has been dropped from memory.
+     */
+    private static void testStaleHashesAreRejected() throws IOException {
+        PublicKey address = owner.getPublic();
+        Block genesis = new Block(null, address);
+        genesis.finalize();
+        BlockStore blockStore = new BlockStore(Files.createTempDirectory("blocks"), 1 << 16);
+        BlockChain chain = new BlockChain(genesis, blockStore);
+
+        Transaction changed = new Transaction();
+        changed.addInput(genesis.getCoinbase().getHash(), 0);
+        changed.addOutput(1, address);
+        changed.finalize();
+        changed.getOutput(0).value = 2;
+        Transaction forged = new Transaction();
+        forged.addInput(genesis.getCoinbase().getHash(), 0);
+        forged.addOutput(1, address);
+        forged.setHash(new byte[32]);
+        for (Transaction tx : new Transaction[] { changed, forged }) {
+            Block block = new Block(genesis.getHash(), miner);
+            block.addTransaction(tx);
+            block.finalize();
+            check(!chain.addBlock(block), "block with a stale transaction hash accepted");
+            check(!blockStore.contains(block.getHash()), "block with a stale hash stored");
+            check(!tx.isSealed(), "transaction with a stale hash sealed");
+        }
+
+        Block valid = new Block(genesis.getHash(), miner);
+        changed.finalize();
+        valid.addTransaction(changed);
+        valid.finalize();
+        check(chain.addBlock(valid), "valid block rejected");
+        Block tip = valid;
+        for (int i = 0; i <= BlockChain.CUT_OFF_AGE; i++) {
+            Block block = new Block(tip.getHash(), miner);
+            block.finalize();
+            check(chain.addBlock(block), "empty block rejected");
+            tip = block;
+        }
+        Block read = chain.getBlock(valid.getHash());
+        check(read != null && read != valid, "old block not read back from the store");
+        check(read.getTransactions().size() == 1
+                && Arrays.equals(read.getTransaction(0).getHash(), changed.getHash()),
+              "stored block read back wrong");
+    }
+
+    private static void testCreateBlock(UTXOStore store) {
+        PublicKey address = owner.getPublic();
+        Block genesis = new Block(null, address);
+        genesis.finalize();
+        BlockChain chain = new BlockChain(genesis, null, store);
+        BlockHandler handler = new BlockHandler(chain);
+
+        // Coinbases paying the same address have the same hash, so the miner's is kept only once.
+        Block first = handler.createBlock(miner);
+        check(first != null, "empty block not created");
+        Transaction tx = new Transaction();
+        tx.addInput(genesis.getCoinbase().getHash(), 0);
+        tx.addOutput(Block.COINBASE, address);
+        try {
+            Signature signature = Signature.getInstance("SHA256withRSA");
+            signature.initSign(owner.getPrivate());
+            signature.update(tx.getRawDataToSign(0));
+            tx.addSignature(signature.sign(), 0);
+        } catch (GeneralSecurityException x) {
+            throw new IllegalStateException(x);
+        }
+        tx.finalize();
+        handler.processTx(tx);
+        Block second = handler.createBlock(miner);
+        check(second != null && second.getTransactions().size() == 1, "transaction not mined");
+        UTXOPool pool = chain.getMaxHeightUTXOPool();
+        check(pool.contains(new UTXO(tx.getHash(), 0)), "mined output missing");
+        check(!pool.contains(new UTXO(genesis.getCoinbase().getHash(), 0)), "spent output kept");
+        check(pool.size() == 2, "pool size " + pool.size());
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition)
+            throw new IllegalStateException(message);
+    }
+}
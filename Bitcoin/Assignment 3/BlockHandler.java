@@ -21,10 +21,19 @@ public class BlockHandler {
 
     /** create a new {@code block} over the max height {@code block} */
     public Block createBlock(PublicKey myAddress) {
+        long start = Metrics.startTimer();
+        Block block = buildBlock(myAddress);
+        Metrics.recordLatency("block.create", start);
+        Metrics.increment(block != null ? "block.created" : "block.create_failed");
+        return block;
+    }
+
+    private Block buildBlock(PublicKey myAddress) {
         Block parent = blockChain.getMaxHeightBlock();
         byte[] parentHash = parent.getHash();
         Block current = new Block(parentHash, myAddress);
-        UTXOPool uPool = blockChain.getMaxHeightUTXOPool();
+        // The handler copies the pool it is given, so a view saves copying the UTXO set twice.
+        UTXOPool uPool = blockChain.getMaxHeightUTXOPoolView();
         TransactionPool txPool = blockChain.getTransactionPool();
         TxHandler handler = new TxHandler(uPool);
         Transaction[] txs = txPool.getTransactions().toArray(new Transaction[0]);
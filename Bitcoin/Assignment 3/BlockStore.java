@@ -0,0 +1,172 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An append-only store of blocks kept in memory-mapped segment files of a fixed size. Each record
+ * holds the length of the block's {@link WireFormat} encoding, the block hash and the encoding
+ * itself. The length is written last and a zero length marks the end of a segment's data, so a
+ * record left partly written by the process dying is never read back. This only holds while the
+ * operating system survives: nothing is forced to disk before {@link #close()}, and after an
+ * operating system crash the pages of a mapping may have been written back in any order. An
+ * on-heap index maps block hashes to the location of their records; it is rebuilt from the record
+ * headers when an existing directory is opened.
+ */
+public class BlockStore implements Closeable {
+
+    public static final int DEFAULT_SEGMENT_SIZE = 64 << 20;
+
+    private static final String SEGMENT_PREFIX = "blocks-";
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final int RECORD_HEADER_SIZE = Integer.SIZE / 8 + WireFormat.HASH_SIZE;
+
+    private Path directory;
+    private int segmentSize;
+    private List<MappedByteBuffer> segments = new ArrayList<MappedByteBuffer>();
+    /** Mapping from block hashes to their segment (high 32 bits) and offset (low 32 bits) */
+    private Map<ByteArrayWrapper, Long> index = new HashMap<ByteArrayWrapper, Long>();
+    /** Offset of the end of the data in the last segment */
+    private int writeOffset;
+
+    /** Opens the store in {@code directory} with segments of {@link #DEFAULT_SEGMENT_SIZE} bytes */
+    public BlockStore(Path directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Opens the store in {@code directory}, creating the directory if needed. {@code segmentSize}
+     * bounds the size of a single block's encoding and must be the same every time a given
+     * directory is opened.
+     */
+    public BlockStore(Path directory, int segmentSize) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        Files.createDirectories(directory);
+
+        List<Path> files = new ArrayList<Path>();
+        try (DirectoryStream<Path> stream =
+                Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path file : stream)
+                files.add(file);
+        }
+        Collections.sort(files);
+        for (Path file : files)
+            scanSegment(file, map(file));
+        if (segments.isEmpty())
+            addSegment();
+    }
+
+    /**
+     * Appends {@code block} to the store unless a block with the same hash is already present.
+     *
+     * @throws IllegalArgumentException if the block has not been finalized, has an output without
+     *         an address or does not fit in a segment
+     */
+    public synchronized void append(Block block) throws IOException {
+        if (block.getHash() == null)
+            throw new IllegalArgumentException("block has not been finalized");
+        ByteArrayWrapper hash = new ByteArrayWrapper(block.getHash());
+        if (index.containsKey(hash))
+            return;
+
+        byte[] encoded = WireFormat.encodeBlock(block);
+        int recordSize = RECORD_HEADER_SIZE + encoded.length;
+        if (recordSize > segmentSize)
+            throw new IllegalArgumentException("block does not fit in a segment: " + recordSize);
+        if (writeOffset + recordSize > segmentSize)
+            addSegment();
+
+        MappedByteBuffer segment = segments.get(segments.size() - 1);
+        ByteBuffer record = segment.duplicate();
+        record.position(writeOffset + Integer.SIZE / 8);
+        record.put(block.getHash());
+        record.put(encoded);
+        segment.putInt(writeOffset, encoded.length);
+
+        index.put(hash, location(segments.size() - 1, writeOffset));
+        writeOffset += recordSize;
+    }
+
+    /** @return the block with hash {@code hash}, decoded from its segment, or null if absent */
+    public synchronized Block get(byte[] hash) {
+        Long location = index.get(new ByteArrayWrapper(hash));
+        if (location == null)
+            return null;
+        ByteBuffer record = segments.get((int) (location >>> 32)).duplicate();
+        int offset = (int) (long) location;
+        int length = record.getInt(offset);
+        record.position(offset + RECORD_HEADER_SIZE);
+        record.limit(offset + RECORD_HEADER_SIZE + length);
+        return WireFormat.decodeBlock(record);
+    }
+
+    /** @return true if a block with hash {@code hash} is in the store */
+    public synchronized boolean contains(byte[] hash) {
+        return index.containsKey(new ByteArrayWrapper(hash));
+    }
+
+    /** @return the number of blocks in the store */
+    public synchronized int size() {
+        return index.size();
+    }
+
+    /** Flushes all segments to disk */
+    public synchronized void close() throws IOException {
+        for (MappedByteBuffer segment : segments)
+            segment.force();
+    }
+
+    private void addSegment() throws IOException {
+        String name = String.format("%s%08d%s", SEGMENT_PREFIX, segments.size(), SEGMENT_SUFFIX);
+        segments.add(map(directory.resolve(name)));
+        writeOffset = 0;
+    }
+
+    private MappedByteBuffer map(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        }
+    }
+
+    /**
+     * Adds the records of {@code segment}, mapped from {@code file}, to the index and makes it the
+     * last segment.
+     *
+     * @throws IOException if a record length is negative or runs past the end of the segment
+     */
+    private void scanSegment(Path file, MappedByteBuffer segment) throws IOException {
+        int offset = 0;
+        while (offset + RECORD_HEADER_SIZE <= segmentSize) {
+            int length = segment.getInt(offset);
+            if (length == 0)
+                break;
+            if (length < 0 || length > segmentSize - offset - RECORD_HEADER_SIZE)
+                throw new IOException("corrupt record length " + length + " at offset " + offset
+                                      + " of " + file);
+            byte[] hash = new byte[WireFormat.HASH_SIZE];
+            ByteBuffer record = segment.duplicate();
+            record.position(offset + Integer.SIZE / 8);
+            record.get(hash);
+            index.put(new ByteArrayWrapper(hash), location(segments.size(), offset));
+            offset += RECORD_HEADER_SIZE + length;
+        }
+        segments.add(segment);
+        writeOffset = offset;
+    }
+
+    private static long location(int segment, int offset) {
+        return ((long) segment << 32) | offset;
+    }
+}
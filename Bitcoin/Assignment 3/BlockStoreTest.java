@@ -0,0 +1,83 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.util.Arrays;
+
+/**
+ * Checks that a {@link BlockStore} reads back the blocks appended to it after being reopened and
+ * refuses segments with corrupt record lengths. Throws {@link IllegalStateException} on the first
+ * failure.
+ *
+ * <p>
+ * Usage: {@code java BlockStoreTest}
+ */
+public class BlockStoreTest {
+
+    private static final int SEGMENT_SIZE = 1 << 12;
+
+    public static void main(String[] args) throws GeneralSecurityException, IOException {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(1024);
+        PublicKey key = generator.generateKeyPair().getPublic();
+
+        Path directory = Files.createTempDirectory("blocks");
+        testReopen(directory, key);
+        testCorruptLength(directory, -1);
+        testCorruptLength(directory, SEGMENT_SIZE);
+        System.out.println("BlockStoreTest passed");
+    }
+
+    private static void testReopen(Path directory, PublicKey key) throws IOException {
+        Block[] blocks = new Block[20];
+        BlockStore store = new BlockStore(directory, SEGMENT_SIZE);
+        byte[] prevHash = new byte[32];
+        for (int i = 0; i < blocks.length; i++) {
+            blocks[i] = new Block(prevHash, key);
+            blocks[i].finalize();
+            store.append(blocks[i]);
+            prevHash = blocks[i].getHash();
+        }
+        store.close();
+
+        BlockStore reopened = new BlockStore(directory, SEGMENT_SIZE);
+        check(reopened.size() == blocks.length, "blocks lost on reopening");
+        for (Block block : blocks) {
+            Block read = reopened.get(block.getHash());
+            check(read != null && Arrays.equals(read.getRawBlock(), block.getRawBlock()),
+                  "block changed on reopening");
+        }
+        reopened.close();
+    }
+
+    /** Overwrites the length of the first record and checks that the store refuses to open */
+    private static void testCorruptLength(Path directory, int length) throws IOException {
+        Path segment = directory.resolve("blocks-00000000.seg");
+        ByteBuffer original = ByteBuffer.allocate(4);
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            channel.read(original, 0);
+            original.flip();
+            channel.write(ByteBuffer.allocate(4).putInt(0, length), 0);
+        }
+        try {
+            new BlockStore(directory, SEGMENT_SIZE);
+            throw new IllegalStateException("corrupt length " + length + " accepted");
+        } catch (IOException expected) {
+        }
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            channel.write(original, 0);
+        }
+        new BlockStore(directory, SEGMENT_SIZE).close();
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition)
+            throw new IllegalStateException(message);
+    }
+}
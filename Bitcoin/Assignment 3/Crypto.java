@@ -1,36 +1,169 @@
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
-import java.security.Signature;
-import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 public class Crypto {
 
+    /** Cache of signatures already found to be valid, or null if caching is disabled */
+    private static volatile SignatureCache signatureCache = new SignatureCache();
+
+    /** Executor on which batches of signatures are verified, or null to verify them serially */
+    private static volatile ExecutorService verificationExecutor;
+
+    /** One signature to be checked as part of a batch */
+    public static class SignatureCheck {
+        public PublicKey pubKey;
+        public byte[] message;
+        public byte[] signature;
+
+        public SignatureCheck(PublicKey pubKey, byte[] message, byte[] signature) {
+            this.pubKey = pubKey;
+            this.message = message;
+            this.signature = signature;
+        }
+
+        public boolean verify() {
+            return verifySignature(pubKey, message, signature);
+        }
+    }
+
     /**
      * @return true is {@code signature} is a valid digital signature of {@code message} under the
-     *         key {@code pubKey}. Internally, this uses RSA signature, but the student does not
-     *         have to deal with any of the implementation details of the specific signature
-     *         algorithm
+     *         key {@code pubKey}. The signature algorithm is the {@link SignatureScheme} of
+     *         {@code pubKey}, i.e. RSA or Ed25519, but the student does not have to deal with any
+     *         of the implementation details of the specific signature algorithm
      */
     public static boolean verifySignature(PublicKey pubKey, byte[] message, byte[] signature) {
-        Signature sig = null;
-        try {
-            sig = Signature.getInstance("SHA256withRSA");
-        } catch (NoSuchAlgorithmException e) {
-            e.printStackTrace();
+        SignatureCache cache = signatureCache;
+        if (cache == null || pubKey == null || message == null || signature == null)
+            return verify(pubKey, message, signature);
+
+        SignatureCache.Key key = new SignatureCache.Key(pubKey, message, signature);
+        if (cache.contains(key))
+            return true;
+        boolean valid = verify(pubKey, message, signature);
+        if (valid)
+            cache.add(key);
+        return valid;
+    }
+
+    /** @return the cache consulted by {@link #verifySignature}, or null if caching is disabled */
+    public static SignatureCache getSignatureCache() {
+        return signatureCache;
+    }
+
+    /** Makes {@link #verifySignature} use {@code cache}; null disables caching */
+    public static void setSignatureCache(SignatureCache cache) {
+        signatureCache = cache;
+    }
+
+    /**
+     * @return true if every signature in {@code checks} is valid. If a verification executor has
+     *         been set, the checks run on it in parallel.
+     */
+    public static boolean verifySignatures(List<SignatureCheck> checks) {
+        return verifySignatures(checks, verificationExecutor);
+    }
+
+    /**
+     * @return true if every signature in {@code checks} is valid. The checks run in parallel on
+     *         {@code executor}, unless it is null, and as soon as one of them fails the remaining
+     *         ones are cancelled.
+     */
+    public static boolean verifySignatures(List<SignatureCheck> checks, ExecutorService executor) {
+        if (executor == null || checks.size() < 2) {
+            for (SignatureCheck check : checks) {
+                if (!check.verify())
+                    return false;
+            }
+            return true;
         }
+
+        CompletionService<Boolean> completionService =
+            new ExecutorCompletionService<Boolean>(executor);
+        List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>(checks.size());
         try {
-            sig.initVerify(pubKey);
-        } catch (InvalidKeyException e) {
-            e.printStackTrace();
+            for (final SignatureCheck check : checks) {
+                futures.add(completionService.submit(new Callable<Boolean>() {
+                    public Boolean call() {
+                        return check.verify();
+                    }
+                }));
+            }
+            for (int i = 0; i < checks.size(); i++) {
+                if (!completionService.take().get())
+                    return false;
+            }
+            return true;
+        } catch (InterruptedException x) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException x) {
+            if (x.getCause() instanceof RuntimeException)
+                throw (RuntimeException) x.getCause();
+            throw new IllegalStateException(x.getCause());
+        } finally {
+            for (Future<Boolean> future : futures)
+                future.cancel(true);
         }
+    }
+
+    /**
+     * Verifies several groups of signatures, e.g. the inputs of every transaction in a batch, in
+     * parallel on {@code executor}, each group stopping at its first invalid signature.
+     * 
+     * @return for each group, whether all of its signatures are valid
+     */
+    public static boolean[] verifySignatureGroups(List<List<SignatureCheck>> groups,
+                                                  ExecutorService executor) {
+        boolean[] valid = new boolean[groups.size()];
+        List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>(groups.size());
         try {
-            sig.update(message);
-            return sig.verify(signature);
-        } catch (SignatureException e) {
-            e.printStackTrace();
+            for (final List<SignatureCheck> group : groups) {
+                futures.add(executor.submit(new Callable<Boolean>() {
+                    public Boolean call() {
+                        return verifySignatures(group, null);
+                    }
+                }));
+            }
+            for (int i = 0; i < valid.length; i++)
+                valid[i] = futures.get(i).get();
+        } catch (InterruptedException x) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException x) {
+            if (x.getCause() instanceof RuntimeException)
+                throw (RuntimeException) x.getCause();
+            throw new IllegalStateException(x.getCause());
+        } finally {
+            for (Future<Boolean> future : futures)
+                future.cancel(true);
         }
-        return false;
+        return valid;
+    }
+
+    /** @return the executor used by {@link #verifySignatures(List)}, or null if it is serial */
+    public static ExecutorService getVerificationExecutor() {
+        return verificationExecutor;
+    }
 
+    /** Makes {@link #verifySignatures(List)} run on {@code executor}; null makes it serial */
+    public static void setVerificationExecutor(ExecutorService executor) {
+        verificationExecutor = executor;
+    }
+
+    private static boolean verify(PublicKey pubKey, byte[] message, byte[] signature) {
+        SignatureScheme scheme;
+        try {
+            scheme = SignatureScheme.forKey(pubKey);
+        } catch (IllegalArgumentException x) {
+            return false;
+        }
+        return scheme.verify(pubKey, message, signature);
     }
 }
@@ -0,0 +1,42 @@
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+
+/**
+ * Checks that {@link Crypto#verifySignature} accepts valid signatures under each
+ * {@link SignatureScheme} and returns false, rather than throwing, for anything it cannot verify.
+ * Throws {@link IllegalStateException} on the first failure.
+ *
+ * <p>
+ * Usage: {@code java CryptoTest}
+ */
+public class CryptoTest {
+
+    public static void main(String[] args) throws GeneralSecurityException {
+        KeyPairGenerator rsa = KeyPairGenerator.getInstance("RSA");
+        rsa.initialize(1024);
+        testScheme(rsa.generateKeyPair());
+        testScheme(KeyPairGenerator.getInstance("Ed25519").generateKeyPair());
+        System.out.println("CryptoTest passed");
+    }
+
+    private static void testScheme(KeyPair keys) throws GeneralSecurityException {
+        byte[] message = { 1, 2, 3 };
+        SignatureScheme scheme = SignatureScheme.forKey(keys.getPublic());
+        byte[] signature = scheme.sign(keys.getPrivate(), message);
+        // Twice, the second time from the signature cache.
+        for (int i = 0; i < 2; i++)
+            check(Crypto.verifySignature(keys.getPublic(), message, signature), "valid rejected");
+
+        byte[] forged = signature.clone();
+        forged[0] ^= 1;
+        check(!Crypto.verifySignature(keys.getPublic(), message, forged), "forgery accepted");
+        check(!Crypto.verifySignature(keys.getPublic(), message, null), "no signature accepted");
+        check(!Crypto.verifySignature(null, message, signature), "no key accepted");
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition)
+            throw new IllegalStateException(message);
+    }
+}
@@ -0,0 +1,125 @@
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Replaces the transactions a newcomer conflicts with if it is valid and pays a higher fee than all
+ * of them and their descendants, which would be removed with them, by at least a minimum
+ * increment, and rejects it otherwise. A transaction whose fee cannot be worked out, because it
+ * claims an output that is neither in the UTXO pool nor created by a transaction in the
+ * transaction pool, or does not fit in a long, is never preferred.
+ */
+public class FeeReplacementPolicy implements ReplacementPolicy {
+
+    /** Returned by {@link #fee} for a transaction whose fee cannot be worked out */
+    public static final long UNKNOWN_FEE = Long.MIN_VALUE;
+
+    private final long minIncrement;
+    private final TxValidator validator = new TxValidator();
+
+    /** Creates a policy replacing transactions by any transaction paying a strictly higher fee */
+    public FeeReplacementPolicy() {
+        this(1);
+    }
+
+    /**
+     * Creates a policy replacing transactions by one paying at least {@code minIncrement} base
+     * units more in fees
+     */
+    public FeeReplacementPolicy(long minIncrement) {
+        if (minIncrement < 0)
+            throw new IllegalArgumentException("negative increment: " + minIncrement);
+        this.minIncrement = minIncrement;
+    }
+
+    @Override
+    public Decision decide(Transaction incoming, List<Transaction> conflicts,
+                           TransactionPool txPool, UTXOPool utxoPool) {
+        long fee = fee(incoming, txPool, utxoPool);
+        if (fee == UNKNOWN_FEE)
+            return Decision.REJECT;
+        // Add up the fees of the conflicts and their descendants, each once.
+        Set<ByteArrayWrapper> seen = new HashSet<ByteArrayWrapper>();
+        ArrayDeque<Transaction> pending = new ArrayDeque<Transaction>(conflicts);
+        long replaced = 0;
+        while (!pending.isEmpty()) {
+            Transaction tx = pending.poll();
+            if (!seen.add(new ByteArrayWrapper(tx.getHash())))
+                continue;
+            long replacedFee = fee(tx, txPool, utxoPool);
+            // Never evict a transaction that cannot be compared.
+            if (replacedFee == UNKNOWN_FEE)
+                return Decision.REJECT;
+            try {
+                replaced = Math.addExact(replaced, Math.max(replacedFee, 0));
+            } catch (ArithmeticException x) {
+                return Decision.REJECT;
+            }
+            for (int i = 0; i < tx.numOutputs(); i++)
+                pending.addAll(txPool.getSpenders(new UTXO(tx.getHash(), i)));
+        }
+        if (fee - replaced < minIncrement)
+            return Decision.REJECT;
+        // Only a transaction that could be mined may evict others, checked last as it verifies
+        // signatures.
+        return isValid(incoming, txPool, utxoPool) ? Decision.REPLACE : Decision.REJECT;
+    }
+
+    /**
+     * @return true if {@code tx} passes every {@link TxValidator} stage against the outputs it
+     *         claims, looked up as by {@link #fee}
+     */
+    private boolean isValid(Transaction tx, TransactionPool txPool, UTXOPool utxoPool) {
+        UTXOPool claimed = new UTXOPool();
+        for (int i = 0; i < tx.numInputs(); i++) {
+            byte[] prevTxHash = tx.getPrevTxHash(i);
+            int outputIndex = tx.getOutputIndex(i);
+            if (prevTxHash == null)
+                return false;
+            Transaction.Output output =
+                utxoPool != null ? utxoPool.getTxOutput(prevTxHash, outputIndex) : null;
+            if (output == null) {
+                Transaction parent = txPool.getTransaction(prevTxHash);
+                if (parent == null || outputIndex < 0 || outputIndex >= parent.numOutputs())
+                    return false;
+                output = parent.getOutput(outputIndex);
+            }
+            claimed.addUTXO(new UTXO(prevTxHash, outputIndex), output);
+        }
+        return validator.isValid(tx, claimed);
+    }
+
+    /**
+     * @return the fee of {@code tx} in base units, its claimed outputs minus its outputs, looking
+     *         up the claimed outputs in {@code utxoPool}, unless it is null, and then among the
+     *         transactions in {@code txPool}; or {@link #UNKNOWN_FEE} if any of them is missing
+     *         or the fee overflows
+     */
+    public static long fee(Transaction tx, TransactionPool txPool, UTXOPool utxoPool) {
+        long fee = 0;
+        try {
+            for (int i = 0; i < tx.numInputs(); i++) {
+                byte[] prevTxHash = tx.getPrevTxHash(i);
+                int outputIndex = tx.getOutputIndex(i);
+                if (prevTxHash == null)
+                    return UNKNOWN_FEE;
+                Transaction.Output output =
+                    utxoPool != null ? utxoPool.getTxOutput(prevTxHash, outputIndex) : null;
+                if (output != null) {
+                    fee = Math.addExact(fee, output.getAmount());
+                    continue;
+                }
+                Transaction parent = txPool.getTransaction(prevTxHash);
+                if (parent == null || outputIndex < 0 || outputIndex >= parent.numOutputs())
+                    return UNKNOWN_FEE;
+                fee = Math.addExact(fee, parent.getAmount(outputIndex));
+            }
+            for (int i = 0; i < tx.numOutputs(); i++)
+                fee = Math.subtractExact(fee, tx.getAmount(i));
+        } catch (ArithmeticException x) {
+            return UNKNOWN_FEE;
+        }
+        return fee;
+    }
+}
@@ -0,0 +1,147 @@
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * SHA-256 hashing with one reusable {@link MessageDigest} per thread, and batch finalization of
+ * transactions and blocks spread over a {@link ForkJoinPool}. Every hash computed through this
+ * class is counted, and timed while {@link Metrics} are enabled, so that hashing throughput can be
+ * monitored.
+ */
+public class HashService {
+
+    /** Batches at most this large are hashed on a single worker */
+    private static final int BATCH_THRESHOLD = 64;
+
+    private static final ThreadLocal<MessageDigest> DIGEST = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException x) {
+                throw new IllegalStateException(x);
+            }
+        }
+    };
+
+    private static final LongAdder hashCount = new LongAdder();
+    private static final LongAdder hashedBytes = new LongAdder();
+    private static final LongAdder hashNanos = new LongAdder();
+
+    /** @return the SHA-256 hash of {@code data} */
+    public static byte[] sha256(byte[] data) {
+        long start = Metrics.startTimer();
+        MessageDigest md = DIGEST.get();
+        md.update(data);
+        byte[] hash = md.digest();
+        record(data.length, start);
+        return hash;
+    }
+
+    /** @return the SHA-256 hash of {@code first} followed by {@code second} */
+    public static byte[] sha256(byte[] first, byte[] second) {
+        long start = Metrics.startTimer();
+        MessageDigest md = DIGEST.get();
+        md.update(first);
+        md.update(second);
+        byte[] hash = md.digest();
+        record(first.length + second.length, start);
+        return hash;
+    }
+
+    /** Finalizes every transaction in {@code txs} on the common pool */
+    public static void finalizeAll(Transaction[] txs) {
+        finalizeAll(txs, ForkJoinPool.commonPool());
+    }
+
+    /** Finalizes every transaction in {@code txs} on {@code pool} */
+    public static void finalizeAll(final Transaction[] txs, ForkJoinPool pool) {
+        pool.invoke(new Batch(0, txs.length, new Item() {
+            public void hash(int index) {
+                txs[index].finalize();
+            }
+        }));
+    }
+
+    /** Finalizes every block in {@code blocks}, and their transactions first, on the common pool */
+    public static void finalizeAll(Block[] blocks) {
+        finalizeAll(blocks, ForkJoinPool.commonPool());
+    }
+
+    /** Finalizes every block in {@code blocks}, and their transactions first, on {@code pool} */
+    public static void finalizeAll(final Block[] blocks, ForkJoinPool pool) {
+        pool.invoke(new Batch(0, blocks.length, new Item() {
+            public void hash(int index) {
+                for (Transaction tx : blocks[index].getTransactions())
+                    tx.finalize();
+                blocks[index].finalize();
+            }
+        }));
+    }
+
+    /** @return the number of hashes computed so far */
+    public static long getHashCount() {
+        return hashCount.sum();
+    }
+
+    /** @return the number of bytes hashed so far */
+    public static long getHashedBytes() {
+        return hashedBytes.sum();
+    }
+
+    /**
+     * @return the total time spent hashing while {@link Metrics} were enabled, in nanoseconds,
+     *         summed over all threads
+     */
+    public static long getHashNanos() {
+        return hashNanos.sum();
+    }
+
+    /** Resets the hashing counters to zero */
+    public static void resetCounters() {
+        hashCount.reset();
+        hashedBytes.reset();
+        hashNanos.reset();
+    }
+
+    private static void record(int bytes, long start) {
+        // Only read the clock again if it was read at the start, that is if metrics are enabled.
+        if (start != 0)
+            hashNanos.add(System.nanoTime() - start);
+        hashedBytes.add(bytes);
+        hashCount.increment();
+    }
+
+    /** One item of a batch, identified by its index */
+    private interface Item {
+        void hash(int index);
+    }
+
+    /** Hashes the items with indices in [from, to), splitting the range across the pool */
+    private static class Batch extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private int from;
+        private int to;
+        private Item item;
+
+        Batch(int from, int to, Item item) {
+            this.from = from;
+            this.to = to;
+            this.item = item;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= BATCH_THRESHOLD) {
+                for (int i = from; i < to; i++)
+                    item.hash(i);
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new Batch(from, mid, item), new Batch(mid, to, item));
+        }
+    }
+}
@@ -0,0 +1,431 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * A UTXO store kept off the heap in a memory-mapped file, so that its size is bounded by the disk
+ * rather than by the heap. The file is an open-addressing hash table of fixed-size slots, each
+ * holding a transaction hash, an output index, the output value and the {@link AddressTable} id of
+ * the output address; collisions are resolved by linear probing, and removals shift later entries
+ * back instead of leaving tombstones. The file is mapped in segments of up to
+ * {@link BlockStore#DEFAULT_SEGMENT_SIZE} bytes and replaced by one twice the size when it fills
+ * up.
+ *
+ * <p>
+ * The only per-entry state on the heap is a small direct-mapped cache of the outputs last read or
+ * written, so that reading a recent entry again returns the same {@code Transaction.Output}. Hashes
+ * that are not {@link #HASH_SIZE} bytes long are kept on the heap instead. Any number of threads
+ * may read the store at once, as long as none changes it meanwhile.
+ *
+ * <p>
+ * The file is scratch space, since address ids only mean something within one run. It is removed
+ * from the directory as soon as it is mapped, and its space is reclaimed once the store is garbage
+ * collected, so that copies made by {@link UTXOPool} need not be closed. {@link #copy()} copies the
+ * whole file.
+ */
+public class MappedUTXOStore implements UTXOStore {
+
+    public static final int HASH_SIZE = 32;
+    public static final int SLOT_SIZE = 64;
+    public static final int DEFAULT_CACHE_SIZE = 1 << 12;
+
+    private static final int SEGMENT_SLOTS = BlockStore.DEFAULT_SEGMENT_SIZE / SLOT_SIZE;
+    private static final int INITIAL_CAPACITY = 1 << 10;
+
+    // Offsets of the fields of a slot. A used slot has a non-zero state.
+    private static final int STATE = 0;
+    private static final int INDEX = 4;
+    private static final int ADDRESS_ID = 8;
+    private static final int VALUE = 16;
+    private static final int TX_HASH = 24;
+
+    /** The transaction that outputs read back from the file belong to */
+    private static final Transaction OUTPUT_OWNER = new Transaction();
+
+    private Path directory;
+    private MappedByteBuffer[] segments;
+    private int mask;
+    private int size;
+    /** Number of additions and removals, checked by spliterators */
+    private int modCount;
+
+    /**
+     * The output cached for each cache line with the slot it was read from, or null. Each line is
+     * replaced with a single write of an immutable entry, so that concurrent readers, such as the
+     * workers of the parallel {@code TxHandler.handleTxs}, never pair one slot with the output of
+     * another.
+     */
+    private CachedOutput[] cachedOutputs;
+
+    /** Entries whose transaction hash is not {@code HASH_SIZE} bytes long */
+    private Map<UTXO, Transaction.Output> overflow = new HashMap<UTXO, Transaction.Output>();
+
+    /** Scratch space for moving a slot */
+    private byte[] slotBuffer = new byte[SLOT_SIZE];
+
+    /**
+     * Creates an empty store in a new file in {@code directory}, caching up to
+     * {@link #DEFAULT_CACHE_SIZE} outputs
+     */
+    public MappedUTXOStore(Path directory) throws IOException {
+        this(directory, DEFAULT_CACHE_SIZE);
+    }
+
+    /**
+     * Creates an empty store in a new file in {@code directory}, creating the directory if needed,
+     * that caches up to {@code cacheSize} outputs, which must be a power of two
+     */
+    public MappedUTXOStore(Path directory, int cacheSize) throws IOException {
+        this(directory, cacheSize, INITIAL_CAPACITY);
+    }
+
+    private MappedUTXOStore(Path directory, int cacheSize, int capacity) throws IOException {
+        if (Integer.bitCount(cacheSize) != 1)
+            throw new IllegalArgumentException("cache size is not a power of two: " + cacheSize);
+        this.directory = directory;
+        Files.createDirectories(directory);
+        cachedOutputs = new CachedOutput[cacheSize];
+        allocate(capacity);
+    }
+
+    @Override
+    public Transaction.Output get(byte[] txHash, int index) {
+        if (txHash.length != HASH_SIZE)
+            return overflow.get(new UTXO(txHash, index));
+        int slot = find(txHash, index);
+        return slot >= 0 ? readOutput(slot) : null;
+    }
+
+    @Override
+    public boolean contains(byte[] txHash, int index) {
+        if (txHash.length != HASH_SIZE)
+            return overflow.containsKey(new UTXO(txHash, index));
+        return find(txHash, index) >= 0;
+    }
+
+    @Override
+    public Transaction.Output put(byte[] txHash, int index, Transaction.Output output) {
+        if (output == null)
+            throw new IllegalArgumentException("output must not be null");
+        if (txHash.length != HASH_SIZE)
+            return overflow.put(new UTXO(txHash, index), output);
+
+        Transaction.Output previous = null;
+        int slot = find(txHash, index);
+        if (slot >= 0) {
+            previous = readOutput(slot);
+        } else {
+            if ((size + 1) * 3 > (mask + 1) * 2)
+                resize((mask + 1) * 2);
+            slot = home(ByteBuffer.wrap(txHash).getLong(), index);
+            while (isUsed(slot))
+                slot = (slot + 1) & mask;
+            ByteBuffer segment = segment(slot);
+            int offset = offset(slot);
+            for (int i = 0; i < HASH_SIZE; i++)
+                segment.put(offset + TX_HASH + i, txHash[i]);
+            segment.putInt(offset + INDEX, index);
+            segment.put(offset + STATE, (byte) 1);
+            size++;
+            modCount++;
+        }
+        ByteBuffer segment = segment(slot);
+        int offset = offset(slot);
+        segment.putDouble(offset + VALUE, output.value);
+        segment.putInt(offset + ADDRESS_ID, output.getAddressId());
+        cache(slot, output);
+        return previous;
+    }
+
+    @Override
+    public Transaction.Output remove(byte[] txHash, int index) {
+        if (txHash.length != HASH_SIZE)
+            return overflow.remove(new UTXO(txHash, index));
+        int slot = find(txHash, index);
+        if (slot < 0)
+            return null;
+        Transaction.Output previous = readOutput(slot);
+        deleteSlot(slot);
+        size--;
+        modCount++;
+        return previous;
+    }
+
+    @Override
+    public int size() {
+        return size + overflow.size();
+    }
+
+    /**
+     * @return a store in a new file in the same directory holding the same entries
+     * @throws UncheckedIOException if the file cannot be created
+     */
+    @Override
+    public MappedUTXOStore copy() {
+        try {
+            MappedUTXOStore copy = new MappedUTXOStore(directory, cachedOutputs.length, mask + 1);
+            for (int i = 0; i < segments.length; i++)
+                copy.segments[i].duplicate().put(segments[i].duplicate());
+            copy.size = size;
+            copy.overflow.putAll(overflow);
+            return copy;
+        } catch (IOException x) {
+            throw new UncheckedIOException(x);
+        }
+    }
+
+    @Override
+    public ArrayList<UTXO> keys() {
+        ArrayList<UTXO> keys = new ArrayList<UTXO>(size());
+        for (int slot = 0; slot <= mask; slot++) {
+            if (isUsed(slot))
+                keys.add(keyAt(slot));
+        }
+        keys.addAll(overflow.keySet());
+        return keys;
+    }
+
+    @Override
+    public Spliterator<UTXO> spliterator() {
+        Spliterator<UTXO> slots = new SlotSpliterator(0, mask + 1, size, modCount);
+        if (overflow.isEmpty())
+            return slots;
+        return Stream.concat(StreamSupport.stream(slots, false), overflow.keySet().stream())
+                     .spliterator();
+    }
+
+    private UTXO keyAt(int slot) {
+        byte[] txHash = new byte[HASH_SIZE];
+        ByteBuffer entry = segment(slot).duplicate();
+        entry.position(offset(slot) + TX_HASH);
+        entry.get(txHash);
+        return new UTXO(txHash, entry.getInt(offset(slot) + INDEX));
+    }
+
+    /** @return the slot holding {@code (txHash, index)}, or -1 if there is none */
+    private int find(byte[] txHash, int index) {
+        ByteBuffer words = ByteBuffer.wrap(txHash);
+        long w0 = words.getLong(0);
+        long w1 = words.getLong(8);
+        long w2 = words.getLong(16);
+        long w3 = words.getLong(24);
+        int slot = home(w0, index);
+        while (isUsed(slot)) {
+            ByteBuffer segment = segment(slot);
+            int offset = offset(slot) + TX_HASH;
+            if (segment.getInt(offset(slot) + INDEX) == index && segment.getLong(offset) == w0
+                    && segment.getLong(offset + 8) == w1 && segment.getLong(offset + 16) == w2
+                    && segment.getLong(offset + 24) == w3)
+                return slot;
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /** Empties {@code slot}, moving back later entries of its probe run that belong before it */
+    private void deleteSlot(int slot) {
+        int free = slot;
+        int next = slot;
+        while (true) {
+            next = (next + 1) & mask;
+            if (!isUsed(next))
+                break;
+            int home = home(segment(next).getLong(offset(next) + TX_HASH),
+                            segment(next).getInt(offset(next) + INDEX));
+            // Move the entry unless its home slot lies cyclically in (free, next].
+            boolean stays = free <= next ? free < home && home <= next
+                                         : free < home || home <= next;
+            if (!stays) {
+                moveSlot(next, free);
+                free = next;
+            }
+        }
+        segment(free).put(offset(free) + STATE, (byte) 0);
+        uncache(free);
+    }
+
+    private void moveSlot(int from, int to) {
+        ByteBuffer source = segment(from).duplicate();
+        source.position(offset(from));
+        source.get(slotBuffer);
+        ByteBuffer target = segment(to).duplicate();
+        target.position(offset(to));
+        target.put(slotBuffer);
+        uncache(to);
+        CachedOutput cached = cachedOutputs[from & (cachedOutputs.length - 1)];
+        if (cached != null && cached.slot == from)
+            cache(to, cached.output);
+    }
+
+    private void resize(int capacity) {
+        MappedByteBuffer[] oldSegments = segments;
+        int oldCapacity = mask + 1;
+        try {
+            allocate(capacity);
+            for (int old = 0; old < oldCapacity; old++) {
+                ByteBuffer source = oldSegments[old / SEGMENT_SLOTS].duplicate();
+                int offset = (old % SEGMENT_SLOTS) * SLOT_SIZE;
+                if (source.get(offset + STATE) == 0)
+                    continue;
+                int slot = home(source.getLong(offset + TX_HASH), source.getInt(offset + INDEX));
+                while (isUsed(slot))
+                    slot = (slot + 1) & mask;
+                source.position(offset);
+                source.get(slotBuffer);
+                ByteBuffer target = segment(slot).duplicate();
+                target.position(offset(slot));
+                target.put(slotBuffer);
+            }
+        } catch (IOException x) {
+            throw new UncheckedIOException(x);
+        }
+        Arrays.fill(cachedOutputs, null);
+    }
+
+    /** Maps a new, empty file of {@code capacity} slots */
+    private void allocate(int capacity) throws IOException {
+        Path file = Files.createTempFile(directory, "utxo-", ".tab");
+        int segmentSlots = Math.min(capacity, SEGMENT_SLOTS);
+        segments = new MappedByteBuffer[capacity / segmentSlots];
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            for (int i = 0; i < segments.length; i++) {
+                segments[i] = channel.map(FileChannel.MapMode.READ_WRITE,
+                                          (long) i * segmentSlots * SLOT_SIZE,
+                                          (long) segmentSlots * SLOT_SIZE);
+            }
+        }
+        // The mappings keep the file alive. Where a mapped file cannot be deleted, it is deleted
+        // on exit instead.
+        try {
+            Files.delete(file);
+        } catch (IOException x) {
+            file.toFile().deleteOnExit();
+        }
+        mask = capacity - 1;
+    }
+
+    private Transaction.Output readOutput(int slot) {
+        CachedOutput cached = cachedOutputs[slot & (cachedOutputs.length - 1)];
+        if (cached != null && cached.slot == slot)
+            return cached.output;
+        ByteBuffer segment = segment(slot);
+        int offset = offset(slot);
+        Transaction.Output output = OUTPUT_OWNER.new Output(segment.getDouble(offset + VALUE),
+                                                            segment.getInt(offset + ADDRESS_ID));
+        cache(slot, output);
+        return output;
+    }
+
+    private void cache(int slot, Transaction.Output output) {
+        cachedOutputs[slot & (cachedOutputs.length - 1)] = new CachedOutput(slot, output);
+    }
+
+    private void uncache(int slot) {
+        int line = slot & (cachedOutputs.length - 1);
+        CachedOutput cached = cachedOutputs[line];
+        if (cached != null && cached.slot == slot)
+            cachedOutputs[line] = null;
+    }
+
+    private boolean isUsed(int slot) {
+        return segment(slot).get(offset(slot) + STATE) != 0;
+    }
+
+    private ByteBuffer segment(int slot) {
+        return segments[slot / SEGMENT_SLOTS];
+    }
+
+    private static int offset(int slot) {
+        return (slot % SEGMENT_SLOTS) * SLOT_SIZE;
+    }
+
+    /** @return the first slot probed for a key whose first hash word is {@code w0} */
+    private int home(long w0, int index) {
+        // Transaction hashes are already uniformly distributed, but the index is not.
+        long h = w0 ^ (index * 0x9E3779B97F4A7C15L);
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        return (int) h & mask;
+    }
+
+    /**
+     * Traverses a range of slots, splitting it in half. A change to the store during traversal
+     * is detected and reported as a {@link ConcurrentModificationException}.
+     */
+    private final class SlotSpliterator implements Spliterator<UTXO> {
+        private int origin;
+        private final int fence;
+        private long estimate;
+        private final int expectedModCount;
+
+        SlotSpliterator(int origin, int fence, long estimate, int expectedModCount) {
+            this.origin = origin;
+            this.fence = fence;
+            this.estimate = estimate;
+            this.expectedModCount = expectedModCount;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super UTXO> action) {
+            while (origin < fence) {
+                if (modCount != expectedModCount)
+                    throw new ConcurrentModificationException();
+                int slot = origin++;
+                if (isUsed(slot)) {
+                    action.accept(keyAt(slot));
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public Spliterator<UTXO> trySplit() {
+            int middle = (origin + fence) >>> 1;
+            if (middle <= origin)
+                return null;
+            estimate >>>= 1;
+            SlotSpliterator prefix =
+                new SlotSpliterator(origin, middle, estimate, expectedModCount);
+            origin = middle;
+            return prefix;
+        }
+
+        @Override
+        public long estimateSize() {
+            return estimate;
+        }
+
+        @Override
+        public int characteristics() {
+            return DISTINCT | NONNULL;
+        }
+    }
+
+    /** An output and the slot it was read from */
+    private static final class CachedOutput {
+        final int slot;
+        final Transaction.Output output;
+
+        CachedOutput(int slot, Transaction.Output output) {
+            this.slot = slot;
+            this.output = output;
+        }
+    }
+}
@@ -0,0 +1,62 @@
+import java.util.ArrayList;
+
+/**
+ * An append-only binary Merkle tree over SHA-256 leaf hashes. Unlike in Bitcoin, the last node of
+ * a level with an odd number of nodes is promoted to the next level as it is rather than paired
+ * with itself, so that repeating the last leaves cannot give a different list of leaves the same
+ * root (CVE-2012-2459). Appending a leaf only recomputes the nodes on the path from that leaf up
+ * to the root.
+ */
+public class MerkleTree {
+
+    public static final int HASH_SIZE = 32;
+
+    /** {@code levels.get(0)} holds the leaves, the last level holds just the root */
+    private ArrayList<ArrayList<byte[]>> levels;
+
+    /** Creates an empty Merkle tree */
+    public MerkleTree() {
+        levels = new ArrayList<ArrayList<byte[]>>();
+        levels.add(new ArrayList<byte[]>());
+    }
+
+    /** Appends {@code leaf} to the tree and updates the path from it to the root */
+    public void addLeaf(byte[] leaf) {
+        ArrayList<byte[]> leaves = levels.get(0);
+        leaves.add(leaf.clone());
+        int index = leaves.size() - 1;
+        for (int depth = 0; levels.get(depth).size() > 1; depth++) {
+            ArrayList<byte[]> nodes = levels.get(depth);
+            int left = index & ~1;
+            byte[] leftNode = nodes.get(left);
+            byte[] parent = left + 1 < nodes.size()
+                    ? HashService.sha256(leftNode, nodes.get(left + 1)) : leftNode;
+
+            if (depth + 1 == levels.size())
+                levels.add(new ArrayList<byte[]>());
+            ArrayList<byte[]> parents = levels.get(depth + 1);
+            index >>= 1;
+            if (index < parents.size())
+                parents.set(index, parent);
+            else
+                parents.add(parent);
+        }
+    }
+
+    /** @return the number of leaves in the tree */
+    public int size() {
+        return levels.get(0).size();
+    }
+
+    /** @return the leaf at position {@code index} */
+    public byte[] getLeaf(int index) {
+        return levels.get(0).get(index);
+    }
+
+    /** @return the root of the tree, or {@code HASH_SIZE} zero bytes if the tree is empty */
+    public byte[] getRoot() {
+        if (size() == 0)
+            return new byte[HASH_SIZE];
+        return levels.get(levels.size() - 1).get(0).clone();
+    }
+}
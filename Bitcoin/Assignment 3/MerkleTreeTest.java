@@ -0,0 +1,124 @@
+import java.security.GeneralSecurityException;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Checks that a {@link MerkleTree} built leaf by leaf has the root of one built level by level,
+ * that repeating the last leaves changes the root, and that a {@link Block} keeps its Merkle root
+ * in step with its transactions. Throws {@link IllegalStateException} on the first failure.
+ *
+ * <p>
+ * Usage: {@code java MerkleTreeTest}
+ */
+public class MerkleTreeTest {
+
+    public static void main(String[] args) throws GeneralSecurityException {
+        testIncrementalRoot();
+        testRepeatedLeavesChangeRoot();
+
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(1024);
+        testBlockRoot(generator.generateKeyPair().getPublic());
+        System.out.println("MerkleTreeTest passed");
+    }
+
+    private static void testIncrementalRoot() {
+        MerkleTree tree = new MerkleTree();
+        List<byte[]> leaves = new ArrayList<byte[]>();
+        for (int i = 0; i < 40; i++) {
+            byte[] leaf = leaf(i);
+            tree.addLeaf(leaf);
+            leaves.add(leaf);
+            check(Arrays.equals(tree.getRoot(), root(leaves)), "wrong root for " + (i + 1));
+        }
+    }
+
+    private static void testRepeatedLeavesChangeRoot() {
+        MerkleTree three = new MerkleTree();
+        MerkleTree four = new MerkleTree();
+        for (int i = 0; i < 3; i++) {
+            three.addLeaf(leaf(i));
+            four.addLeaf(leaf(i));
+        }
+        four.addLeaf(leaf(2));
+        check(!Arrays.equals(three.getRoot(), four.getRoot()),
+              "[a, b, c, c] has the root of [a, b, c]");
+
+        MerkleTree six = new MerkleTree();
+        MerkleTree five = new MerkleTree();
+        for (int i = 0; i < 5; i++) {
+            five.addLeaf(leaf(i));
+            six.addLeaf(leaf(i));
+        }
+        six.addLeaf(leaf(4));
+        check(!Arrays.equals(five.getRoot(), six.getRoot()),
+              "repeated fifth leaf has the same root");
+    }
+
+    private static void testBlockRoot(PublicKey key) {
+        Block block = new Block(new byte[32], key);
+        List<Transaction> txs = new ArrayList<Transaction>();
+        for (int i = 0; i < 3; i++) {
+            Transaction tx = new Transaction();
+            tx.addInput(leaf(i), 0);
+            tx.addOutput(i, key);
+            tx.seal();
+            block.addTransaction(tx);
+            txs.add(tx);
+        }
+        byte[] root = block.getMerkleRoot();
+        check(Arrays.equals(root, rootOf(block.getCoinbase(), txs)), "wrong block root");
+
+        block.getTransactions().remove(1);
+        txs.remove(1);
+        check(Arrays.equals(block.getMerkleRoot(), rootOf(block.getCoinbase(), txs)),
+              "root not updated after the list changed");
+
+        // An unsealed transaction may still be finalized with different contents.
+        Transaction late = new Transaction();
+        late.addInput(leaf(9), 0);
+        block.addTransaction(late);
+        block.getMerkleRoot();
+        late.addOutput(1, key);
+        late.finalize();
+        txs.add(late);
+        check(Arrays.equals(block.getMerkleRoot(), rootOf(block.getCoinbase(), txs)),
+              "root not updated after a transaction changed");
+    }
+
+    private static byte[] rootOf(Transaction coinbase, List<Transaction> txs) {
+        List<byte[]> leaves = new ArrayList<byte[]>();
+        leaves.add(coinbase.getHash());
+        for (Transaction tx : txs)
+            leaves.add(tx.getHash());
+        return root(leaves);
+    }
+
+    /** @return the root computed a level at a time, promoting the last node of odd levels */
+    private static byte[] root(List<byte[]> leaves) {
+        List<byte[]> level = leaves;
+        while (level.size() > 1) {
+            List<byte[]> parents = new ArrayList<byte[]>();
+            for (int i = 0; i < level.size(); i += 2) {
+                if (i + 1 < level.size())
+                    parents.add(HashService.sha256(level.get(i), level.get(i + 1)));
+                else
+                    parents.add(level.get(i));
+            }
+            level = parents;
+        }
+        return level.get(0);
+    }
+
+    private static byte[] leaf(int i) {
+        return HashService.sha256(new byte[] { (byte) i });
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition)
+            throw new IllegalStateException(message);
+    }
+}
@@ -0,0 +1,271 @@
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A registry of named metrics shared by the whole process: counters, e.g. of the transactions
+ * rejected for each reason; latency histograms, one per operation; and gauges holding the last
+ * value set, e.g. the size of the UTXO pool. Nothing is recorded until metrics are enabled, and
+ * callers time operations with {@link #startTimer()}, which does not read the clock while they are
+ * disabled, so that disabled metrics cost little more than a volatile read per operation.
+ */
+public class Metrics {
+
+    private static volatile boolean enabled;
+
+    private static final ConcurrentHashMap<String, LongAdder> counters =
+        new ConcurrentHashMap<String, LongAdder>();
+    private static final ConcurrentHashMap<String, Histogram> histograms =
+        new ConcurrentHashMap<String, Histogram>();
+    private static final ConcurrentHashMap<String, AtomicLong> gauges =
+        new ConcurrentHashMap<String, AtomicLong>();
+
+    /** @return true if metrics are being recorded */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /** Starts or stops recording metrics; the metrics recorded so far are kept */
+    public static void setEnabled(boolean enabled) {
+        Metrics.enabled = enabled;
+    }
+
+    /** Adds one to the counter {@code name} */
+    public static void increment(String name) {
+        add(name, 1);
+    }
+
+    /** Adds {@code delta} to the counter {@code name} */
+    public static void add(String name, long delta) {
+        if (!enabled)
+            return;
+        LongAdder counter = counters.get(name);
+        if (counter == null) {
+            LongAdder added = new LongAdder();
+            counter = counters.putIfAbsent(name, added);
+            if (counter == null)
+                counter = added;
+        }
+        counter.add(delta);
+    }
+
+    /** Sets the gauge {@code name} to {@code value} */
+    public static void setGauge(String name, long value) {
+        if (!enabled)
+            return;
+        AtomicLong gauge = gauges.get(name);
+        if (gauge == null) {
+            AtomicLong added = new AtomicLong();
+            gauge = gauges.putIfAbsent(name, added);
+            if (gauge == null)
+                gauge = added;
+        }
+        gauge.set(value);
+    }
+
+    /** @return the time to pass to {@link #recordLatency}, or 0 if metrics are disabled */
+    public static long startTimer() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Records the time since {@code start}, as returned by {@link #startTimer()}, in the histogram
+     * {@code name}. Does nothing if metrics were disabled when the timer started.
+     */
+    public static void recordLatency(String name, long start) {
+        if (!enabled || start == 0)
+            return;
+        Histogram histogram = histograms.get(name);
+        if (histogram == null) {
+            Histogram added = new Histogram();
+            histogram = histograms.putIfAbsent(name, added);
+            if (histogram == null)
+                histogram = added;
+        }
+        histogram.record(System.nanoTime() - start);
+    }
+
+    /** Forgets every metric recorded so far */
+    public static void reset() {
+        counters.clear();
+        histograms.clear();
+        gauges.clear();
+    }
+
+    /** @return a copy of the metrics recorded so far */
+    public static Snapshot snapshot() {
+        Map<String, Long> counterValues = new TreeMap<String, Long>();
+        for (Map.Entry<String, LongAdder> entry : counters.entrySet())
+            counterValues.put(entry.getKey(), entry.getValue().sum());
+        Map<String, Long> gaugeValues = new TreeMap<String, Long>();
+        for (Map.Entry<String, AtomicLong> entry : gauges.entrySet())
+            gaugeValues.put(entry.getKey(), entry.getValue().get());
+        Map<String, HistogramSnapshot> histogramValues = new TreeMap<String, HistogramSnapshot>();
+        for (Map.Entry<String, Histogram> entry : histograms.entrySet())
+            histogramValues.put(entry.getKey(), entry.getValue().snapshot());
+        return new Snapshot(counterValues, gaugeValues, histogramValues);
+    }
+
+    /** @return the metrics recorded so far as text, one metric per line, sorted by name */
+    public static String dump() {
+        return snapshot().toString();
+    }
+
+    /** Latencies counted in buckets of powers of two nanoseconds */
+    private static final class Histogram {
+        /** bucket {@code b} counts latencies of at least 2^(b-1) and less than 2^b nanoseconds */
+        final LongAdder[] buckets = new LongAdder[Long.SIZE];
+        final LongAdder totalNanos = new LongAdder();
+        final AtomicLong maxNanos = new AtomicLong();
+
+        Histogram() {
+            for (int b = 0; b < buckets.length; b++)
+                buckets[b] = new LongAdder();
+        }
+
+        void record(long nanos) {
+            if (nanos < 0)
+                nanos = 0;
+            buckets[Math.min(Long.SIZE - Long.numberOfLeadingZeros(nanos), Long.SIZE - 1)]
+                .increment();
+            totalNanos.add(nanos);
+            long max = maxNanos.get();
+            while (nanos > max && !maxNanos.compareAndSet(max, nanos))
+                max = maxNanos.get();
+        }
+
+        HistogramSnapshot snapshot() {
+            long[] counts = new long[buckets.length];
+            for (int b = 0; b < counts.length; b++)
+                counts[b] = buckets[b].sum();
+            return new HistogramSnapshot(counts, totalNanos.sum(), maxNanos.get());
+        }
+    }
+
+    /** A copy of a latency histogram */
+    public static final class HistogramSnapshot {
+        private final long[] buckets;
+        private final long count;
+        private final long totalNanos;
+        private final long maxNanos;
+
+        HistogramSnapshot(long[] buckets, long totalNanos, long maxNanos) {
+            this.buckets = buckets;
+            long count = 0;
+            for (long n : buckets)
+                count += n;
+            this.count = count;
+            this.totalNanos = totalNanos;
+            this.maxNanos = maxNanos;
+        }
+
+        /** @return the number of latencies recorded */
+        public long getCount() {
+            return count;
+        }
+
+        /** @return the mean latency in nanoseconds, or 0 if none were recorded */
+        public double getMeanNanos() {
+            return count == 0 ? 0 : (double) totalNanos / count;
+        }
+
+        /** @return the longest latency recorded in nanoseconds */
+        public long getMaxNanos() {
+            return maxNanos;
+        }
+
+        /**
+         * @return an upper bound, within a factor of two, on the latency in nanoseconds below which
+         *         a fraction {@code quantile} of the recorded latencies fall
+         */
+        public long getPercentileNanos(double quantile) {
+            long rank = (long) Math.ceil(quantile * count);
+            long seen = 0;
+            for (int b = 0; b < buckets.length; b++) {
+                seen += buckets[b];
+                if (seen >= rank && seen > 0)
+                    return Math.min(b == 0 ? 0 : (1L << b) - 1, maxNanos);
+            }
+            return maxNanos;
+        }
+
+        /** @return the number of latencies counted in each power of two bucket */
+        public long[] getBuckets() {
+            return Arrays.copyOf(buckets, buckets.length);
+        }
+    }
+
+    /** A copy of every metric, taken at one time */
+    public static final class Snapshot {
+        private final Map<String, Long> counters;
+        private final Map<String, Long> gauges;
+        private final Map<String, HistogramSnapshot> histograms;
+
+        Snapshot(Map<String, Long> counters, Map<String, Long> gauges,
+                 Map<String, HistogramSnapshot> histograms) {
+            this.counters = Collections.unmodifiableMap(counters);
+            this.gauges = Collections.unmodifiableMap(gauges);
+            this.histograms = Collections.unmodifiableMap(histograms);
+        }
+
+        /** @return the value of the counter {@code name}, or 0 if it has not been recorded */
+        public long getCounter(String name) {
+            Long value = counters.get(name);
+            return value != null ? value : 0;
+        }
+
+        /** @return the value of the gauge {@code name}, or 0 if it has not been set */
+        public long getGauge(String name) {
+            Long value = gauges.get(name);
+            return value != null ? value : 0;
+        }
+
+        /** @return the histogram {@code name}, or null if it has not been recorded */
+        public HistogramSnapshot getHistogram(String name) {
+            return histograms.get(name);
+        }
+
+        /** @return the counters by name, sorted */
+        public Map<String, Long> getCounters() {
+            return counters;
+        }
+
+        /** @return the gauges by name, sorted */
+        public Map<String, Long> getGauges() {
+            return gauges;
+        }
+
+        /** @return the histograms by name, sorted */
+        public Map<String, HistogramSnapshot> getHistograms() {
+            return histograms;
+        }
+
+        /** @return the metrics as text, one per line, with latencies in microseconds */
+        @Override
+        public String toString() {
+            StringBuilder text = new StringBuilder();
+            for (Map.Entry<String, Long> entry : counters.entrySet())
+                text.append("counter ").append(entry.getKey()).append(' ')
+                    .append(entry.getValue()).append('\n');
+            for (Map.Entry<String, Long> entry : gauges.entrySet())
+                text.append("gauge ").append(entry.getKey()).append(' ')
+                    .append(entry.getValue()).append('\n');
+            for (Map.Entry<String, HistogramSnapshot> entry : histograms.entrySet()) {
+                HistogramSnapshot h = entry.getValue();
+                text.append(String.format(Locale.ROOT,
+                                          "histogram %s count=%d mean=%.1fus p50<=%.1fus "
+                                          + "p99<=%.1fus max=%.1fus\n",
+                                          entry.getKey(), h.getCount(), h.getMeanNanos() / 1e3,
+                                          h.getPercentileNanos(0.5) / 1e3,
+                                          h.getPercentileNanos(0.99) / 1e3,
+                                          h.getMaxNanos() / 1e3));
+            }
+            return text.toString();
+        }
+    }
+}
@@ -0,0 +1,113 @@
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+import java.util.Locale;
+
+/**
+ * Checks that the transaction metrics count each transaction a handler decides on once, however
+ * often it is validated, and that metrics print the same in every locale. Throws
+ * {@link IllegalStateException} on the first failure.
+ *
+ * <p>
+ * Usage: {@code java MetricsTest}
+ */
+public class MetricsTest {
+
+    public static void main(String[] args) throws GeneralSecurityException {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(1024);
+        KeyPair owner = generator.generateKeyPair();
+
+        Metrics.setEnabled(true);
+        try {
+            testVerdictsAreCountedOnce(owner);
+            testSubmitCountsUnparkedRejections(owner);
+            testLocale();
+        } finally {
+            Metrics.setEnabled(false);
+            Metrics.reset();
+        }
+        System.out.println("MetricsTest passed");
+    }
+
+    private static void testVerdictsAreCountedOnce(KeyPair owner) throws GeneralSecurityException {
+        Metrics.reset();
+        Transaction root = new Transaction(10, owner.getPublic());
+        UTXOPool pool = new UTXOPool();
+        pool.addUTXO(new UTXO(root.getHash(), 0), root.getOutput(0));
+        Transaction tx = new Transaction();
+        tx.addInput(root.getHash(), 0);
+        tx.addOutput(9, owner.getPublic());
+        Signature signature = Signature.getInstance("SHA256withRSA");
+        signature.initSign(owner.getPrivate());
+        signature.update(tx.getRawDataToSign(0));
+        tx.addSignature(signature.sign(), 0);
+        tx.finalize();
+
+        TxHandler handler = new TxHandler(pool);
+        // Checks that decide nothing are not counted.
+        for (int i = 0; i < 3; i++)
+            check(handler.isValidTx(tx), "valid transaction rejected");
+        check(Metrics.snapshot().getCounter("tx.accepted") == 0, "check counted as accepted");
+
+        handler.handleTxs(new Transaction[] { tx, tx });
+        Metrics.Snapshot snapshot = Metrics.snapshot();
+        check(snapshot.getCounter("tx.accepted") == 1, "accepted counted more than once");
+        check(snapshot.getCounter("tx.rejected.utxo") == 1, "double spend not counted");
+        check(snapshot.getHistogram("tx.validate").getCount() == 2, "validations not timed");
+    }
+
+    /** A transaction claiming a present output twice is not an orphan, so it is rejected */
+    private static void testSubmitCountsUnparkedRejections(KeyPair owner)
+            throws GeneralSecurityException {
+        Metrics.reset();
+        Transaction root = new Transaction(10, owner.getPublic());
+        UTXOPool pool = new UTXOPool();
+        pool.addUTXO(new UTXO(root.getHash(), 0), root.getOutput(0));
+        Transaction twice = new Transaction();
+        twice.addInput(root.getHash(), 0);
+        twice.addInput(root.getHash(), 0);
+        twice.addOutput(15, owner.getPublic());
+        for (int i = 0; i < twice.numInputs(); i++) {
+            Signature signature = Signature.getInstance("SHA256withRSA");
+            signature.initSign(owner.getPrivate());
+            signature.update(twice.getRawDataToSign(i));
+            twice.addSignature(signature.sign(), i);
+        }
+        twice.finalize();
+
+        TxHandler handler = new TxHandler(pool);
+        check(handler.submit(twice).length == 0, "output claimed twice admitted");
+        check(handler.getOrphanPool().size() == 0, "output claimed twice parked");
+        check(Metrics.snapshot().getCounter("tx.rejected.utxo") == 1, "rejection not counted");
+
+        // With no room for orphans, a transaction with an unknown parent is rejected too.
+        Transaction orphan = new Transaction();
+        orphan.addInput(new Transaction(3, owner.getPublic()).getHash(), 0);
+        orphan.addSignature(new byte[] { 1 }, 0);
+        orphan.addOutput(1, owner.getPublic());
+        orphan.finalize();
+        new TxHandler(pool, 0).submit(orphan);
+        check(Metrics.snapshot().getCounter("tx.rejected.utxo") == 2, "dropped orphan not counted");
+    }
+
+    private static void testLocale() {
+        Locale locale = Locale.getDefault();
+        Locale.setDefault(Locale.GERMANY);
+        try {
+            Metrics.reset();
+            Metrics.recordLatency("op", Metrics.startTimer());
+            String text = Metrics.snapshot().toString();
+            check(text.contains("mean=") && !text.matches("(?s).*mean=\\d+,\\d.*"),
+                  "locale dependent output: " + text);
+        } finally {
+            Locale.setDefault(locale);
+        }
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition)
+            throw new IllegalStateException(message);
+    }
+}
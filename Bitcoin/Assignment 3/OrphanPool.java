@@ -0,0 +1,114 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A bounded pool of orphan transactions: transactions claiming outputs that are not in the UTXO
+ * pool yet, indexed by each missing output so that they can be released as soon as a transaction
+ * creating it is admitted. When the pool is full, the oldest orphan is evicted. The pool is not
+ * thread-safe.
+ */
+public class OrphanPool {
+
+    public static final int DEFAULT_CAPACITY = 100;
+
+    private static final class Orphan {
+        final Transaction tx;
+        final List<UTXO> missing;
+
+        Orphan(Transaction tx, List<UTXO> missing) {
+            this.tx = tx;
+            this.missing = missing;
+        }
+    }
+
+    private final int capacity;
+    /** The orphans by hash, oldest first */
+    private final LinkedHashMap<ByteArrayWrapper, Orphan> orphans =
+        new LinkedHashMap<ByteArrayWrapper, Orphan>();
+    /** The hashes of the orphans waiting for each missing output */
+    private final Map<UTXO, List<ByteArrayWrapper>> waiting =
+        new HashMap<UTXO, List<ByteArrayWrapper>>();
+
+    /** Creates a pool holding up to {@link #DEFAULT_CAPACITY} orphans */
+    public OrphanPool() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /** Creates a pool holding up to {@code capacity} orphans */
+    public OrphanPool(int capacity) {
+        if (capacity < 0)
+            throw new IllegalArgumentException("negative capacity: " + capacity);
+        this.capacity = capacity;
+    }
+
+    /**
+     * Adds {@code tx}, which waits for the outputs {@code missing}, evicting the oldest orphan if
+     * the pool is full.
+     *
+     * @return false if {@code tx} has no hash, waits for nothing or is already in the pool
+     */
+    public boolean add(Transaction tx, List<UTXO> missing) {
+        if (capacity == 0 || tx.getHash() == null || missing.isEmpty())
+            return false;
+        ByteArrayWrapper hash = new ByteArrayWrapper(tx.getHash());
+        if (orphans.containsKey(hash))
+            return false;
+        if (orphans.size() == capacity)
+            remove(orphans.keySet().iterator().next());
+        orphans.put(hash, new Orphan(tx, missing));
+        for (UTXO utxo : missing) {
+            List<ByteArrayWrapper> hashes = waiting.get(utxo);
+            if (hashes == null) {
+                hashes = new ArrayList<ByteArrayWrapper>(1);
+                waiting.put(utxo, hashes);
+            }
+            hashes.add(hash);
+        }
+        return true;
+    }
+
+    /**
+     * Removes the orphans waiting for any output of the transaction with hash {@code txHash},
+     * which has {@code numOutputs} outputs.
+     *
+     * @return the removed orphans, in the order of the first output each was waiting for
+     */
+    public List<Transaction> release(byte[] txHash, int numOutputs) {
+        Set<ByteArrayWrapper> hashes = new LinkedHashSet<ByteArrayWrapper>();
+        for (int i = 0; i < numOutputs && !waiting.isEmpty(); i++) {
+            List<ByteArrayWrapper> waiters = waiting.get(new UTXO(txHash, i));
+            if (waiters != null)
+                hashes.addAll(waiters);
+        }
+        List<Transaction> released = new ArrayList<Transaction>(hashes.size());
+        for (ByteArrayWrapper hash : hashes)
+            released.add(remove(hash).tx);
+        return released;
+    }
+
+    /** @return true if the pool holds the transaction with hash {@code txHash} */
+    public boolean contains(byte[] txHash) {
+        return orphans.containsKey(new ByteArrayWrapper(txHash));
+    }
+
+    /** @return the number of orphans in the pool */
+    public int size() {
+        return orphans.size();
+    }
+
+    private Orphan remove(ByteArrayWrapper hash) {
+        Orphan orphan = orphans.remove(hash);
+        for (UTXO utxo : orphan.missing) {
+            List<ByteArrayWrapper> hashes = waiting.get(utxo);
+            hashes.remove(hash);
+            if (hashes.isEmpty())
+                waiting.remove(utxo);
+        }
+        return orphan;
+    }
+}
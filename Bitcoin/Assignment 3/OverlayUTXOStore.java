@@ -0,0 +1,99 @@
+import java.util.ArrayList;
+import java.util.Spliterator;
+
+/**
+ * A UTXO store layered over another store that it never changes: UTXOs added and removed through
+ * it are kept on the heap in front of the base store, so that {@link #copy()} only copies the
+ * changes made since the overlay was created. This gives a pool over a {@link MappedUTXOStore}
+ * that can be changed and copied without copying the file.
+ *
+ * <p>
+ * The base store must not change while the overlay is in use. A spliterator traverses a list of
+ * the UTXOs made when it is created.
+ */
+public class OverlayUTXOStore implements UTXOStore {
+
+    private final UTXOStore base;
+    /** UTXOs added through the overlay, which hide any in the base store */
+    private UTXOTable added;
+    /** UTXOs of the base store removed through the overlay, mapped to their outputs */
+    private UTXOTable removed;
+    private int size;
+
+    /** Creates a store holding the UTXOs in {@code base}, which it does not change */
+    public OverlayUTXOStore(UTXOStore base) {
+        this(base, new UTXOTable(), new UTXOTable(), base.size());
+    }
+
+    private OverlayUTXOStore(UTXOStore base, UTXOTable added, UTXOTable removed, int size) {
+        this.base = base;
+        this.added = added;
+        this.removed = removed;
+        this.size = size;
+    }
+
+    @Override
+    public Transaction.Output get(byte[] txHash, int index) {
+        Transaction.Output output = added.get(txHash, index);
+        if (output != null || removed.contains(txHash, index))
+            return output;
+        return base.get(txHash, index);
+    }
+
+    @Override
+    public boolean contains(byte[] txHash, int index) {
+        if (added.contains(txHash, index))
+            return true;
+        return !removed.contains(txHash, index) && base.contains(txHash, index);
+    }
+
+    @Override
+    public Transaction.Output put(byte[] txHash, int index, Transaction.Output output) {
+        Transaction.Output previous = get(txHash, index);
+        added.put(txHash, index, output);
+        if (previous == null)
+            size++;
+        return previous;
+    }
+
+    @Override
+    public Transaction.Output remove(byte[] txHash, int index) {
+        Transaction.Output previous = get(txHash, index);
+        if (previous == null)
+            return null;
+        added.remove(txHash, index);
+        Transaction.Output hidden = base.get(txHash, index);
+        if (hidden != null)
+            removed.put(txHash, index, hidden);
+        size--;
+        return previous;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public OverlayUTXOStore copy() {
+        return new OverlayUTXOStore(base, added.copy(), removed.copy(), size);
+    }
+
+    @Override
+    public ArrayList<UTXO> keys() {
+        ArrayList<UTXO> keys = new ArrayList<UTXO>(size);
+        for (UTXO utxo : base.keys()) {
+            byte[] txHash = utxo.getTxHash();
+            int index = utxo.getIndex();
+            if (!removed.contains(txHash, index) && !added.contains(txHash, index))
+                keys.add(utxo);
+        }
+        keys.addAll(added.keys());
+        return keys;
+    }
+
+    @Override
+    public Spliterator<UTXO> spliterator() {
+        return keys().spliterator();
+    }
+}
@@ -0,0 +1,368 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * A UTXO store kept in a hash array mapped trie, so that {@link #copy()} takes constant time: the
+ * copy shares every node with this store, and from then on each of them copies the nodes on the
+ * path to an entry before changing it. A store keeps changing the nodes it created since its last
+ * copy in place, so a long run of changes to one store does not copy the same path every time.
+ *
+ * <p>
+ * Each level of the trie consumes five bits of a 32-bit hash of the UTXO. UTXOs with equal hashes
+ * share one slot as a short list. A store is not safe for use by several threads at once, and
+ * neither is copying it, but a spliterator traverses a snapshot, so the store may change while it
+ * is in use.
+ */
+public class PersistentUTXOStore implements UTXOStore {
+
+    private static final int BITS = 5;
+    private static final int MASK = (1 << BITS) - 1;
+
+    private static final class Node {
+        /** The store allowed to change this node in place, as given by its edit token */
+        final Object edit;
+        /** Which of the 32 possible children are present */
+        int bitmap;
+        /** The children that are present, in order: either a {@code Node} or an {@code Entry} */
+        Object[] children;
+
+        Node(Object edit, int bitmap, Object[] children) {
+            this.edit = edit;
+            this.bitmap = bitmap;
+            this.children = children;
+        }
+    }
+
+    private static final class Entry {
+        final int hash;
+        final byte[] txHash;
+        final int index;
+        final Transaction.Output output;
+        /** The next entry with the same hash */
+        final Entry next;
+
+        Entry(int hash, byte[] txHash, int index, Transaction.Output output, Entry next) {
+            this.hash = hash;
+            this.txHash = txHash;
+            this.index = index;
+            this.output = output;
+            this.next = next;
+        }
+
+        boolean matches(byte[] txHash, int index) {
+            return this.index == index && Arrays.equals(this.txHash, txHash);
+        }
+    }
+
+    private Node root;
+    private int size;
+    /** Token marking the nodes this store may change in place */
+    private Object edit = new Object();
+
+    /** The output replaced or removed by the last call to put or remove */
+    private Transaction.Output previous;
+
+    /** Creates an empty store */
+    public PersistentUTXOStore() {
+        root = new Node(edit, 0, new Object[0]);
+    }
+
+    private PersistentUTXOStore(Node root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    @Override
+    public Transaction.Output get(byte[] txHash, int index) {
+        int hash = hash(txHash, index);
+        Node node = root;
+        for (int shift = 0;; shift += BITS) {
+            int bit = bit(hash, shift);
+            if ((node.bitmap & bit) == 0)
+                return null;
+            Object child = node.children[position(node, bit)];
+            if (child instanceof Node) {
+                node = (Node) child;
+                continue;
+            }
+            for (Entry entry = (Entry) child; entry != null; entry = entry.next) {
+                if (entry.matches(txHash, index))
+                    return entry.output;
+            }
+            return null;
+        }
+    }
+
+    @Override
+    public boolean contains(byte[] txHash, int index) {
+        return get(txHash, index) != null;
+    }
+
+    @Override
+    public Transaction.Output put(byte[] txHash, int index, Transaction.Output output) {
+        if (output == null)
+            throw new IllegalArgumentException("output must not be null");
+        previous = null;
+        root = put(root, 0, hash(txHash, index), txHash, index, output);
+        if (previous == null)
+            size++;
+        return previous;
+    }
+
+    @Override
+    public Transaction.Output remove(byte[] txHash, int index) {
+        previous = null;
+        Object newRoot = remove(root, 0, hash(txHash, index), txHash, index);
+        root = newRoot != null ? (Node) newRoot : new Node(edit, 0, new Object[0]);
+        if (previous != null)
+            size--;
+        return previous;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public PersistentUTXOStore copy() {
+        // Neither store may change the nodes they now share.
+        edit = new Object();
+        PersistentUTXOStore copy = new PersistentUTXOStore(root, size);
+        copy.edit = new Object();
+        return copy;
+    }
+
+    @Override
+    public ArrayList<UTXO> keys() {
+        ArrayList<UTXO> keys = new ArrayList<UTXO>(size);
+        addKeys(root, keys);
+        return keys;
+    }
+
+    private void addKeys(Node node, ArrayList<UTXO> keys) {
+        for (Object child : node.children) {
+            if (child instanceof Node) {
+                addKeys((Node) child, keys);
+            } else {
+                for (Entry entry = (Entry) child; entry != null; entry = entry.next)
+                    keys.add(new UTXO(entry.txHash, entry.index));
+            }
+        }
+    }
+
+    /** @return a spliterator over a snapshot of the store, taken in constant time as for a copy */
+    @Override
+    public Spliterator<UTXO> spliterator() {
+        edit = new Object();
+        return new TrieSpliterator(root, size);
+    }
+
+    /**
+     * Traverses a snapshot of the trie depth first from a queue of nodes and entry lists, splitting
+     * off half of the queue, or replacing a lone node by its children so that it can be split.
+     */
+    private static final class TrieSpliterator implements Spliterator<UTXO> {
+        private ArrayDeque<Object> pending = new ArrayDeque<Object>();
+        private long estimate;
+
+        TrieSpliterator(Node root, long estimate) {
+            pending.add(root);
+            this.estimate = estimate;
+        }
+
+        private TrieSpliterator(long estimate) {
+            this.estimate = estimate;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super UTXO> action) {
+            while (!pending.isEmpty()) {
+                Object next = pending.poll();
+                if (next instanceof Node) {
+                    Object[] children = ((Node) next).children;
+                    for (int i = children.length - 1; i >= 0; i--)
+                        pending.push(children[i]);
+                } else {
+                    Entry entry = (Entry) next;
+                    if (entry.next != null)
+                        pending.push(entry.next);
+                    action.accept(new UTXO(entry.txHash, entry.index));
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public Spliterator<UTXO> trySplit() {
+            if (pending.size() == 1 && pending.peek() instanceof Node) {
+                Node node = (Node) pending.poll();
+                for (Object child : node.children)
+                    pending.add(child);
+            }
+            int half = pending.size() / 2;
+            if (half == 0)
+                return null;
+            estimate >>>= 1;
+            TrieSpliterator prefix = new TrieSpliterator(estimate);
+            for (int i = 0; i < half; i++)
+                prefix.pending.add(pending.poll());
+            return prefix;
+        }
+
+        @Override
+        public long estimateSize() {
+            return estimate;
+        }
+
+        @Override
+        public int characteristics() {
+            return DISTINCT | NONNULL;
+        }
+    }
+
+    /** @return {@code node} with the UTXO added, which is {@code node} itself if it is editable */
+    private Node put(Node node, int shift, int hash, byte[] txHash, int index,
+                     Transaction.Output output) {
+        int bit = bit(hash, shift);
+        int position = position(node, bit);
+        if ((node.bitmap & bit) == 0) {
+            Object[] children = new Object[node.children.length + 1];
+            System.arraycopy(node.children, 0, children, 0, position);
+            System.arraycopy(node.children, position, children, position + 1,
+                             node.children.length - position);
+            children[position] = newEntry(hash, txHash, index, output, null);
+            Node edited = editable(node);
+            edited.bitmap |= bit;
+            edited.children = children;
+            return edited;
+        }
+
+        Object child = node.children[position];
+        Object replacement;
+        if (child instanceof Node) {
+            replacement = put((Node) child, shift + BITS, hash, txHash, index, output);
+            if (replacement == child)
+                return node;
+        } else {
+            Entry entry = (Entry) child;
+            if (entry.hash == hash) {
+                Entry rest = removeFromChain(entry, txHash, index);
+                replacement = newEntry(hash, txHash, index, output, rest);
+            } else {
+                Entry added = newEntry(hash, txHash, index, output, null);
+                replacement = split(entry, shift + BITS, added);
+            }
+        }
+        Node edited = editable(node);
+        edited.children[position] = replacement;
+        return edited;
+    }
+
+    /**
+     * @return {@code node} with the UTXO removed, which is {@code node} itself if it did not
+     *         contain the UTXO or is editable; its only remaining entry if it is not the root; or
+     *         null if it is now empty
+     */
+    private Object remove(Node node, int shift, int hash, byte[] txHash, int index) {
+        int bit = bit(hash, shift);
+        if ((node.bitmap & bit) == 0)
+            return node;
+        int position = position(node, bit);
+
+        Object child = node.children[position];
+        Object replacement;
+        if (child instanceof Node) {
+            replacement = remove((Node) child, shift + BITS, hash, txHash, index);
+        } else {
+            Entry entry = (Entry) child;
+            replacement = entry.hash == hash ? removeFromChain(entry, txHash, index) : entry;
+        }
+        if (replacement == child)
+            return node;
+
+        if (replacement == null) {
+            if (node.children.length == 1)
+                return null;
+            if (shift > 0 && node.children.length == 2
+                    && node.children[1 - position] instanceof Entry)
+                return node.children[1 - position];
+            Object[] children = new Object[node.children.length - 1];
+            System.arraycopy(node.children, 0, children, 0, position);
+            System.arraycopy(node.children, position + 1, children, position,
+                             children.length - position);
+            Node edited = editable(node);
+            edited.bitmap &= ~bit;
+            edited.children = children;
+            return edited;
+        }
+        if (shift > 0 && node.children.length == 1 && replacement instanceof Entry)
+            return replacement;
+        Node edited = editable(node);
+        edited.children[position] = replacement;
+        return edited;
+    }
+
+    /**
+     * @return the chain starting at {@code head} without the UTXO {@code (txHash, index)}, which
+     *         is {@code head} itself if the chain does not contain it
+     */
+    private Entry removeFromChain(Entry head, byte[] txHash, int index) {
+        if (head == null)
+            return null;
+        if (head.matches(txHash, index)) {
+            previous = head.output;
+            return head.next;
+        }
+        Entry rest = removeFromChain(head.next, txHash, index);
+        if (rest == head.next)
+            return head;
+        return new Entry(head.hash, head.txHash, head.index, head.output, rest);
+    }
+
+    /** @return a node at depth {@code shift} holding both entries, whose hashes differ */
+    private Node split(Entry a, int shift, Entry b) {
+        int bitA = bit(a.hash, shift);
+        int bitB = bit(b.hash, shift);
+        if (bitA == bitB)
+            return new Node(edit, bitA, new Object[] { split(a, shift + BITS, b) });
+        Object[] children = Integer.compareUnsigned(bitA, bitB) < 0 ? new Object[] { a, b }
+                                                                    : new Object[] { b, a };
+        return new Node(edit, bitA | bitB, children);
+    }
+
+    private Entry newEntry(int hash, byte[] txHash, int index, Transaction.Output output,
+                           Entry next) {
+        return new Entry(hash, txHash.clone(), index, output, next);
+    }
+
+    /** @return {@code node} if this store may change it in place, otherwise a copy it may change */
+    private Node editable(Node node) {
+        if (node.edit == edit)
+            return node;
+        return new Node(edit, node.bitmap, node.children.clone());
+    }
+
+    private static int bit(int hash, int shift) {
+        return 1 << ((hash >>> shift) & MASK);
+    }
+
+    private static int position(Node node, int bit) {
+        return Integer.bitCount(node.bitmap & (bit - 1));
+    }
+
+    private static int hash(byte[] txHash, int index) {
+        // Transaction hashes are already uniformly distributed, so a prefix of one is enough.
+        int h = index * 0x9E3779B9;
+        for (int i = 0; i < txHash.length && i < 8; i++)
+            h = 31 * h + txHash[i];
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        return h;
+    }
+}
@@ -0,0 +1,39 @@
+import java.util.List;
+
+/**
+ * Decides what a {@link TransactionPool} does with a transaction spending an output that
+ * transactions already in the pool spend.
+ */
+public interface ReplacementPolicy {
+
+    /** What to do with a conflicting transaction */
+    enum Decision {
+        /** add it and keep the transactions it conflicts with */
+        KEEP_BOTH,
+        /**
+         * add it and remove the transactions it conflicts with, and their descendants; it is not
+         * added if it spends an output of one of them
+         */
+        REPLACE,
+        /** do not add it */
+        REJECT
+    }
+
+    /** Keeps every conflicting transaction, leaving the choice to the block that includes one */
+    ReplacementPolicy KEEP_ALL = new ReplacementPolicy() {
+        @Override
+        public Decision decide(Transaction incoming, List<Transaction> conflicts,
+                               TransactionPool txPool, UTXOPool utxoPool) {
+            return Decision.KEEP_BOTH;
+        }
+    };
+
+    /**
+     * @return what to do with {@code incoming}, which spends outputs that each of
+     *         {@code conflicts} in {@code txPool} also spends. The outputs claimed by the
+     *         transactions can be looked up in {@code utxoPool}, unless it is null, or among the
+     *         transactions of {@code txPool}.
+     */
+    Decision decide(Transaction incoming, List<Transaction> conflicts, TransactionPool txPool,
+                    UTXOPool utxoPool);
+}
@@ -0,0 +1,63 @@
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+
+/**
+ * Compares the signature schemes: for each one, prints the time to sign and to verify the input of
+ * a typical transaction, and the sizes of its addresses, signatures and raw transactions.
+ *
+ * <p>
+ * Usage: {@code java SignatureBenchmark [iterations]}
+ */
+public class SignatureBenchmark {
+
+    private static final int DEFAULT_ITERATIONS = 2000;
+    private static final int WARMUP_ITERATIONS = 500;
+
+    public static void main(String[] args) throws GeneralSecurityException {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_ITERATIONS;
+
+        // Verify every signature for real, rather than measuring signature cache lookups.
+        Crypto.setSignatureCache(null);
+
+        System.out.printf("%-8s %12s %12s %10s %10s %10s%n", "scheme", "sign (us)", "verify (us)",
+                          "address", "signature", "raw tx");
+        for (SignatureScheme scheme : SignatureScheme.values()) {
+            KeyPairGenerator generator = KeyPairGenerator.getInstance(scheme.getKeyAlgorithm());
+            if (scheme == SignatureScheme.RSA)
+                generator.initialize(2048);
+            KeyPair sender = generator.generateKeyPair();
+            KeyPair recipient = generator.generateKeyPair();
+
+            // A transaction spending one output to pay two addresses.
+            Transaction tx = new Transaction();
+            tx.addInput(new byte[WireFormat.HASH_SIZE], 0);
+            tx.addOutput(10, recipient.getPublic());
+            tx.addOutput(15, sender.getPublic());
+            byte[] message = tx.getRawDataToSign(0);
+
+            byte[] signature = null;
+            for (int i = 0; i < WARMUP_ITERATIONS; i++)
+                signature = scheme.sign(sender.getPrivate(), message);
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++)
+                signature = scheme.sign(sender.getPrivate(), message);
+            double signMicros = (System.nanoTime() - start) / 1000.0 / iterations;
+
+            boolean valid = true;
+            for (int i = 0; i < WARMUP_ITERATIONS; i++)
+                valid &= Crypto.verifySignature(sender.getPublic(), message, signature);
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++)
+                valid &= Crypto.verifySignature(sender.getPublic(), message, signature);
+            double verifyMicros = (System.nanoTime() - start) / 1000.0 / iterations;
+            if (!valid)
+                throw new IllegalStateException(scheme + " rejected a valid signature");
+
+            tx.addSignature(signature, 0);
+            int addressSize = scheme.encodeAddress(sender.getPublic()).length;
+            System.out.printf("%-8s %12.1f %12.1f %10d %10d %10d%n", scheme, signMicros,
+                              verifyMicros, addressSize, signature.length, tx.getRawTxSize());
+        }
+    }
+}
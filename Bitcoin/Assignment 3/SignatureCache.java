@@ -0,0 +1,143 @@
+import java.security.PublicKey;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded cache of signatures that have already been verified successfully, so that checking the
+ * same input signature again, e.g. when a block is built from the transaction pool, costs a lookup
+ * instead of an RSA verification. Only valid signatures are cached.
+ *
+ * <p>
+ * Entries are keyed by the signer's address id together with the SHA-256 hash of the signed message
+ * and the signature. The cache is split into independently locked segments, each of which evicts
+ * its least recently used entry when full.
+ */
+public class SignatureCache {
+
+    public static final int DEFAULT_CAPACITY = 1 << 16;
+
+    private static final int SEGMENTS = 16;
+
+    private Segment[] segments;
+    private LongAdder hits = new LongAdder();
+    private LongAdder misses = new LongAdder();
+
+    /** Creates a cache holding up to {@link #DEFAULT_CAPACITY} signatures */
+    public SignatureCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /** Creates a cache holding up to {@code capacity} signatures */
+    public SignatureCache(int capacity) {
+        segments = new Segment[SEGMENTS];
+        for (int i = 0; i < SEGMENTS; i++)
+            segments[i] = new Segment(Math.max(1, capacity / SEGMENTS));
+    }
+
+    /** Identifies a (public key, message, signature) triple */
+    static class Key {
+        private int addressId;
+        private int messageLength;
+        private byte[] digest;
+
+        Key(PublicKey pubKey, byte[] message, byte[] signature) {
+            addressId = AddressTable.intern(pubKey);
+            messageLength = message.length;
+            digest = HashService.sha256(message, signature);
+        }
+
+        public boolean equals(Object other) {
+            if (other == null) {
+                return false;
+            }
+            if (getClass() != other.getClass()) {
+                return false;
+            }
+
+            Key key = (Key) other;
+            return addressId == key.addressId && messageLength == key.messageLength
+                    && Arrays.equals(digest, key.digest);
+        }
+
+        public int hashCode() {
+            // The digest is already uniformly distributed.
+            return (digest[0] << 24 | (digest[1] & 0xFF) << 16 | (digest[2] & 0xFF) << 8
+                    | (digest[3] & 0xFF)) ^ addressId;
+        }
+    }
+
+    /** @return true if {@code key} has been verified before, counting a hit or a miss */
+    boolean contains(Key key) {
+        Segment segment = segmentFor(key);
+        boolean found;
+        synchronized (segment) {
+            found = segment.get(key) != null;
+        }
+        if (found)
+            hits.increment();
+        else
+            misses.increment();
+        return found;
+    }
+
+    /** Records that the signature identified by {@code key} is valid */
+    void add(Key key) {
+        Segment segment = segmentFor(key);
+        synchronized (segment) {
+            segment.put(key, Boolean.TRUE);
+        }
+    }
+
+    /** @return the number of lookups that found a cached signature */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /** @return the number of lookups that did not find a cached signature */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /** @return the number of cached signatures */
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    /** Removes all cached signatures */
+    public void clear() {
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+    }
+
+    private Segment segmentFor(Key key) {
+        return segments[(key.hashCode() >>> 16) % SEGMENTS];
+    }
+
+    /** An access-ordered map that drops its least recently used entry once it is full */
+    private static class Segment extends LinkedHashMap<Key, Boolean> {
+        private static final long serialVersionUID = 1L;
+
+        private int capacity;
+
+        Segment(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, Boolean> eldest) {
+            return size() > capacity;
+        }
+    }
+}
@@ -0,0 +1,139 @@
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.KeyFactory;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.security.interfaces.EdECPublicKey;
+import java.security.interfaces.RSAPublicKey;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
+
+/**
+ * The signature algorithms an address can use. The scheme of an address follows from the type of
+ * its public key, and each scheme keeps one reusable {@link Signature} instance per thread.
+ */
+public enum SignatureScheme {
+
+    /** RSA with SHA-256, the scheme used by the original assignment */
+    RSA(0, "RSA", "SHA256withRSA") {
+        /** Kept as the exponent followed by the modulus, so existing transaction hashes hold */
+        @Override
+        public byte[] encodeAddress(PublicKey address) {
+            RSAPublicKey rsaAddress = (RSAPublicKey) address;
+            byte[] exponent = rsaAddress.getPublicExponent().toByteArray();
+            byte[] modulus = rsaAddress.getModulus().toByteArray();
+            byte[] encoded = Arrays.copyOf(exponent, exponent.length + modulus.length);
+            System.arraycopy(modulus, 0, encoded, exponent.length, modulus.length);
+            return encoded;
+        }
+    },
+
+    /** Ed25519, whose keys and signatures are much smaller than RSA ones */
+    ED25519(1, "Ed25519", "Ed25519") {
+        @Override
+        public byte[] encodeAddress(PublicKey address) {
+            return address.getEncoded();
+        }
+    };
+
+    private final int id;
+    private final String keyAlgorithm;
+    private final ThreadLocal<Signature> signatures;
+
+    SignatureScheme(int id, String keyAlgorithm, final String signatureAlgorithm) {
+        this.id = id;
+        this.keyAlgorithm = keyAlgorithm;
+        this.signatures = new ThreadLocal<Signature>() {
+            @Override
+            protected Signature initialValue() {
+                try {
+                    return Signature.getInstance(signatureAlgorithm);
+                } catch (NoSuchAlgorithmException x) {
+                    throw new IllegalStateException(x);
+                }
+            }
+        };
+    }
+
+    /** @return the bytes that represent {@code address} in raw transactions */
+    public abstract byte[] encodeAddress(PublicKey address);
+
+    /** @return the number identifying this scheme in encoded data */
+    public int getId() {
+        return id;
+    }
+
+    /** @return the algorithm name to use with {@link java.security.KeyPairGenerator} */
+    public String getKeyAlgorithm() {
+        return keyAlgorithm;
+    }
+
+    /**
+     * @return true if {@code signature} is a valid signature of {@code message} under
+     *         {@code pubKey}, and false if it is not or cannot be checked
+     */
+    public boolean verify(PublicKey pubKey, byte[] message, byte[] signature) {
+        if (signature == null)
+            return false;
+        Signature sig = signatures.get();
+        try {
+            sig.initVerify(pubKey);
+            sig.update(message);
+            return sig.verify(signature);
+        } catch (InvalidKeyException x) {
+            return false;
+        } catch (SignatureException x) {
+            return false;
+        }
+    }
+
+    /** @return the signature of {@code message} under {@code privateKey} */
+    public byte[] sign(PrivateKey privateKey, byte[] message) throws GeneralSecurityException {
+        Signature sig = signatures.get();
+        sig.initSign(privateKey);
+        sig.update(message);
+        return sig.sign();
+    }
+
+    /** @return the public key with the X.509 encoding {@code encoded} */
+    public PublicKey decodeAddress(byte[] encoded) throws InvalidKeySpecException {
+        try {
+            return KeyFactory.getInstance(keyAlgorithm).generatePublic(
+                new X509EncodedKeySpec(encoded));
+        } catch (NoSuchAlgorithmException x) {
+            throw new IllegalStateException(x);
+        }
+    }
+
+    /**
+     * @return the scheme of {@code address}
+     * @throws IllegalArgumentException if {@code address} is null or no scheme supports that type
+     *         of key
+     */
+    public static SignatureScheme forKey(PublicKey address) {
+        if (address == null)
+            throw new IllegalArgumentException("no key");
+        if (address instanceof RSAPublicKey)
+            return RSA;
+        if (address instanceof EdECPublicKey
+                && "Ed25519".equals(((EdECPublicKey) address).getParams().getName()))
+            return ED25519;
+        throw new IllegalArgumentException("unsupported key: " + address.getAlgorithm());
+    }
+
+    /**
+     * @return the scheme whose id is {@code id}
+     * @throws IllegalArgumentException if there is none
+     */
+    public static SignatureScheme forId(int id) {
+        for (SignatureScheme scheme : values()) {
+            if (scheme.id == id)
+                return scheme;
+        }
+        throw new IllegalArgumentException("unknown signature scheme: " + id);
+    }
+}
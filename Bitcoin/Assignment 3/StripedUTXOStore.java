@@ -0,0 +1,179 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Spliterator;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * A UTXO store that is safe for use by several threads at once. Its entries are spread over a
+ * fixed number of {@link UTXOTable} stripes, each guarded by its own lock, so that threads working
+ * on different UTXOs rarely wait for each other. {@link #putIfAbsent} and {@link #removeAll} are
+ * atomic: of several threads spending the same UTXO, exactly one succeeds.
+ *
+ * <p>
+ * {@link #size()} adds up the stripes one at a time, so it may miss changes made meanwhile;
+ * {@link #copy()}, {@link #keys()} and {@link #spliterator()} lock every stripe and see a
+ * consistent snapshot, which the spliterator then traverses while the store keeps changing.
+ */
+public class StripedUTXOStore implements UTXOStore {
+
+    public static final int DEFAULT_STRIPES = 16;
+
+    private final UTXOTable[] stripes;
+    private final ReentrantLock[] locks;
+
+    /** Creates an empty store with {@link #DEFAULT_STRIPES} stripes */
+    public StripedUTXOStore() {
+        this(DEFAULT_STRIPES);
+    }
+
+    /** Creates an empty store with {@code stripeCount} stripes, which must be a power of two */
+    public StripedUTXOStore(int stripeCount) {
+        if (Integer.bitCount(stripeCount) != 1)
+            throw new IllegalArgumentException("stripe count is not a power of two: "
+                                               + stripeCount);
+        stripes = new UTXOTable[stripeCount];
+        locks = new ReentrantLock[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            stripes[i] = new UTXOTable();
+            locks[i] = new ReentrantLock();
+        }
+    }
+
+    @Override
+    public Transaction.Output get(byte[] txHash, int index) {
+        int stripe = stripe(txHash, index);
+        locks[stripe].lock();
+        try {
+            return stripes[stripe].get(txHash, index);
+        } finally {
+            locks[stripe].unlock();
+        }
+    }
+
+    @Override
+    public boolean contains(byte[] txHash, int index) {
+        return get(txHash, index) != null;
+    }
+
+    @Override
+    public Transaction.Output put(byte[] txHash, int index, Transaction.Output output) {
+        int stripe = stripe(txHash, index);
+        locks[stripe].lock();
+        try {
+            return stripes[stripe].put(txHash, index, output);
+        } finally {
+            locks[stripe].unlock();
+        }
+    }
+
+    @Override
+    public Transaction.Output putIfAbsent(byte[] txHash, int index, Transaction.Output output) {
+        int stripe = stripe(txHash, index);
+        locks[stripe].lock();
+        try {
+            return stripes[stripe].putIfAbsent(txHash, index, output);
+        } finally {
+            locks[stripe].unlock();
+        }
+    }
+
+    @Override
+    public Transaction.Output remove(byte[] txHash, int index) {
+        int stripe = stripe(txHash, index);
+        locks[stripe].lock();
+        try {
+            return stripes[stripe].remove(txHash, index);
+        } finally {
+            locks[stripe].unlock();
+        }
+    }
+
+    /** Holds the locks of the stripes of all the UTXOs, taken in stripe order to avoid deadlock */
+    @Override
+    public Transaction.Output[] removeAll(byte[][] txHashes, int[] indices) {
+        int[] involved = new int[indices.length];
+        for (int i = 0; i < indices.length; i++)
+            involved[i] = stripe(txHashes[i], indices[i]);
+        Arrays.sort(involved);
+        int locked = 0;
+        try {
+            for (int i = 0; i < involved.length; i++) {
+                if (i == 0 || involved[i] != involved[i - 1]) {
+                    locks[involved[i]].lock();
+                    involved[locked++] = involved[i];
+                }
+            }
+            return UTXOStore.super.removeAll(txHashes, indices);
+        } finally {
+            for (int i = locked - 1; i >= 0; i--)
+                locks[involved[i]].unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (int i = 0; i < stripes.length; i++) {
+            locks[i].lock();
+            try {
+                size += stripes[i].size();
+            } finally {
+                locks[i].unlock();
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public StripedUTXOStore copy() {
+        StripedUTXOStore copy = new StripedUTXOStore(stripes.length);
+        UTXOTable[] snapshot = snapshot();
+        System.arraycopy(snapshot, 0, copy.stripes, 0, snapshot.length);
+        return copy;
+    }
+
+    @Override
+    public ArrayList<UTXO> keys() {
+        ArrayList<UTXO> keys = new ArrayList<UTXO>();
+        for (UTXOTable stripe : snapshot())
+            keys.addAll(stripe.keys());
+        return keys;
+    }
+
+    /** @return a spliterator over a snapshot of the store, which splits by stripe and by slot */
+    @Override
+    public Spliterator<UTXO> spliterator() {
+        Stream<UTXO> stream = Stream.empty();
+        for (UTXOTable stripe : snapshot())
+            stream = Stream.concat(stream, StreamSupport.stream(stripe.spliterator(), false));
+        return stream.spliterator();
+    }
+
+    /** @return copies of all the stripes, taken while holding every lock */
+    private UTXOTable[] snapshot() {
+        UTXOTable[] snapshot = new UTXOTable[stripes.length];
+        for (ReentrantLock lock : locks)
+            lock.lock();
+        try {
+            for (int i = 0; i < stripes.length; i++)
+                snapshot[i] = stripes[i].copy();
+        } finally {
+            for (int i = locks.length - 1; i >= 0; i--)
+                locks[i].unlock();
+        }
+        return snapshot;
+    }
+
+    private int stripe(byte[] txHash, int index) {
+        // Use the end of the hash, which the stripes themselves do not hash on.
+        int h = index;
+        for (int i = Math.max(0, txHash.length - 4); i < txHash.length; i++)
+            h = 31 * h + txHash[i];
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        return h & (stripes.length - 1);
+    }
+}
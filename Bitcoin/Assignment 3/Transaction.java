@@ -1,14 +1,38 @@
 
 import java.nio.ByteBuffer;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
-import java.security.interfaces.RSAPublicKey;
 import java.util.ArrayList;
 import java.util.Arrays;
-
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
+
+/**
+ * A transaction, stored as parallel arrays: the previous transaction hashes, output indices and
+ * signatures of its inputs, and the amounts and address ids of its outputs.
+ *
+ * <p>
+ * Until the transaction is sealed, the {@link Input} and {@link Output} returned for an entry are
+ * kept, and their public fields are read back into the arrays before the arrays are used, so that
+ * assigning to those fields changes the transaction as it always has. A sealed transaction returns
+ * copies instead, whose changes are not seen by it.
+ *
+ * <p>
+ * Amounts are kept as whole base units, {@link #COIN} to a coin, so that values can be added and
+ * compared exactly. A value that is not a whole number of base units is rounded to the nearest one
+ * for its amount, but the exact value is kept as well, so raw transactions and hashes are the same
+ * as when values were only stored as doubles.
+ */
 public class Transaction {
 
+    /** number of base units in one coin */
+    public static final long COIN = 100000000L;
+
+    private static final int INITIAL_CAPACITY = 2;
+
     public class Input {
         /** hash of the Transaction whose output is being used */
         public byte[] prevTxHash;
@@ -25,6 +49,13 @@ public class Transaction {
             outputIndex = index;
         }
 
+        /** an input sharing the given arrays */
+        Input(byte[] prevTxHash, int outputIndex, byte[] signature) {
+            this.prevTxHash = prevTxHash;
+            this.outputIndex = outputIndex;
+            this.signature = signature;
+        }
+
         public void addSignature(byte[] sig) {
             if (sig == null)
                 signature = null;
@@ -60,11 +91,7 @@ public class Transaction {
         }
 
         public int hashCode() {
-            int hash = 1;
-            hash = hash * 17 + Arrays.hashCode(prevTxHash);
-            hash = hash * 31 + outputIndex;
-            hash = hash * 31 + Arrays.hashCode(signature);
-            return hash;
+            return inputHashCode(prevTxHash, outputIndex, signature);
         }
     }
 
@@ -73,12 +100,47 @@ public class Transaction {
         public double value;
         /** the address or public key of the recipient */
         public PublicKey address;
+        /** the address last interned, so that it is only interned again once reassigned */
+        private volatile PublicKey internedAddress;
+        /** id of {@code internedAddress} in the {@link AddressTable} */
+        private int addressId = -1;
 
         public Output(double v, PublicKey addr) {
             value = v;
             address = addr;
         }
 
+        /** an output to the address with id {@code addressId} in the {@link AddressTable} */
+        Output(double v, int addressId) {
+            value = v;
+            address = addressId >= 0 ? AddressTable.getAddress(addressId) : null;
+            this.addressId = addressId;
+            internedAddress = address;
+        }
+
+        /**
+         * @return the value of the output in base units
+         * @throws IllegalArgumentException if {@code value} is not a number or is too large
+         */
+        public long getAmount() {
+            return toAmount(value);
+        }
+
+        /** @return the id of {@code address} in the {@link AddressTable}, or -1 if it is null */
+        public int getAddressId() {
+            PublicKey addr = address;
+            if (addr == null)
+                return -1;
+            if (addr != internedAddress) {
+                int id = AddressTable.intern(addr);
+                // Publish the id before the key it belongs to, readers check the key first.
+                addressId = id;
+                internedAddress = addr;
+                return id;
+            }
+            return addressId;
+        }
+
         public boolean equals(Object other) {
             if (other == null) {
                 return false;
@@ -91,76 +153,252 @@ public class Transaction {
 
             if (value != op.value)
                 return false;
-            if (!((RSAPublicKey) address).getPublicExponent().equals(
-                    ((RSAPublicKey) op.address).getPublicExponent()))
-                return false;
-            if (!((RSAPublicKey) address).getModulus().equals(
-                    ((RSAPublicKey) op.address).getModulus()))
+            if (getAddressId() != op.getAddressId())
                 return false;
             return true;
         }
 
         public int hashCode() {
-            int hash = 1;
-            hash = hash * 17 + (int) value * 10000;
-            hash = hash * 31 + ((RSAPublicKey) address).getPublicExponent().hashCode();
-            hash = hash * 31 + ((RSAPublicKey) address).getModulus().hashCode();
-            return hash;
+            return outputHashCode(value, getAddressId());
+        }
+    }
+
+    /**
+     * An ArrayList whose size and elements cannot be changed, so that changing the lists returned
+     * by {@link #getInputs()} and {@link #getOutputs()} fails instead of being lost.
+     */
+    private static class FixedList<E> extends ArrayList<E> {
+        private static final long serialVersionUID = 1L;
+
+        FixedList(E[] elements) {
+            super(Arrays.asList(elements));
+        }
+
+        private static UnsupportedOperationException unsupported() {
+            return new UnsupportedOperationException(
+                    "use the Transaction methods to change its inputs and outputs");
+        }
+
+        public boolean add(E e) {
+            throw unsupported();
+        }
+
+        public void add(int index, E e) {
+            throw unsupported();
+        }
+
+        public boolean addAll(Collection<? extends E> c) {
+            throw unsupported();
+        }
+
+        public boolean addAll(int index, Collection<? extends E> c) {
+            throw unsupported();
+        }
+
+        public E set(int index, E e) {
+            throw unsupported();
+        }
+
+        public E remove(int index) {
+            throw unsupported();
+        }
+
+        public boolean remove(Object o) {
+            throw unsupported();
+        }
+
+        public boolean removeAll(Collection<?> c) {
+            throw unsupported();
+        }
+
+        public boolean retainAll(Collection<?> c) {
+            throw unsupported();
+        }
+
+        public boolean removeIf(Predicate<? super E> filter) {
+            throw unsupported();
+        }
+
+        public void replaceAll(UnaryOperator<E> operator) {
+            throw unsupported();
+        }
+
+        public void sort(Comparator<? super E> c) {
+            throw unsupported();
+        }
+
+        public void clear() {
+            throw unsupported();
+        }
+
+        protected void removeRange(int fromIndex, int toIndex) {
+            throw unsupported();
+        }
+
+        public List<E> subList(int fromIndex, int toIndex) {
+            return Collections.unmodifiableList(super.subList(fromIndex, toIndex));
         }
     }
 
     /** hash of the transaction, its unique id */
     private byte[] hash;
-    private ArrayList<Input> inputs;
-    private ArrayList<Output> outputs;
+    private int numInputs;
+    private byte[][] prevTxHashes;
+    private int[] outputIndices;
+    private byte[][] signatures;
+    private int numOutputs;
+    private long[] amounts;
+    private int[] addressIds;
+    /** exact values of the outputs, only kept once one is not a whole number of base units */
+    private double[] values;
+    /** Inputs and Outputs handed out while unsealed, null until the first one is */
+    private Input[] inputViews;
+    private Output[] outputViews;
+    /** raw transaction and raw outputs section, cached once the transaction is sealed */
+    private byte[] rawTx;
+    private byte[] rawOutputs;
     private boolean coinbase;
 
     public Transaction() {
-        inputs = new ArrayList<Input>();
-        outputs = new ArrayList<Output>();
+        prevTxHashes = new byte[INITIAL_CAPACITY][];
+        outputIndices = new int[INITIAL_CAPACITY];
+        signatures = new byte[INITIAL_CAPACITY][];
+        amounts = new long[INITIAL_CAPACITY];
+        addressIds = new int[INITIAL_CAPACITY];
         coinbase = false;
     }
 
     public Transaction(Transaction tx) {
+        tx.syncInputs();
+        tx.syncOutputs();
         hash = tx.hash.clone();
-        inputs = new ArrayList<Input>(tx.inputs);
-        outputs = new ArrayList<Output>(tx.outputs);
+        numInputs = tx.numInputs;
+        prevTxHashes = tx.prevTxHashes.clone();
+        outputIndices = tx.outputIndices.clone();
+        signatures = tx.signatures.clone();
+        numOutputs = tx.numOutputs;
+        amounts = tx.amounts.clone();
+        addressIds = tx.addressIds.clone();
+        values = tx.values != null ? tx.values.clone() : null;
         coinbase = false;
     }
 
+    /** create an empty transaction, used by {@link WireFormat} to rebuild a decoded coinbase */
+    Transaction(boolean coinbase) {
+        this();
+        this.coinbase = coinbase;
+    }
+
     /** create a coinbase transaction of value {@code coin} and calls finalize on it */
     public Transaction(double coin, PublicKey address) {
+        this();
         coinbase = true;
-        inputs = new ArrayList<Input>();
-        outputs = new ArrayList<Output>();
         addOutput(coin, address);
         finalize();
     }
 
+    /**
+     * @return {@code value} coins in base units, rounded to the nearest one
+     * @throws IllegalArgumentException if {@code value} is not a number or is too large
+     */
+    public static long toAmount(double value) {
+        double units = Math.rint(value * COIN);
+        if (!(Math.abs(units) < 0x1p63))
+            throw new IllegalArgumentException("value out of range: " + value);
+        return (long) units;
+    }
+
+    /** @return {@code amount} base units in coins */
+    public static double toValue(long amount) {
+        return (double) amount / COIN;
+    }
+
     public boolean isCoinbase() {
         return coinbase;
     }
 
     public void addInput(byte[] prevTxHash, int outputIndex) {
-        Input in = new Input(prevTxHash, outputIndex);
-        inputs.add(in);
+        addInput(prevTxHash != null ? prevTxHash.clone() : null, outputIndex, null);
+    }
+
+    /** adds an input sharing the given arrays, used by {@link WireFormat} to skip copying them */
+    void addInput(byte[] prevTxHash, int outputIndex, byte[] signature) {
+        checkNotSealed();
+        if (numInputs == outputIndices.length) {
+            int capacity = Math.max(INITIAL_CAPACITY, numInputs * 2);
+            prevTxHashes = Arrays.copyOf(prevTxHashes, capacity);
+            outputIndices = Arrays.copyOf(outputIndices, capacity);
+            signatures = Arrays.copyOf(signatures, capacity);
+            if (inputViews != null)
+                inputViews = Arrays.copyOf(inputViews, capacity);
+        }
+        prevTxHashes[numInputs] = prevTxHash;
+        outputIndices[numInputs] = outputIndex;
+        signatures[numInputs] = signature;
+        numInputs++;
     }
 
+    /**
+     * @throws IllegalArgumentException if {@code value} is not a number or is too large to be
+     *         held in base units
+     */
     public void addOutput(double value, PublicKey address) {
-        Output op = new Output(value, address);
-        outputs.add(op);
+        checkNotSealed();
+        if (numOutputs == amounts.length) {
+            int capacity = Math.max(INITIAL_CAPACITY, numOutputs * 2);
+            amounts = Arrays.copyOf(amounts, capacity);
+            addressIds = Arrays.copyOf(addressIds, capacity);
+            if (values != null)
+                values = Arrays.copyOf(values, capacity);
+            if (outputViews != null)
+                outputViews = Arrays.copyOf(outputViews, capacity);
+        }
+        setValue(numOutputs, value);
+        addressIds[numOutputs] = address != null ? AddressTable.intern(address) : -1;
+        numOutputs++;
+    }
+
+    /** Sets the amount of output {@code index}, keeping {@code value} if it is not exact. */
+    private void setValue(int index, double value) {
+        long amount = toAmount(value);
+        amounts[index] = amount;
+        if (values == null && Double.compare(toValue(amount), value) != 0) {
+            values = new double[amounts.length];
+            for (int i = 0; i < numOutputs; i++)
+                values[i] = toValue(amounts[i]);
+        }
+        if (values != null)
+            values[index] = value;
+    }
+
+    private double value(int index) {
+        return values != null ? values[index] : toValue(amounts[index]);
     }
 
     public void removeInput(int index) {
-        inputs.remove(index);
+        checkNotSealed();
+        if (index < 0 || index >= numInputs)
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + numInputs);
+        int moved = numInputs - index - 1;
+        System.arraycopy(prevTxHashes, index + 1, prevTxHashes, index, moved);
+        System.arraycopy(outputIndices, index + 1, outputIndices, index, moved);
+        System.arraycopy(signatures, index + 1, signatures, index, moved);
+        if (inputViews != null) {
+            System.arraycopy(inputViews, index + 1, inputViews, index, moved);
+            inputViews[numInputs - 1] = null;
+        }
+        numInputs--;
+        prevTxHashes[numInputs] = null;
+        signatures[numInputs] = null;
     }
 
     public void removeInput(UTXO ut) {
-        for (int i = 0; i < inputs.size(); i++) {
-            Input in = inputs.get(i);
-            UTXO u = new UTXO(in.prevTxHash, in.outputIndex);
+        checkNotSealed();
+        syncInputs();
+        for (int i = 0; i < numInputs; i++) {
+            UTXO u = new UTXO(prevTxHashes[i], outputIndices[i]);
             if (u.equals(ut)) {
-                inputs.remove(i);
+                removeInput(i);
                 return;
             }
         }
@@ -168,91 +406,218 @@ public class Transaction {
 
     public byte[] getRawDataToSign(int index) {
         // ith input and all outputs
-        ArrayList<Byte> sigData = new ArrayList<Byte>();
-        if (index > inputs.size())
+        if (index > numInputs)
             return null;
-        Input in = inputs.get(index);
-        byte[] prevTxHash = in.prevTxHash;
-        ByteBuffer b = ByteBuffer.allocate(Integer.SIZE / 8);
-        b.putInt(in.outputIndex);
-        byte[] outputIndex = b.array();
-        if (prevTxHash != null)
-            for (int i = 0; i < prevTxHash.length; i++)
-                sigData.add(prevTxHash[i]);
-        for (int i = 0; i < outputIndex.length; i++)
-            sigData.add(outputIndex[i]);
-        for (Output op : outputs) {
-            ByteBuffer bo = ByteBuffer.allocate(Double.SIZE / 8);
-            bo.putDouble(op.value);
-            byte[] value = bo.array();
-            byte[] addressExponent = ((RSAPublicKey) op.address).getPublicExponent().toByteArray();
-            byte[] addressModulus = ((RSAPublicKey) op.address).getModulus().toByteArray();
-            for (int i = 0; i < value.length; i++)
-                sigData.add(value[i]);
-            for (int i = 0; i < addressExponent.length; i++)
-                sigData.add(addressExponent[i]);
-            for (int i = 0; i < addressModulus.length; i++)
-                sigData.add(addressModulus[i]);
-        }
-        byte[] sigD = new byte[sigData.size()];
-        int i = 0;
-        for (Byte sb : sigData)
-            sigD[i++] = sb;
-        return sigD;
+        checkInput(index);
+        if (isSealed()) {
+            // Only the input prefix is serialized, the outputs section is shared by every input.
+            ByteBuffer sigData = ByteBuffer.allocate(inputSize(index, false) + rawOutputs.length);
+            writeInput(sigData, index, false);
+            sigData.put(rawOutputs);
+            return sigData.array();
+        }
+        syncInputs();
+        syncOutputs();
+        byte[][] addresses = encodeAddresses();
+        ByteBuffer sigData = ByteBuffer.allocate(inputSize(index, false) + outputsSize(addresses));
+        writeInput(sigData, index, false);
+        writeOutputs(sigData, addresses);
+        return sigData.array();
     }
 
     public void addSignature(byte[] signature, int index) {
-        inputs.get(index).addSignature(signature);
+        checkNotSealed();
+        if (index >= numInputs)
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + numInputs);
+        signatures[index] = signature != null ? signature.clone() : null;
+        if (inputViews != null && inputViews[index] != null)
+            inputViews[index].signature = signatures[index];
     }
 
     public byte[] getRawTx() {
-        ArrayList<Byte> rawTx = new ArrayList<Byte>();
-        for (Input in : inputs) {
-            byte[] prevTxHash = in.prevTxHash;
-            ByteBuffer b = ByteBuffer.allocate(Integer.SIZE / 8);
-            b.putInt(in.outputIndex);
-            byte[] outputIndex = b.array();
-            byte[] signature = in.signature;
-            if (prevTxHash != null)
-                for (int i = 0; i < prevTxHash.length; i++)
-                    rawTx.add(prevTxHash[i]);
-            for (int i = 0; i < outputIndex.length; i++)
-                rawTx.add(outputIndex[i]);
-            if (signature != null)
-                for (int i = 0; i < signature.length; i++)
-                    rawTx.add(signature[i]);
-        }
-        for (Output op : outputs) {
-            ByteBuffer b = ByteBuffer.allocate(Double.SIZE / 8);
-            b.putDouble(op.value);
-            byte[] value = b.array();
-            byte[] addressExponent = ((RSAPublicKey) op.address).getPublicExponent().toByteArray();
-            byte[] addressModulus = ((RSAPublicKey) op.address).getModulus().toByteArray();
-            for (int i = 0; i < value.length; i++)
-                rawTx.add(value[i]);
-            for (int i = 0; i < addressExponent.length; i++)
-                rawTx.add(addressExponent[i]);
-            for (int i = 0; i < addressModulus.length; i++)
-                rawTx.add(addressModulus[i]);
-        }
-        byte[] tx = new byte[rawTx.size()];
-        int i = 0;
-        for (Byte b : rawTx)
-            tx[i++] = b;
-        return tx;
+        if (isSealed())
+            return rawTx.clone();
+        syncInputs();
+        syncOutputs();
+        byte[][] addresses = encodeAddresses();
+        ByteBuffer rawTx = ByteBuffer.allocate(rawTxSize(addresses));
+        writeRawTx(rawTx, addresses);
+        return rawTx.array();
     }
 
-    public void finalize() {
-        try {
-            MessageDigest md = MessageDigest.getInstance("SHA-256");
-            md.update(getRawTx());
-            hash = md.digest();
-        } catch (NoSuchAlgorithmException x) {
-            x.printStackTrace(System.err);
+    /** @return the exact length in bytes of the array returned by {@link #getRawTx()} */
+    public int getRawTxSize() {
+        if (isSealed())
+            return rawTx.length;
+        syncInputs();
+        syncOutputs();
+        return rawTxSize(encodeAddresses());
+    }
+
+    /**
+     * Writes the same bytes as {@link #getRawTx()} into {@code buf} starting at its current
+     * position, so that callers can serialize many transactions into one reusable buffer.
+     * 
+     * @throws java.nio.BufferOverflowException if fewer than {@link #getRawTxSize()} bytes remain
+     */
+    public void writeRawTx(ByteBuffer buf) {
+        if (isSealed()) {
+            buf.put(rawTx);
+            return;
+        }
+        syncInputs();
+        syncOutputs();
+        writeRawTx(buf, encodeAddresses());
+    }
+
+    /**
+     * Freezes this transaction. Its raw bytes, the outputs section shared by the signing data of
+     * every input and, if not yet computed, its hash are computed once and cached, so that
+     * {@link #getRawTx()}, {@link #getRawDataToSign(int)} and {@link #finalize()} no longer
+     * re-serialize the outputs. After sealing, the mutators of this class throw
+     * {@link IllegalStateException}, and Inputs and Outputs returned before, as well as the arrays
+     * they held, no longer change it.
+     *
+     * @throws IllegalStateException if a hash was set or computed and no longer matches the
+     *         contents, in which case this transaction is left unsealed
+     */
+    public void seal() {
+        if (isSealed())
+            return;
+        syncInputs();
+        syncOutputs();
+        byte[][] addresses = encodeAddresses();
+        ByteBuffer outputsSection = ByteBuffer.allocate(outputsSize(addresses));
+        writeOutputs(outputsSection, addresses);
+        ByteBuffer raw = ByteBuffer.allocate(rawTxSize(addresses));
+        for (int i = 0; i < numInputs; i++)
+            writeInput(raw, i, true);
+        raw.put(outputsSection.array());
+        byte[] computed = HashService.sha256(raw.array());
+        if (hash != null && !Arrays.equals(hash, computed))
+            throw new IllegalStateException("transaction hash does not match its contents");
+        if (inputViews != null) {
+            // The views handed out still hold these arrays, so keep copies out of their reach.
+            for (int i = 0; i < numInputs; i++) {
+                if (inputViews[i] != null) {
+                    prevTxHashes[i] = copyOf(prevTxHashes[i]);
+                    signatures[i] = copyOf(signatures[i]);
+                }
+            }
+        }
+        inputViews = null;
+        outputViews = null;
+        rawOutputs = outputsSection.array();
+        rawTx = raw.array();
+        hash = computed;
+    }
+
+    private static byte[] copyOf(byte[] array) {
+        return array != null ? array.clone() : null;
+    }
+
+    /** @return true if {@link #seal()} has been called on this transaction */
+    public boolean isSealed() {
+        return rawTx != null;
+    }
+
+    private void checkNotSealed() {
+        if (isSealed())
+            throw new IllegalStateException("transaction has been sealed");
+    }
+
+    /** Reads the fields of the Inputs handed out back into the input arrays. */
+    private void syncInputs() {
+        if (inputViews == null)
+            return;
+        for (int i = 0; i < numInputs; i++) {
+            Input in = inputViews[i];
+            if (in != null) {
+                prevTxHashes[i] = in.prevTxHash;
+                outputIndices[i] = in.outputIndex;
+                signatures[i] = in.signature;
+            }
         }
     }
 
+    /** Reads the fields of the Outputs handed out back into the output arrays. */
+    private void syncOutputs() {
+        if (outputViews == null)
+            return;
+        for (int i = 0; i < numOutputs; i++) {
+            Output op = outputViews[i];
+            if (op != null) {
+                setValue(i, op.value);
+                addressIds[i] = op.getAddressId();
+            }
+        }
+    }
+
+    /**
+     * Looks up each output's cached address bytes once, for sizing and writing to share.
+     *
+     * @throws IllegalArgumentException if an output has no address
+     */
+    private byte[][] encodeAddresses() {
+        byte[][] addresses = new byte[numOutputs][];
+        for (int i = 0; i < addresses.length; i++) {
+            if (addressIds[i] < 0)
+                throw new IllegalArgumentException("output " + i + " has no address");
+            addresses[i] = AddressTable.getEncoded(addressIds[i]);
+        }
+        return addresses;
+    }
+
+    private int rawTxSize(byte[][] addresses) {
+        int size = 0;
+        for (int i = 0; i < numInputs; i++)
+            size += inputSize(i, true);
+        return size + outputsSize(addresses);
+    }
+
+    private void writeRawTx(ByteBuffer buf, byte[][] addresses) {
+        for (int i = 0; i < numInputs; i++)
+            writeInput(buf, i, true);
+        writeOutputs(buf, addresses);
+    }
+
+    private int inputSize(int index, boolean withSignature) {
+        int size = Integer.SIZE / 8;
+        if (prevTxHashes[index] != null)
+            size += prevTxHashes[index].length;
+        if (withSignature && signatures[index] != null)
+            size += signatures[index].length;
+        return size;
+    }
+
+    private void writeInput(ByteBuffer buf, int index, boolean withSignature) {
+        if (prevTxHashes[index] != null)
+            buf.put(prevTxHashes[index]);
+        buf.putInt(outputIndices[index]);
+        if (withSignature && signatures[index] != null)
+            buf.put(signatures[index]);
+    }
+
+    private static int outputsSize(byte[][] addresses) {
+        int size = 0;
+        for (byte[] address : addresses)
+            size += Double.SIZE / 8 + address.length;
+        return size;
+    }
+
+    private void writeOutputs(ByteBuffer buf, byte[][] addresses) {
+        for (int i = 0; i < addresses.length; i++) {
+            buf.putDouble(value(i));
+            buf.put(addresses[i]);
+        }
+    }
+
+    public void finalize() {
+        hash = HashService.sha256(isSealed() ? rawTx : getRawTx());
+    }
+
     public void setHash(byte[] h) {
+        checkNotSealed();
         hash = h;
     }
 
@@ -260,34 +625,138 @@ public class Transaction {
         return hash;
     }
 
+    /**
+     * @return the inputs, as returned by {@link #getInput(int)}. The list cannot be changed, use
+     *         {@link #addInput(byte[], int)} and {@link #removeInput(int)} instead.
+     */
     public ArrayList<Input> getInputs() {
-        return inputs;
+        Input[] inputs = new Input[numInputs];
+        for (int i = 0; i < numInputs; i++)
+            inputs[i] = getInput(i);
+        return new FixedList<Input>(inputs);
     }
 
+    /**
+     * @return the outputs, as returned by {@link #getOutput(int)}. The list cannot be changed, use
+     *         {@link #addOutput(double, PublicKey)} instead.
+     */
     public ArrayList<Output> getOutputs() {
-        return outputs;
+        Output[] outputs = new Output[numOutputs];
+        for (int i = 0; i < numOutputs; i++)
+            outputs[i] = getOutput(i);
+        return new FixedList<Output>(outputs);
     }
 
+    /**
+     * @return input {@code index}, whose fields can be assigned to change this transaction until
+     *         it is sealed. A sealed transaction returns a copy.
+     */
     public Input getInput(int index) {
-        if (index < inputs.size()) {
-            return inputs.get(index);
+        if (index < numInputs) {
+            if (isSealed()) {
+                return new Input(copyOf(prevTxHashes[index]), outputIndices[index],
+                                 copyOf(signatures[index]));
+            }
+            if (inputViews == null)
+                inputViews = new Input[prevTxHashes.length];
+            if (inputViews[index] == null)
+                inputViews[index] =
+                    new Input(prevTxHashes[index], outputIndices[index], signatures[index]);
+            return inputViews[index];
         }
         return null;
     }
 
+    /**
+     * @return output {@code index}, whose fields can be assigned to change this transaction until
+     *         it is sealed. A sealed transaction returns a copy.
+     */
     public Output getOutput(int index) {
-        if (index < outputs.size()) {
-            return outputs.get(index);
+        if (index < numOutputs) {
+            if (isSealed())
+                return new Output(value(index), addressIds[index]);
+            if (outputViews == null)
+                outputViews = new Output[amounts.length];
+            if (outputViews[index] == null)
+                outputViews[index] = new Output(value(index), addressIds[index]);
+            return outputViews[index];
         }
         return null;
     }
 
+    /** @return the hash of the transaction whose output input {@code index} spends */
+    public byte[] getPrevTxHash(int index) {
+        checkInput(index);
+        syncInputs();
+        return prevTxHashes[index];
+    }
+
+    /** @return the index of the output that input {@code index} spends */
+    public int getOutputIndex(int index) {
+        checkInput(index);
+        syncInputs();
+        return outputIndices[index];
+    }
+
+    /** @return the signature of input {@code index} */
+    public byte[] getSignature(int index) {
+        checkInput(index);
+        syncInputs();
+        return signatures[index];
+    }
+
+    /** @return the value of output {@code index} in coins */
+    public double getValue(int index) {
+        checkOutput(index);
+        syncOutputs();
+        return value(index);
+    }
+
+    /** @return the value of output {@code index} in base units */
+    public long getAmount(int index) {
+        checkOutput(index);
+        syncOutputs();
+        return amounts[index];
+    }
+
+    /** @return the {@link AddressTable} id of the address of output {@code index} */
+    public int getAddressId(int index) {
+        checkOutput(index);
+        syncOutputs();
+        return addressIds[index];
+    }
+
     public int numInputs() {
-        return inputs.size();
+        return numInputs;
     }
 
     public int numOutputs() {
-        return outputs.size();
+        return numOutputs;
+    }
+
+    private void checkInput(int index) {
+        if (index < 0 || index >= numInputs)
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + numInputs);
+    }
+
+    private void checkOutput(int index) {
+        if (index < 0 || index >= numOutputs)
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + numOutputs);
+    }
+
+    private static int inputHashCode(byte[] prevTxHash, int outputIndex, byte[] signature) {
+        int hash = 1;
+        hash = hash * 17 + Arrays.hashCode(prevTxHash);
+        hash = hash * 31 + outputIndex;
+        hash = hash * 31 + Arrays.hashCode(signature);
+        return hash;
+    }
+
+    private static int outputHashCode(double value, int addressId) {
+        int hash = 1;
+        hash = hash * 17 + (int) value * 10000;
+        hash = hash * 31 + addressId;
+        return hash;
     }
 
     public boolean equals(Object other) {
@@ -299,12 +768,20 @@ public class Transaction {
         }
 
         Transaction tx = (Transaction) other;
+        syncInputs();
+        syncOutputs();
+        tx.syncInputs();
+        tx.syncOutputs();
         // inputs and outputs should be same
         if (tx.numInputs() != numInputs())
             return false;
 
         for (int i = 0; i < numInputs(); i++) {
-            if (!getInput(i).equals(tx.getInput(i)))
+            if (!Arrays.equals(prevTxHashes[i], tx.prevTxHashes[i]))
+                return false;
+            if (outputIndices[i] != tx.outputIndices[i])
+                return false;
+            if (!Arrays.equals(signatures[i], tx.signatures[i]))
                 return false;
         }
 
@@ -312,19 +789,21 @@ public class Transaction {
             return false;
 
         for (int i = 0; i < numOutputs(); i++) {
-            if (!getOutput(i).equals(tx.getOutput(i)))
+            if (value(i) != tx.value(i) || addressIds[i] != tx.addressIds[i])
                 return false;
         }
         return true;
     }
 
     public int hashCode() {
+        syncInputs();
+        syncOutputs();
         int hash = 1;
         for (int i = 0; i < numInputs(); i++) {
-            hash = hash * 31 + getInput(i).hashCode();
+            hash = hash * 31 + inputHashCode(prevTxHashes[i], outputIndices[i], signatures[i]);
         }
         for (int i = 0; i < numOutputs(); i++) {
-            hash = hash * 31 + getOutput(i).hashCode();
+            hash = hash * 31 + outputHashCode(value(i), addressIds[i]);
         }
         return hash;
     }
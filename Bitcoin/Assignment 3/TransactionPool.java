@@ -1,27 +1,136 @@
-
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
+/**
+ * The transactions waiting to be included in a block, together with an index from each output
+ * they claim to the transactions claiming it, so that the transactions in the pool that conflict
+ * with a newcomer are found in time proportional to its inputs. What happens to a conflicting
+ * transaction is up to the {@link ReplacementPolicy} of the pool, which by default keeps them all.
+ */
 public class TransactionPool {
 
     private HashMap<ByteArrayWrapper, Transaction> H;
+    /** The hashes of the transactions in the pool claiming each output */
+    private HashMap<UTXO, List<ByteArrayWrapper>> spenders;
+    private ReplacementPolicy policy;
 
     public TransactionPool() {
         H = new HashMap<ByteArrayWrapper, Transaction>();
+        spenders = new HashMap<UTXO, List<ByteArrayWrapper>>();
+        policy = ReplacementPolicy.KEEP_ALL;
     }
 
     public TransactionPool(TransactionPool txPool) {
         H = new HashMap<ByteArrayWrapper, Transaction>(txPool.H);
+        spenders = new HashMap<UTXO, List<ByteArrayWrapper>>();
+        for (Map.Entry<UTXO, List<ByteArrayWrapper>> entry : txPool.spenders.entrySet())
+            spenders.put(entry.getKey(), new ArrayList<ByteArrayWrapper>(entry.getValue()));
+        policy = txPool.policy;
+    }
+
+    /** Sets what happens to transactions conflicting with ones already in the pool */
+    public void setReplacementPolicy(ReplacementPolicy policy) {
+        if (policy == null)
+            throw new IllegalArgumentException("policy must not be null");
+        this.policy = policy;
+    }
+
+    public ReplacementPolicy getReplacementPolicy() {
+        return policy;
     }
 
     public void addTransaction(Transaction tx) {
+        addTransaction(tx, null);
+    }
+
+    /**
+     * Adds {@code tx} to the pool, or not, as the replacement policy decides if it conflicts with
+     * transactions in the pool. The policy can look up claimed outputs in {@code utxoPool}, unless
+     * it is null.
+     * 
+     * @return true if {@code tx} was added
+     */
+    public boolean addTransaction(Transaction tx, UTXOPool utxoPool) {
         ByteArrayWrapper hash = new ByteArrayWrapper(tx.getHash());
-        H.put(hash, tx);
+        List<Transaction> conflicts = getConflicts(tx);
+        if (!conflicts.isEmpty()) {
+            ReplacementPolicy.Decision decision = policy.decide(tx, conflicts, this, utxoPool);
+            if (decision == ReplacementPolicy.Decision.REJECT)
+                return false;
+            if (decision == ReplacementPolicy.Decision.REPLACE) {
+                Set<ByteArrayWrapper> replaced = withDescendants(conflicts);
+                // A newcomer spending an output of a transaction it replaces would lose its parent.
+                for (int i = 0; i < tx.numInputs(); i++) {
+                    byte[] prevTxHash = tx.getPrevTxHash(i);
+                    if (prevTxHash != null && replaced.contains(new ByteArrayWrapper(prevTxHash)))
+                        return false;
+                }
+                for (ByteArrayWrapper replacedHash : replaced)
+                    unindex(replacedHash, H.remove(replacedHash));
+            }
+        }
+        Transaction previous = H.put(hash, tx);
+        if (previous != null)
+            unindex(hash, previous);
+        for (int i = 0; i < tx.numInputs(); i++) {
+            if (tx.getPrevTxHash(i) == null)
+                continue;
+            UTXO utxo = new UTXO(tx.getPrevTxHash(i), tx.getOutputIndex(i));
+            List<ByteArrayWrapper> hashes = spenders.get(utxo);
+            if (hashes == null) {
+                hashes = new ArrayList<ByteArrayWrapper>(1);
+                spenders.put(utxo, hashes);
+            }
+            hashes.add(hash);
+        }
+        return true;
     }
 
     public void removeTransaction(byte[] txHash) {
         ByteArrayWrapper hash = new ByteArrayWrapper(txHash);
-        H.remove(hash);
+        Transaction tx = H.remove(hash);
+        if (tx != null)
+            unindex(hash, tx);
+    }
+
+    /** @return the hashes of {@code txs} and, transitively, of the transactions spending them */
+    private Set<ByteArrayWrapper> withDescendants(List<Transaction> txs) {
+        Set<ByteArrayWrapper> hashes = new HashSet<ByteArrayWrapper>();
+        ArrayDeque<Transaction> pending = new ArrayDeque<Transaction>(txs);
+        while (!pending.isEmpty()) {
+            Transaction tx = pending.poll();
+            if (!hashes.add(new ByteArrayWrapper(tx.getHash())))
+                continue;
+            for (int i = 0; i < tx.numOutputs(); i++)
+                pending.addAll(getSpenders(new UTXO(tx.getHash(), i)));
+        }
+        return hashes;
+    }
+
+    /**
+     * Removes the transaction with hash {@code txHash} and, transitively, every transaction in the
+     * pool claiming one of its outputs
+     */
+    public void removeWithDescendants(byte[] txHash) {
+        ArrayDeque<byte[]> pending = new ArrayDeque<byte[]>();
+        pending.add(txHash);
+        while (!pending.isEmpty()) {
+            byte[] hash = pending.poll();
+            Transaction tx = getTransaction(hash);
+            if (tx == null)
+                continue;
+            removeTransaction(hash);
+            for (int i = 0; i < tx.numOutputs(); i++) {
+                for (Transaction child : getSpenders(new UTXO(hash, i)))
+                    pending.add(child.getHash());
+            }
+        }
     }
 
     public Transaction getTransaction(byte[] txHash) {
@@ -29,10 +138,61 @@ public class TransactionPool {
         return H.get(hash);
     }
 
+    /** @return the transactions in the pool claiming the output {@code utxo} */
+    public List<Transaction> getSpenders(UTXO utxo) {
+        List<Transaction> txs = new ArrayList<Transaction>();
+        List<ByteArrayWrapper> hashes = spenders.get(utxo);
+        if (hashes != null) {
+            for (ByteArrayWrapper hash : hashes)
+                txs.add(H.get(hash));
+        }
+        return txs;
+    }
+
+    /**
+     * @return the transactions in the pool, other than {@code tx} itself, claiming any output that
+     *         {@code tx} claims, each once
+     */
+    public List<Transaction> getConflicts(Transaction tx) {
+        ByteArrayWrapper self = new ByteArrayWrapper(tx.getHash());
+        Set<ByteArrayWrapper> hashes = new LinkedHashSet<ByteArrayWrapper>();
+        for (int i = 0; i < tx.numInputs(); i++) {
+            if (tx.getPrevTxHash(i) == null)
+                continue;
+            List<ByteArrayWrapper> claimers =
+                spenders.get(new UTXO(tx.getPrevTxHash(i), tx.getOutputIndex(i)));
+            if (claimers != null)
+                hashes.addAll(claimers);
+        }
+        hashes.remove(self);
+        List<Transaction> conflicts = new ArrayList<Transaction>(hashes.size());
+        for (ByteArrayWrapper hash : hashes)
+            conflicts.add(H.get(hash));
+        return conflicts;
+    }
+
+    /** @return the number of transactions in the pool */
+    public int size() {
+        return H.size();
+    }
+
     public ArrayList<Transaction> getTransactions() {
         ArrayList<Transaction> T = new ArrayList<Transaction>();
         for (Transaction tx : H.values())
             T.add(tx);
         return T;
     }
+
+    /** Removes the inputs of {@code tx}, with hash {@code hash}, from the index */
+    private void unindex(ByteArrayWrapper hash, Transaction tx) {
+        for (int i = 0; i < tx.numInputs(); i++) {
+            if (tx.getPrevTxHash(i) == null)
+                continue;
+            UTXO utxo = new UTXO(tx.getPrevTxHash(i), tx.getOutputIndex(i));
+            List<ByteArrayWrapper> hashes = spenders.get(utxo);
+            hashes.remove(hash);
+            if (hashes.isEmpty())
+                spenders.remove(utxo);
+        }
+    }
 }
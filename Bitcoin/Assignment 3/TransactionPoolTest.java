@@ -0,0 +1,117 @@
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+
+/**
+ * Checks how a {@link TransactionPool} treats conflicting transactions under each
+ * {@link ReplacementPolicy}. Throws {@link IllegalStateException} on the first failure.
+ *
+ * <p>
+ * Usage: {@code java TransactionPoolTest}
+ */
+public class TransactionPoolTest {
+
+    private static KeyPair owner;
+
+    public static void main(String[] args) throws GeneralSecurityException {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(1024);
+        owner = generator.generateKeyPair();
+
+        testKeepAllKeepsConflicts();
+        testFeeReplacement();
+        System.out.println("TransactionPoolTest passed");
+    }
+
+    private static void testKeepAllKeepsConflicts() throws GeneralSecurityException {
+        Transaction root = new Transaction(10, owner.getPublic());
+        UTXOPool utxoPool = poolOf(root);
+        Transaction a = spend(9, true, root.getHash(), 0);
+        Transaction b = spend(8, true, root.getHash(), 0);
+
+        TransactionPool txPool = new TransactionPool();
+        check(txPool.addTransaction(a, utxoPool), "first spender rejected");
+        check(txPool.addTransaction(b, utxoPool), "conflict rejected");
+        check(txPool.getSpenders(new UTXO(root.getHash(), 0)).size() == 2, "spenders not indexed");
+    }
+
+    private static void testFeeReplacement() throws GeneralSecurityException {
+        Transaction root = new Transaction(10, owner.getPublic());
+        UTXOPool utxoPool = poolOf(root);
+        TransactionPool txPool = new TransactionPool();
+        txPool.setReplacementPolicy(new FeeReplacementPolicy());
+
+        Transaction a = spend(9, true, root.getHash(), 0);
+        Transaction child = spend(8.9, true, a.getHash(), 0);
+        check(txPool.addTransaction(a, utxoPool), "first spender rejected");
+        check(txPool.addTransaction(child, utxoPool), "child rejected");
+        check(FeeReplacementPolicy.fee(child, txPool, utxoPool) == Transaction.COIN / 10,
+              "fee of a child of a pooled transaction");
+
+        // A fee of 1.5 beats the 1.1 paid by a and its child, which are both removed.
+        Transaction b = spend(8.5, true, root.getHash(), 0);
+        check(txPool.addTransaction(b, utxoPool), "higher fee did not replace");
+        check(txPool.getTransaction(a.getHash()) == null, "conflict kept");
+        check(txPool.getTransaction(child.getHash()) == null, "descendant kept");
+        check(txPool.getConflicts(a).size() == 1, "spenders index not updated");
+
+        Transaction lower = spend(8.6, true, root.getHash(), 0);
+        check(!txPool.addTransaction(lower, utxoPool), "lower fee replaced");
+
+        Transaction unsigned = spend(1, false, root.getHash(), 0);
+        check(!txPool.addTransaction(unsigned, utxoPool), "unsigned transaction replaced");
+
+        Transaction negative = spend(new double[] { -100, 1 }, true, root.getHash(), 0);
+        check(FeeReplacementPolicy.fee(negative, txPool, utxoPool) > 0, "negative output fee");
+        check(!txPool.addTransaction(negative, utxoPool), "negative output replaced");
+
+        // Spends both b's input and b's output, so replacing b would orphan it.
+        Transaction ownParent = spend(1, true, root.getHash(), 0, b.getHash(), 0);
+        check(!txPool.addTransaction(ownParent, utxoPool), "replaced its own parent");
+        check(txPool.getTransaction(b.getHash()) == b, "rejected newcomer removed b");
+        check(txPool.getTransactions().size() == 1, "pool size " + txPool.getTransactions().size());
+    }
+
+    private static UTXOPool poolOf(Transaction coinbase) {
+        UTXOPool pool = new UTXOPool();
+        pool.addUTXO(new UTXO(coinbase.getHash(), 0), coinbase.getOutput(0));
+        return pool;
+    }
+
+    private static Transaction spend(double value, boolean signed, Object... spent)
+            throws GeneralSecurityException {
+        return spend(new double[] { value }, signed, spent);
+    }
+
+    /**
+     * @param spent pairs of a transaction hash and an output index, as {@code byte[]} and
+     *        {@code Integer}
+     * @return a finalized transaction paying {@code values} to the owner, signed by the owner if
+     *         {@code signed} and by no one otherwise
+     */
+    private static Transaction spend(double[] values, boolean signed, Object... spent)
+            throws GeneralSecurityException {
+        Transaction tx = new Transaction();
+        for (int i = 0; i < spent.length; i += 2)
+            tx.addInput((byte[]) spent[i], (Integer) spent[i + 1]);
+        for (double value : values)
+            tx.addOutput(value, owner.getPublic());
+        for (int i = 0; i < tx.numInputs(); i++) {
+            Signature signature = Signature.getInstance("SHA256withRSA");
+            signature.initSign(owner.getPrivate());
+            signature.update(tx.getRawDataToSign(i));
+            byte[] bytes = signature.sign();
+            if (!signed)
+                bytes[0]++;
+            tx.addSignature(bytes, i);
+        }
+        tx.finalize();
+        return tx;
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition)
+            throw new IllegalStateException(message);
+    }
+}
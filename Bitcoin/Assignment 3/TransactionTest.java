@@ -0,0 +1,187 @@
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.security.interfaces.RSAPublicKey;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Checks that raw transactions are byte for byte what the original list-based Transaction wrote,
+ * including for values that are not a whole number of base units, and that the Input and Output
+ * fields and lists keep their behaviour. Throws {@link IllegalStateException} on the first failure.
+ *
+ * <p>
+ * Usage: {@code java TransactionTest}
+ */
+public class TransactionTest {
+
+    public static void main(String[] args) throws GeneralSecurityException {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(1024);
+        PublicKey[] keys = new PublicKey[3];
+        for (int i = 0; i < keys.length; i++)
+            keys[i] = generator.generateKeyPair().getPublic();
+
+        testRawTxMatchesListEncoding(keys);
+        testFieldsChangeUnsealedTransaction(keys[0]);
+        testSealedTransactionReturnsCopies(keys[0]);
+        testSealDetachesEarlierViews(keys[0]);
+        testSealChecksHash(keys[0]);
+        testListsCannotBeChanged(keys[0]);
+        System.out.println("TransactionTest passed");
+    }
+
+    private static void testRawTxMatchesListEncoding(PublicKey[] keys) {
+        Random random = new Random(1);
+        double[] values = { 0, 1, 25, 0.1, 0.1 + 0.2, 1e-9, 12.345678912, -0.0, 3.5 };
+        for (int t = 0; t < 50; t++) {
+            Transaction tx = new Transaction();
+            int numInputs = random.nextInt(4);
+            int numOutputs = 1 + random.nextInt(4);
+            for (int i = 0; i < numInputs; i++) {
+                byte[] prevTxHash = new byte[32];
+                random.nextBytes(prevTxHash);
+                tx.addInput(i == 1 ? null : prevTxHash, random.nextInt(5));
+                byte[] signature = new byte[random.nextInt(3) * 64];
+                random.nextBytes(signature);
+                if (signature.length > 0)
+                    tx.addSignature(signature, i);
+            }
+            for (int i = 0; i < numOutputs; i++)
+                tx.addOutput(values[random.nextInt(values.length)], keys[random.nextInt(3)]);
+
+            byte[] expected = listRawTx(tx);
+            check(Arrays.equals(expected, tx.getRawTx()), "raw tx differs");
+            check(expected.length == tx.getRawTxSize(), "raw tx size differs");
+            tx.seal();
+            check(Arrays.equals(expected, tx.getRawTx()), "sealed raw tx differs");
+        }
+    }
+
+    private static void testFieldsChangeUnsealedTransaction(PublicKey key) {
+        Transaction tx = new Transaction();
+        tx.addInput(new byte[32], 0);
+        tx.addOutput(1, key);
+
+        tx.getOutput(0).value = 2.5;
+        tx.getInput(0).outputIndex = 7;
+        tx.getInput(0).addSignature(new byte[] { 1, 2 });
+        check(tx.getAmount(0) == 250000000L, "output value assignment lost");
+        check(tx.getOutputIndex(0) == 7, "input index assignment lost");
+        check(tx.getSignature(0).length == 2, "input signature lost");
+        check(Arrays.equals(listRawTx(tx), tx.getRawTx()), "raw tx ignores assignments");
+
+        Transaction.Output output = tx.new Output(4, key);
+        check(output.getAmount() == 4 * Transaction.COIN, "output amount");
+        check(output.getAddressId() == tx.getAddressId(0), "output address id");
+    }
+
+    private static void testSealedTransactionReturnsCopies(PublicKey key) {
+        Transaction tx = new Transaction();
+        tx.addInput(new byte[32], 0);
+        tx.addSignature(new byte[] { 1, 2, 3 }, 0);
+        tx.addOutput(1, key);
+        tx.seal();
+        byte[] raw = tx.getRawTx();
+
+        Transaction.Input input = tx.getInput(0);
+        input.prevTxHash[0] = 9;
+        input.signature[0] = 9;
+        input.outputIndex = 5;
+        tx.getOutput(0).value = 3;
+        check(Arrays.equals(raw, tx.getRawTx()), "sealed transaction changed");
+        check(tx.getSignature(0)[0] == 1, "sealed signature changed");
+        try {
+            tx.addOutput(1, key);
+            throw new IllegalStateException("sealed transaction accepted an output");
+        } catch (IllegalStateException expected) {
+            check(expected.getMessage().equals("transaction has been sealed"), "wrong failure");
+        }
+    }
+
+    private static void testSealDetachesEarlierViews(PublicKey key) {
+        Transaction tx = new Transaction();
+        tx.addInput(new byte[32], 0);
+        tx.addSignature(new byte[] { 1, 2, 3 }, 0);
+        tx.addOutput(1, key);
+        Transaction.Input input = tx.getInput(0);
+        Transaction.Output output = tx.getOutput(0);
+        tx.seal();
+        byte[] raw = tx.getRawTx();
+
+        input.prevTxHash[0] = 9;
+        input.signature[0] = 9;
+        input.outputIndex = 5;
+        output.value = 3;
+        check(Arrays.equals(raw, tx.getRawTx()), "view taken before sealing changed it");
+        check(tx.getPrevTxHash(0)[0] == 0, "sealed previous hash changed");
+        check(tx.getSignature(0)[0] == 1, "sealed signature changed");
+    }
+
+    private static void testSealChecksHash(PublicKey key) {
+        Transaction tx = new Transaction();
+        tx.addInput(new byte[32], 0);
+        tx.addOutput(1, key);
+        tx.finalize();
+        tx.getOutput(0).value = 2;
+        try {
+            tx.seal();
+            throw new IllegalStateException("stale hash sealed");
+        } catch (IllegalStateException expected) {
+            check(expected.getMessage().equals("transaction hash does not match its contents"),
+                  "wrong failure");
+        }
+        check(!tx.isSealed(), "transaction with a stale hash sealed");
+        tx.finalize();
+        byte[] hash = tx.getHash();
+        tx.seal();
+        check(tx.isSealed() && Arrays.equals(hash, tx.getHash()), "current hash not kept");
+
+        Transaction unhashed = new Transaction();
+        unhashed.addOutput(1, key);
+        unhashed.seal();
+        check(Arrays.equals(HashService.sha256(unhashed.getRawTx()), unhashed.getHash()),
+              "hash not computed when sealing");
+    }
+
+    private static void testListsCannotBeChanged(PublicKey key) {
+        Transaction tx = new Transaction();
+        tx.addInput(new byte[32], 0);
+        tx.addOutput(1, key);
+        try {
+            tx.getInputs().add(tx.new Input(new byte[32], 1));
+            throw new IllegalStateException("input list accepted an input");
+        } catch (UnsupportedOperationException expected) {
+        }
+        try {
+            tx.getOutputs().remove(0);
+            throw new IllegalStateException("output list removed an output");
+        } catch (UnsupportedOperationException expected) {
+        }
+        check(tx.numInputs() == 1 && tx.numOutputs() == 1, "lists changed the transaction");
+    }
+
+    /** The raw transaction as the list-based Transaction serialized it. */
+    private static byte[] listRawTx(Transaction tx) {
+        ByteBuffer buf = ByteBuffer.allocate(4096);
+        for (Transaction.Input in : tx.getInputs()) {
+            if (in.prevTxHash != null)
+                buf.put(in.prevTxHash);
+            buf.putInt(in.outputIndex);
+            if (in.signature != null)
+                buf.put(in.signature);
+        }
+        for (Transaction.Output op : tx.getOutputs()) {
+            buf.putDouble(op.value);
+            buf.put(((RSAPublicKey) op.address).getPublicExponent().toByteArray());
+            buf.put(((RSAPublicKey) op.address).getModulus().toByteArray());
+        }
+        return Arrays.copyOf(buf.array(), buf.position());
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition)
+            throw new IllegalStateException(message);
+    }
+}
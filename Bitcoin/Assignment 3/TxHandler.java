@@ -1,11 +1,44 @@
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 public class TxHandler {
 
+    /** The number of known parents {@link #submit} remembers */
+    public static final int MAX_KNOWN_HASHES = 10000;
+
+    /** An access-ordered set of hashes that drops its least recently used one once it is full */
+    private static class KnownHashes extends LinkedHashMap<ByteArrayWrapper, Boolean> {
+        private static final long serialVersionUID = 1L;
+
+        KnownHashes() {
+            super(16, 0.75f, true);
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<ByteArrayWrapper, Boolean> eldest) {
+            return size() > MAX_KNOWN_HASHES;
+        }
+    }
+
     private UTXOPool utxoPool;
+    private TxValidator validator = new TxValidator();
+    private OrphanPool orphanPool;
+    /**
+     * The hashes of the most recent transactions {@link #submit} admitted or spent outputs of,
+     * which it takes as known parents
+     */
+    private KnownHashes knownHashes = new KnownHashes();
 
     /**
      * Creates a public ledger whose current UTXOPool (collection of unspent transaction outputs) is
@@ -13,7 +46,16 @@ public class TxHandler {
      * constructor.
      */
     public TxHandler(UTXOPool utxoPool) {
+        this(utxoPool, OrphanPool.DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates a public ledger as {@link #TxHandler(UTXOPool)} does, which keeps up to
+     * {@code maxOrphans} transactions submitted before their parents.
+     */
+    public TxHandler(UTXOPool utxoPool, int maxOrphans) {
         this.utxoPool = new UTXOPool(utxoPool);
+        this.orphanPool = new OrphanPool(maxOrphans);
     }
 
     /**
@@ -24,88 +66,439 @@ public class TxHandler {
      * (4) all of {@code tx}s output values are non-negative, and
      * (5) the sum of {@code tx}s input values is greater than or equal to the sum of its output
      *     values; and false otherwise.
+     * The checks run as the stages of a {@link TxValidator}, which counts the rejections of each.
      */
     public boolean isValidTx(Transaction tx) {
-        
-        Set<UTXO> claimedUtxo = new HashSet<UTXO>();
-        double sumInputs = 0;
-        double sumOutputs = 0;
+        return validator.isValid(tx, utxoPool);
+    }
 
-        for (int i = 0; i < tx.numInputs(); i++) {
-            Transaction.Input input = tx.getInput(i);
+    /**
+     * Handles each epoch by receiving an unordered array of proposed transactions, checking each
+     * transaction for correctness, returning a mutually valid array of accepted transactions, and
+     * updating the current UTXO pool as appropriate. Transactions are handled in an order where
+     * each one comes after the transactions in the array whose outputs it spends, so a chain of
+     * valid transactions is accepted however it is ordered in the array.
+     */
+    public Transaction[] handleTxs(Transaction[] possibleTxs) {
+        ExecutorService executor = Crypto.getVerificationExecutor();
+        if (executor != null && Crypto.getSignatureCache() != null) {
+            preverifySignatures(possibleTxs, executor);
+        }
 
-            // Grab the output that is claimed by this input and ensure that it exists.
-            UTXO inputUtxo = new UTXO(input.prevTxHash, input.outputIndex);
-            Transaction.Output output = utxoPool.getTxOutput(inputUtxo);
-            if (output == null) {
-                return false;
+        List<Transaction> accepted = new ArrayList<Transaction>();
+        for (int i : topologicalOrder(possibleTxs)) {
+            Transaction t = possibleTxs[i];
+            long start = Metrics.startTimer();
+            TxValidator.Stage failed = validator.validate(t, utxoPool);
+            Metrics.recordLatency("tx.validate", start);
+            // Spend the UTXOs claimed by the inputs all at once. With a thread-safe pool, e.g. one
+            // on a StripedUTXOStore, this fails if another thread spent any of them since the
+            // transaction was checked, so a double spend is never accepted twice.
+            if (failed == null && utxoPool.spendAll(t) == null) {
+                failed = TxValidator.Stage.UTXO;
             }
+            TxValidator.recordVerdict(failed);
+            if (failed == null) {
+                // Add new UTXOs for the produced outputs.
+                byte[] hash = t.getHash();
+                for (int j = 0; j < t.numOutputs(); j++) {
+                    Transaction.Output output = t.getOutput(j);
+                    utxoPool.createUTXO(hash, j, output);
+                }
 
-            // Ensure that the claimed UTXO hasn't been claimed already.
-            if (claimedUtxo.contains(inputUtxo)) {
-                return false;
+                // Add this transaction to the list of accepted transactions.
+                accepted.add(t);
             }
+        }
+        return accepted.toArray(new Transaction[0]);
+    }
 
-            // Validate that the signature of the input is valid for the output.
-            if (!Crypto.verifySignature(output.address, tx.getRawDataToSign(i), input.signature)) {
-                return false;
+    /**
+     * Admits {@code tx} on its own, as it arrives, updating the current UTXO pool as
+     * {@link #handleTxs(Transaction[])} would. A well formed transaction claiming outputs that are
+     * not in the pool is kept in the orphan pool until it is evicted, or until a transaction
+     * creating one of the outputs it waits for is admitted, when it is submitted again. It is
+     * only kept if every missing output belongs to an unknown transaction: one none of whose
+     * other claimed outputs are in the pool, and which is not among the last
+     * {@link #MAX_KNOWN_HASHES} transactions this method admitted or spent an output of. The
+     * missing outputs of a known transaction have been spent or never existed, so double spends
+     * are rejected at once rather than waiting for them.
+     *
+     * <p>
+     * Unlike {@code handleTxs}, this method and the orphan pool are not thread-safe: call it from
+     * one thread at a time.
+     * 
+     * @return the admitted transactions in order: {@code tx} if it was admitted, followed by any
+     *         orphans it released, and so on
+     */
+    public Transaction[] submit(Transaction tx) {
+        List<Transaction> admitted = new ArrayList<Transaction>();
+        ArrayDeque<Transaction> pending = new ArrayDeque<Transaction>();
+        pending.add(tx);
+        while (!pending.isEmpty()) {
+            Transaction t = pending.poll();
+            long start = Metrics.startTimer();
+            TxValidator.Stage failed = validator.validate(t, utxoPool);
+            Metrics.recordLatency("tx.validate", start);
+            if (failed == null && utxoPool.spendAll(t) == null) {
+                failed = TxValidator.Stage.UTXO;
             }
+            if (failed == null) {
+                TxValidator.recordVerdict(null);
+                byte[] hash = t.getHash();
+                for (int j = 0; j < t.numOutputs(); j++) {
+                    utxoPool.createUTXO(hash, j, t.getOutput(j));
+                }
+                admitted.add(t);
+                recordAdmitted(t);
+                if (hash != null) {
+                    pending.addAll(orphanPool.release(hash, t.numOutputs()));
+                }
+            } else if (failed == TxValidator.Stage.UTXO) {
+                // A transaction that is not parked, e.g. one claiming a present output twice, is
+                // rejected for good.
+                List<UTXO> missing = missingParentOutputs(t);
+                if (missing == null || !orphanPool.add(t, missing)) {
+                    TxValidator.recordVerdict(failed);
+                }
+            } else {
+                TxValidator.recordVerdict(failed);
+            }
+        }
+        return admitted.toArray(new Transaction[0]);
+    }
 
-            // Mark the UTXO as claimed.
-            claimedUtxo.add(inputUtxo);
+    /**
+     * @return the outputs claimed by {@code tx} that are not in the current pool, or null if any
+     *         of them belongs to a known transaction, which makes {@code tx} a double spend or
+     *         otherwise invalid rather than an orphan
+     */
+    private List<UTXO> missingParentOutputs(Transaction tx) {
+        List<UTXO> missing = new ArrayList<UTXO>();
+        Set<ByteArrayWrapper> presentParents = new HashSet<ByteArrayWrapper>();
+        for (int j = 0; j < tx.numInputs(); j++) {
+            byte[] prevTxHash = tx.getPrevTxHash(j);
+            if (prevTxHash == null) {
+                return null;
+            }
+            if (utxoPool.contains(prevTxHash, tx.getOutputIndex(j))) {
+                presentParents.add(new ByteArrayWrapper(prevTxHash));
+            } else {
+                missing.add(new UTXO(prevTxHash, tx.getOutputIndex(j)));
+            }
+        }
+        for (UTXO utxo : missing) {
+            ByteArrayWrapper parent = new ByteArrayWrapper(utxo.getTxHash());
+            if (knownHashes.containsKey(parent) || presentParents.contains(parent)) {
+                return null;
+            }
+        }
+        return missing;
+    }
 
-            // Add the value of the claimed output to the total sum.
-            sumInputs += output.value;
+    // Record t and the transactions it spends outputs of as known parents of later submissions.
+    private void recordAdmitted(Transaction t) {
+        if (t.getHash() != null) {
+            knownHashes.put(new ByteArrayWrapper(t.getHash()), Boolean.TRUE);
+        }
+        for (int j = 0; j < t.numInputs(); j++) {
+            knownHashes.put(new ByteArrayWrapper(t.getPrevTxHash(j)), Boolean.TRUE);
         }
+    }
 
-        for (int i = 0; i < tx.numOutputs(); i++) {
-            // Ensure that the value of the output is non-negative.
-            double outputValue = tx.getOutput(i).value;
-            if (outputValue < 0) {
-                return false;
-            }
+    /**
+     * Handles an epoch like {@link #handleTxs(Transaction[])}, accepting the same transactions in
+     * the same order, but checks them in parallel on {@code executor}. The transactions are split
+     * into groups such that no two groups share a claimed output or a parent and child. The
+     * transactions of each group are checked in turn on one thread against a private pool holding
+     * just the outputs they claim, reading but never changing the current pool. The accepted
+     * transactions are then applied to the current pool in one serial step. This scales with the
+     * threads of {@code executor} when the transactions are mostly independent.
+     * 
+     * @return the accepted transactions, or none if the current thread is interrupted while
+     *         waiting for the checks, in which case the current pool is unchanged
+     */
+    public Transaction[] handleTxs(Transaction[] possibleTxs, ExecutorService executor) {
+        final Transaction[] txs = possibleTxs;
+        int[] order = topologicalOrder(txs);
+        final List<List<Integer>> groups = conflictGroups(txs, order);
+        final TxValidator.Stage[] failed = new TxValidator.Stage[txs.length];
 
-            // Add the value of this output to the total sum.
-            sumOutputs += outputValue;
+        // Hand out the groups round robin to a bounded number of tasks.
+        int numTasks = Math.min(groups.size(), 4 * Runtime.getRuntime().availableProcessors());
+        List<Future<?>> futures = new ArrayList<Future<?>>(numTasks);
+        try {
+            for (int t = 0; t < numTasks; t++) {
+                final int first = t;
+                final int stride = numTasks;
+                futures.add(executor.submit(new Callable<Void>() {
+                    public Void call() {
+                        for (int g = first; g < groups.size(); g += stride) {
+                            checkGroup(txs, groups.get(g), failed);
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException x) {
+            Thread.currentThread().interrupt();
+            return new Transaction[0];
+        } catch (ExecutionException x) {
+            if (x.getCause() instanceof RuntimeException)
+                throw (RuntimeException) x.getCause();
+            throw new IllegalStateException(x.getCause());
+        } finally {
+            for (Future<?> future : futures) {
+                future.cancel(true);
+            }
         }
 
-        // Ensure that the total sum of outputs is no greater than the total sum of inputs.
-        if (sumOutputs > sumInputs) {
-            return false;
+        List<Transaction> accepted = new ArrayList<Transaction>();
+        for (int i : order) {
+            Transaction t = txs[i];
+            if (failed[i] == null && utxoPool.spendAll(t) == null) {
+                failed[i] = TxValidator.Stage.UTXO;
+            }
+            TxValidator.recordVerdict(failed[i]);
+            if (failed[i] == null) {
+                byte[] hash = t.getHash();
+                for (int j = 0; j < t.numOutputs(); j++) {
+                    utxoPool.createUTXO(hash, j, t.getOutput(j));
+                }
+                accepted.add(t);
+            }
         }
+        return accepted.toArray(new Transaction[0]);
+    }
 
-        return true;
+    /**
+     * Checks the transactions of {@code group}, in order, as {@link #handleTxs(Transaction[])}
+     * would, against a private pool of the outputs they claim, setting the stage each fails in
+     * {@code failed}, which stays null for the accepted ones.
+     */
+    private void checkGroup(Transaction[] txs, List<Integer> group, TxValidator.Stage[] failed) {
+        UTXOPool pool = new UTXOPool();
+        for (int i : group) {
+            for (int j = 0; j < txs[i].numInputs(); j++) {
+                byte[] prevTxHash = txs[i].getPrevTxHash(j);
+                int outputIndex = txs[i].getOutputIndex(j);
+                Transaction.Output output = prevTxHash != null
+                                            ? utxoPool.getTxOutput(prevTxHash, outputIndex) : null;
+                if (output != null) {
+                    pool.createUTXO(prevTxHash, outputIndex, output);
+                }
+            }
+        }
+        for (int i : group) {
+            Transaction t = txs[i];
+            // This thread is already one of many, so the signatures are verified serially.
+            long start = Metrics.startTimer();
+            failed[i] = validator.validate(t, pool, null);
+            Metrics.recordLatency("tx.validate", start);
+            if (failed[i] == null && pool.spendAll(t) == null) {
+                failed[i] = TxValidator.Stage.UTXO;
+            }
+            if (failed[i] == null) {
+                for (int j = 0; j < t.numOutputs(); j++) {
+                    pool.createUTXO(t.getHash(), j, t.getOutput(j));
+                }
+            }
+        }
     }
 
     /**
-     * Handles each epoch by receiving an unordered array of proposed transactions, checking each
-     * transaction for correctness, returning a mutually valid array of accepted transactions, and
-     * updating the current UTXO pool as appropriate.
+     * Splits {@code txs} into groups such that transactions claiming the same output, a parent and
+     * a child, and transactions with the same hash are in the same group.
+     * 
+     * @return the groups, each listing its transactions in {@code order}
      */
-    public Transaction[] handleTxs(Transaction[] possibleTxs) {
-        List<Transaction> accepted = new ArrayList<Transaction>();
-        for (Transaction t : possibleTxs) {
-            if (isValidTx(t)) {
-                // Remove the UTXOs claimed by the inputs.
-                for (Transaction.Input input : t.getInputs()) {
-                    utxoPool.removeUTXO(new UTXO(input.prevTxHash, input.outputIndex));
+    static List<List<Integer>> conflictGroups(Transaction[] txs, int[] order) {
+        // A union-find forest over the transactions, with path halving.
+        int[] parent = new int[txs.length];
+        for (int i = 0; i < txs.length; i++) {
+            parent[i] = i;
+        }
+        Map<ByteArrayWrapper, Integer> producers = new HashMap<ByteArrayWrapper, Integer>();
+        Map<UTXO, Integer> spenders = new HashMap<UTXO, Integer>();
+        for (int i = 0; i < txs.length; i++) {
+            if (txs[i].getHash() != null) {
+                Integer producer = producers.putIfAbsent(new ByteArrayWrapper(txs[i].getHash()), i);
+                if (producer != null) {
+                    union(parent, producer, i);
+                }
+            }
+            for (int j = 0; j < txs[i].numInputs(); j++) {
+                byte[] prevTxHash = txs[i].getPrevTxHash(j);
+                if (prevTxHash == null) {
+                    continue;
                 }
+                Integer spender = spenders.putIfAbsent(
+                    new UTXO(prevTxHash, txs[i].getOutputIndex(j)), i);
+                if (spender != null) {
+                    union(parent, spender, i);
+                }
+            }
+        }
+        for (int i = 0; i < txs.length; i++) {
+            for (int j = 0; j < txs[i].numInputs(); j++) {
+                byte[] prevTxHash = txs[i].getPrevTxHash(j);
+                Integer producer = prevTxHash != null
+                                   ? producers.get(new ByteArrayWrapper(prevTxHash)) : null;
+                if (producer != null) {
+                    union(parent, producer, i);
+                }
+            }
+        }
 
-                // Add new UTXOs for the produced outputs.
-                byte[] hash = t.getHash();
-                for (int i = 0; i < t.numOutputs(); i++) {
-                    Transaction.Output output = t.getOutput(i);
-                    utxoPool.addUTXO(new UTXO(hash, i), output);
+        List<List<Integer>> groups = new ArrayList<List<Integer>>();
+        int[] groupOfRoot = new int[txs.length];
+        Arrays.fill(groupOfRoot, -1);
+        for (int i : order) {
+            int root = find(parent, i);
+            if (groupOfRoot[root] < 0) {
+                groupOfRoot[root] = groups.size();
+                groups.add(new ArrayList<Integer>());
+            }
+            groups.get(groupOfRoot[root]).add(i);
+        }
+        return groups;
+    }
+
+    private static int find(int[] parent, int i) {
+        while (parent[i] != i) {
+            parent[i] = parent[parent[i]];
+            i = parent[i];
+        }
+        return i;
+    }
+
+    private static void union(int[] parent, int a, int b) {
+        int rootA = find(parent, a);
+        int rootB = find(parent, b);
+        if (rootA != rootB) {
+            // Keep the smaller index as the root.
+            parent[Math.max(rootA, rootB)] = Math.min(rootA, rootB);
+        }
+    }
+
+    /**
+     * Orders {@code txs} so that every transaction comes after the ones it spends outputs of, in
+     * time linear in their inputs. Transactions are taken in array order, each one depth first
+     * after those of its parents in {@code txs} not yet taken, so an array that is already ordered
+     * keeps its order and a transaction only moves ahead of the later ones it spends outputs of.
+     * A transaction caught in a cycle, which valid ones cannot form, comes before the parent that
+     * closes the cycle.
+     * 
+     * @return the indices of {@code txs} in the order in which to handle them
+     */
+    static int[] topologicalOrder(Transaction[] txs) {
+        // The first transaction with each hash is the one whose outputs are spent.
+        Map<ByteArrayWrapper, Integer> producers = new HashMap<ByteArrayWrapper, Integer>();
+        for (int i = 0; i < txs.length; i++) {
+            if (txs[i].getHash() != null) {
+                producers.putIfAbsent(new ByteArrayWrapper(txs[i].getHash()), i);
+            }
+        }
+
+        // Find the parent in txs of each input, if any.
+        int[] firstInput = new int[txs.length + 1];
+        for (int i = 0; i < txs.length; i++) {
+            firstInput[i + 1] = firstInput[i] + txs[i].numInputs();
+        }
+        int[] inputParents = new int[firstInput[txs.length]];
+        for (int i = 0; i < txs.length; i++) {
+            for (int j = 0; j < txs[i].numInputs(); j++) {
+                byte[] prevTxHash = txs[i].getPrevTxHash(j);
+                Integer parent = prevTxHash != null
+                                 ? producers.get(new ByteArrayWrapper(prevTxHash)) : null;
+                inputParents[firstInput[i] + j] = parent != null && parent != i ? parent : -1;
+            }
+        }
+
+        // Each transaction is pushed at most once, and taken once its parents have been.
+        int[] order = new int[txs.length];
+        int taken = 0;
+        boolean[] pushed = new boolean[txs.length];
+        int[] stack = new int[txs.length];
+        int[] nextInput = Arrays.copyOf(firstInput, txs.length);
+        for (int i = 0; i < txs.length; i++) {
+            if (pushed[i]) {
+                continue;
+            }
+            pushed[i] = true;
+            int depth = 0;
+            stack[depth++] = i;
+            while (depth > 0) {
+                int tx = stack[depth - 1];
+                if (nextInput[tx] < firstInput[tx + 1]) {
+                    int parent = inputParents[nextInput[tx]++];
+                    if (parent >= 0 && !pushed[parent]) {
+                        pushed[parent] = true;
+                        stack[depth++] = parent;
+                    }
+                } else {
+                    depth--;
+                    order[taken++] = tx;
                 }
+            }
+        }
+        return order;
+    }
 
-                // Add this transaction to the list of accepted transactions.
-                accepted.add(t);
+    /**
+     * Verifies the input signatures of all of {@code possibleTxs} in parallel on {@code executor},
+     * so that the valid ones are already in the signature cache when each transaction is checked in
+     * turn. Inputs spending outputs of other transactions in the batch are included.
+     */
+    private void preverifySignatures(Transaction[] possibleTxs, ExecutorService executor) {
+        Map<ByteArrayWrapper, Transaction> batch = new HashMap<ByteArrayWrapper, Transaction>();
+        for (Transaction tx : possibleTxs) {
+            if (tx.getHash() != null) {
+                batch.put(new ByteArrayWrapper(tx.getHash()), tx);
             }
         }
-        return accepted.toArray(new Transaction[0]);
+
+        List<List<Crypto.SignatureCheck>> groups = new ArrayList<List<Crypto.SignatureCheck>>();
+        for (Transaction tx : possibleTxs) {
+            List<Crypto.SignatureCheck> checks = new ArrayList<Crypto.SignatureCheck>();
+            for (int i = 0; i < tx.numInputs(); i++) {
+                byte[] prevTxHash = tx.getPrevTxHash(i);
+                int outputIndex = tx.getOutputIndex(i);
+                byte[] signature = tx.getSignature(i);
+                if (prevTxHash == null || signature == null) {
+                    continue;
+                }
+                Transaction.Output output = utxoPool.getTxOutput(prevTxHash, outputIndex);
+                if (output == null) {
+                    Transaction parent = batch.get(new ByteArrayWrapper(prevTxHash));
+                    if (parent != null && outputIndex >= 0) {
+                        output = parent.getOutput(outputIndex);
+                    }
+                }
+                if (output != null) {
+                    checks.add(new Crypto.SignatureCheck(output.address, tx.getRawDataToSign(i),
+                                                         signature));
+                }
+            }
+            groups.add(checks);
+        }
+        Crypto.verifySignatureGroups(groups, executor);
     }
 
     public UTXOPool getUTXOPool() {
         return utxoPool;
     }
+
+    /** @return the pool of transactions submitted before their parents */
+    public OrphanPool getOrphanPool() {
+        return orphanPool;
+    }
+
+    /** @return the validator used by {@link #isValidTx}, with its per-stage rejection counts */
+    public TxValidator getValidator() {
+        return validator;
+    }
 }
@@ -0,0 +1,191 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Checks the order in which {@link TxHandler} handles a batch of transactions, that handling it
+ * in parallel accepts the same transactions as handling it sequentially, and which submitted
+ * transactions are kept as orphans. Throws
+ * {@link IllegalStateException} on the first failure.
+ *
+ * <p>
+ * Usage: {@code java TxHandlerTest}
+ */
+public class TxHandlerTest {
+
+    private static KeyPair owner;
+
+    public static void main(String[] args) throws GeneralSecurityException, IOException {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(1024);
+        owner = generator.generateKeyPair();
+
+        testOrderedBatchKeepsItsOrder();
+        testChainIsAcceptedInAnyOrder();
+        testOrphansWaitForUnknownParentsOnly();
+        testParallelMatchesSequential(new UTXOPool());
+        testParallelMatchesSequential(
+                new UTXOPool(new MappedUTXOStore(Files.createTempDirectory("utxo"), 64)));
+        System.out.println("TxHandlerTest passed");
+    }
+
+    /** A child listed before a later spender of its other input keeps that input. */
+    private static void testOrderedBatchKeepsItsOrder() throws GeneralSecurityException {
+        Transaction p0 = new Transaction(10, owner.getPublic());
+        Transaction x0 = new Transaction(20, owner.getPublic());
+        UTXOPool pool = poolOf(p0, x0);
+
+        Transaction p = spend(4, p0.getHash(), 0);
+        Transaction c = spend(23, p.getHash(), 0, x0.getHash(), 0);
+        Transaction d = spend(5, x0.getHash(), 0);
+        Transaction[] batch = { p, c, d };
+
+        int[] order = TxHandler.topologicalOrder(batch);
+        check(Arrays.equals(order, new int[] { 0, 1, 2 }), "reordered " + Arrays.toString(order));
+        Transaction[] accepted = new TxHandler(pool).handleTxs(batch);
+        check(Arrays.equals(accepted, new Transaction[] { p, c }), "wrong spender of X won");
+    }
+
+    private static void testChainIsAcceptedInAnyOrder() throws GeneralSecurityException {
+        Transaction root = new Transaction(100, owner.getPublic());
+        UTXOPool pool = poolOf(root);
+        Transaction[] chain = new Transaction[6];
+        byte[] prevTxHash = root.getHash();
+        for (int i = 0; i < chain.length; i++) {
+            chain[i] = spend(99 - i, prevTxHash, 0);
+            prevTxHash = chain[i].getHash();
+        }
+
+        Transaction[] reversed = new Transaction[chain.length];
+        for (int i = 0; i < chain.length; i++)
+            reversed[i] = chain[chain.length - 1 - i];
+        int[] order = TxHandler.topologicalOrder(reversed);
+        check(Arrays.equals(order, new int[] { 5, 4, 3, 2, 1, 0 }),
+              "reversed chain ordered " + Arrays.toString(order));
+        check(Arrays.equals(new TxHandler(pool).handleTxs(reversed), chain),
+              "reversed chain not accepted in order");
+
+        Transaction[] ordered = chain.clone();
+        check(Arrays.equals(new TxHandler(pool).handleTxs(ordered), chain),
+              "ordered chain not accepted");
+    }
+
+    /**
+     * Handles a shuffled batch of chained and conflicting transactions, some badly signed, on
+     * {@code pool} both ways. A small cache makes the mapped store evict entries under the workers.
+     */
+    private static void testOrphansWaitForUnknownParentsOnly() throws GeneralSecurityException {
+        Transaction root = new Transaction(10, owner.getPublic());
+        TxHandler handler = new TxHandler(poolOf(root));
+        Transaction p = spend(9, root.getHash(), 0);
+        Transaction c = spend(8, p.getHash(), 0);
+        Transaction d = spend(7, c.getHash(), 0);
+
+        check(handler.submit(d).length == 0 && handler.submit(c).length == 0, "orphan admitted");
+        check(handler.getOrphanPool().size() == 2, "orphans not kept");
+        Transaction[] admitted = handler.submit(p);
+        check(Arrays.equals(admitted, new Transaction[] { p, c, d }), "orphans not released");
+        check(handler.getOrphanPool().size() == 0, "released orphans kept");
+
+        // Each claims a missing output of a known transaction, so none of them can ever be valid.
+        Transaction doubleSpend = spend(8.5, p.getHash(), 0);
+        Transaction badIndex = spend(1, d.getHash(), 1);
+        Transaction rootAgain = spend(1, root.getHash(), 0);
+        for (Transaction tx : new Transaction[] { doubleSpend, badIndex, rootAgain })
+            check(handler.submit(tx).length == 0, "invalid transaction admitted");
+        check(handler.getOrphanPool().size() == 0, "known parent waited for");
+
+        Transaction unknownParent = spend(1, new Transaction(3, owner.getPublic()).getHash(), 0);
+        handler.submit(unknownParent);
+        check(handler.getOrphanPool().contains(unknownParent.getHash()), "orphan not kept");
+    }
+
+    private static void testParallelMatchesSequential(UTXOPool pool)
+            throws GeneralSecurityException {
+        Random random = new Random(5);
+        List<UTXO> spendable = new ArrayList<UTXO>();
+        for (int i = 0; i < 100; i++) {
+            Transaction coinbase = new Transaction(10 + i, owner.getPublic());
+            pool.addUTXO(new UTXO(coinbase.getHash(), 0), coinbase.getOutput(0));
+            spendable.add(new UTXO(coinbase.getHash(), 0));
+        }
+        List<Transaction> batch = new ArrayList<Transaction>();
+        for (int i = 0; i < 200; i++) {
+            Object[] spent = new Object[2 * (1 + random.nextInt(2))];
+            for (int k = 0; k < spent.length; k += 2) {
+                UTXO utxo = spendable.get(random.nextInt(spendable.size()));
+                spent[k] = utxo.getTxHash();
+                spent[k + 1] = utxo.getIndex();
+            }
+            Transaction tx = spend(random.nextInt(8), spent);
+            if (random.nextInt(20) == 0)
+                tx = spend(1000, spent);
+            batch.add(tx);
+            if (random.nextBoolean())
+                spendable.add(new UTXO(tx.getHash(), 0));
+        }
+        Collections.shuffle(batch, random);
+        Transaction[] txs = batch.toArray(new Transaction[batch.size()]);
+
+        TxHandler sequential = new TxHandler(pool);
+        TxHandler parallel = new TxHandler(pool);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            check(Arrays.equals(sequential.handleTxs(txs), parallel.handleTxs(txs, executor)),
+                  "parallel accepted other transactions");
+        } finally {
+            executor.shutdown();
+        }
+        check(new HashSet<UTXO>(sequential.getUTXOPool().getAllUTXO())
+                .equals(new HashSet<UTXO>(parallel.getUTXOPool().getAllUTXO())),
+              "parallel left another UTXO pool");
+    }
+
+    private static UTXOPool poolOf(Transaction... coinbases) {
+        UTXOPool pool = new UTXOPool();
+        for (Transaction tx : coinbases)
+            pool.addUTXO(new UTXO(tx.getHash(), 0), tx.getOutput(0));
+        return pool;
+    }
+
+    /**
+     * @param spent pairs of a transaction hash and an output index, as {@code byte[]} and
+     *        {@code Integer}
+     * @return a signed and finalized transaction paying {@code value} to the owner
+     */
+    private static Transaction spend(double value, Object... spent)
+            throws GeneralSecurityException {
+        Transaction tx = new Transaction();
+        for (int i = 0; i < spent.length; i += 2)
+            tx.addInput((byte[]) spent[i], (Integer) spent[i + 1]);
+        tx.addOutput(value, owner.getPublic());
+        for (int i = 0; i < tx.numInputs(); i++)
+            tx.addSignature(sign(owner.getPrivate(), tx.getRawDataToSign(i)), i);
+        tx.finalize();
+        return tx;
+    }
+
+    private static byte[] sign(PrivateKey key, byte[] message) throws GeneralSecurityException {
+        Signature signature = Signature.getInstance("SHA256withRSA");
+        signature.initSign(key);
+        signature.update(message);
+        return signature.sign();
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition)
+            throw new IllegalStateException(message);
+    }
+}
@@ -0,0 +1,138 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Checks transactions against a UTXO pool in stages ordered from the cheapest to the most
+ * expensive, so that a transaction failing any of the cheap checks is rejected before any of its
+ * signatures are verified. The number of transactions rejected by each stage is counted.
+ */
+public class TxValidator {
+
+    /** The validation stages, in the order in which they run */
+    public enum Stage {
+        /** every input names a previous output and is signed, and every output has an address */
+        STRUCTURE,
+        /** every output claimed by an input is in the pool and is claimed only once */
+        UTXO,
+        /** no output value is negative and the outputs sum to no more than the claimed outputs */
+        VALUE,
+        /** the signature of every input is valid for the output it claims */
+        SIGNATURE
+    }
+
+    /** The name of the metric counting the rejections by each stage */
+    private static final String[] REJECTION_METRICS = new String[Stage.values().length];
+
+    static {
+        for (Stage stage : Stage.values())
+            REJECTION_METRICS[stage.ordinal()] = "tx.rejected." + stage.name().toLowerCase();
+    }
+
+    private LongAdder[] rejections;
+    private LongAdder accepted = new LongAdder();
+
+    public TxValidator() {
+        rejections = new LongAdder[Stage.values().length];
+        for (int i = 0; i < rejections.length; i++)
+            rejections[i] = new LongAdder();
+    }
+
+    /** @return true if {@code tx} passes every stage against {@code utxoPool} */
+    public boolean isValid(Transaction tx, UTXOPool utxoPool) {
+        return validate(tx, utxoPool) == null;
+    }
+
+    /** @return the first stage that {@code tx} fails against {@code utxoPool}, or null if none */
+    public Stage validate(Transaction tx, UTXOPool utxoPool) {
+        return validate(tx, utxoPool, Crypto.getVerificationExecutor());
+    }
+
+    /**
+     * @return the first stage that {@code tx} fails against {@code utxoPool}, or null if none,
+     *         verifying its signatures in parallel on {@code executor} or serially if it is null
+     */
+    public Stage validate(Transaction tx, UTXOPool utxoPool, ExecutorService executor) {
+        Stage failed = runStages(tx, utxoPool, executor);
+        if (failed == null)
+            accepted.increment();
+        else
+            rejections[failed.ordinal()].increment();
+        return failed;
+    }
+
+    /**
+     * Counts a transaction accepted by a handler in the metrics if {@code failed} is null, or one
+     * rejected by the stage {@code failed} otherwise. Handlers call this once for each transaction
+     * they decide on, since {@link #validate} also runs for checks that decide nothing, e.g. of
+     * replacements or of transactions the handler then leaves out.
+     */
+    static void recordVerdict(Stage failed) {
+        if (Metrics.isEnabled())
+            Metrics.increment(failed == null ? "tx.accepted" : REJECTION_METRICS[failed.ordinal()]);
+    }
+
+    /** @return the number of transactions rejected by {@code stage} */
+    public long getRejections(Stage stage) {
+        return rejections[stage.ordinal()].sum();
+    }
+
+    /** @return the number of transactions that passed every stage */
+    public long getAccepted() {
+        return accepted.sum();
+    }
+
+    private Stage runStages(Transaction tx, UTXOPool utxoPool, ExecutorService executor) {
+        for (int i = 0; i < tx.numInputs(); i++) {
+            if (tx.getPrevTxHash(i) == null || tx.getSignature(i) == null)
+                return Stage.STRUCTURE;
+        }
+        for (int i = 0; i < tx.numOutputs(); i++) {
+            if (tx.getAddressId(i) < 0)
+                return Stage.STRUCTURE;
+        }
+
+        // Grab the output claimed by each input, ensuring that it exists and is claimed only once.
+        UTXOTable claimedUtxo = new UTXOTable();
+        List<Transaction.Output> claimedOutputs = new ArrayList<Transaction.Output>();
+        for (int i = 0; i < tx.numInputs(); i++) {
+            byte[] prevTxHash = tx.getPrevTxHash(i);
+            int outputIndex = tx.getOutputIndex(i);
+            Transaction.Output output = utxoPool.getTxOutput(prevTxHash, outputIndex);
+            if (output == null || claimedUtxo.put(prevTxHash, outputIndex, output) != null)
+                return Stage.UTXO;
+            claimedOutputs.add(output);
+        }
+
+        // Amounts are whole base units, so the sums are exact unless they overflow.
+        long sumInputs = 0;
+        long sumOutputs = 0;
+        try {
+            for (Transaction.Output output : claimedOutputs)
+                sumInputs = Math.addExact(sumInputs, output.getAmount());
+            for (int i = 0; i < tx.numOutputs(); i++) {
+                long amount = tx.getAmount(i);
+                if (amount < 0)
+                    return Stage.VALUE;
+                sumOutputs = Math.addExact(sumOutputs, amount);
+            }
+        } catch (ArithmeticException e) {
+            return Stage.VALUE;
+        }
+        if (sumOutputs > sumInputs)
+            return Stage.VALUE;
+
+        // Only now verify the signatures, in parallel if there is an executor.
+        List<Crypto.SignatureCheck> signatureChecks = new ArrayList<Crypto.SignatureCheck>();
+        for (int i = 0; i < tx.numInputs(); i++) {
+            signatureChecks.add(new Crypto.SignatureCheck(claimedOutputs.get(i).address,
+                                                          tx.getRawDataToSign(i),
+                                                          tx.getSignature(i)));
+        }
+        if (!Crypto.verifySignatures(signatureChecks, executor))
+            return Stage.SIGNATURE;
+
+        return null;
+    }
+}
@@ -0,0 +1,99 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A commitment to a set of UTXOs and their outputs that is updated in constant time as UTXOs are
+ * added and removed: the sum modulo 2^256 of the SHA-256 hashes of every (UTXO, output) pair. Two
+ * sets with the same entries have the same commitment however they were built, so pools can be
+ * compared or checkpointed without walking them.
+ *
+ * <p>
+ * An additive commitment is meant for catching inconsistencies: someone free to choose many
+ * outputs can find a different set with the same sum far faster than by breaking SHA-256.
+ */
+public class UTXOCommitment {
+
+    public static final int SIZE = 32;
+
+    private static final int WORDS = SIZE / 8;
+
+    /** The sum, as big-endian 64-bit words */
+    private final long[] sum = new long[WORDS];
+
+    /** Creates the commitment to the empty set */
+    public UTXOCommitment() {
+    }
+
+    /** Creates a copy of {@code other} */
+    public UTXOCommitment(UTXOCommitment other) {
+        synchronized (other) {
+            System.arraycopy(other.sum, 0, sum, 0, WORDS);
+        }
+    }
+
+    /** Adds the UTXO {@code (txHash, index)} with output {@code output} to the set */
+    public void add(byte[] txHash, int index, Transaction.Output output) {
+        long[] hash = hash(txHash, index, output);
+        synchronized (this) {
+            long carry = 0;
+            for (int i = WORDS - 1; i >= 0; i--) {
+                long x = sum[i];
+                sum[i] = x + hash[i] + carry;
+                boolean overflow = Long.compareUnsigned(sum[i], x) < 0
+                                   || (carry == 1 && sum[i] == x);
+                carry = overflow ? 1 : 0;
+            }
+        }
+    }
+
+    /** Removes the UTXO {@code (txHash, index)} with output {@code output} from the set */
+    public void remove(byte[] txHash, int index, Transaction.Output output) {
+        long[] hash = hash(txHash, index, output);
+        synchronized (this) {
+            long borrow = 0;
+            for (int i = WORDS - 1; i >= 0; i--) {
+                long x = sum[i];
+                sum[i] = x - hash[i] - borrow;
+                boolean underflow = Long.compareUnsigned(x, hash[i]) < 0
+                                    || (borrow == 1 && x == hash[i]);
+                borrow = underflow ? 1 : 0;
+            }
+        }
+    }
+
+    /** @return the commitment as {@link #SIZE} big-endian bytes */
+    public synchronized byte[] toBytes() {
+        ByteBuffer bytes = ByteBuffer.allocate(SIZE);
+        for (long word : sum)
+            bytes.putLong(word);
+        return bytes.array();
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof UTXOCommitment))
+            return false;
+        return Arrays.equals(toBytes(), ((UTXOCommitment) other).toBytes());
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(toBytes());
+    }
+
+    /** @return the hash of the pair as big-endian words */
+    private static long[] hash(byte[] txHash, int index, Transaction.Output output) {
+        byte[] address = output.address != null ? AddressTable.getEncoded(output.getAddressId())
+                                                : new byte[0];
+        ByteBuffer pair = ByteBuffer.allocate(txHash.length + 12 + address.length);
+        pair.put(txHash);
+        pair.putInt(index);
+        pair.putLong(output.getAmount());
+        pair.put(address);
+        ByteBuffer hash = ByteBuffer.wrap(HashService.sha256(pair.array()));
+        long[] words = new long[WORDS];
+        for (int i = 0; i < WORDS; i++)
+            words[i] = hash.getLong();
+        return words;
+    }
+}
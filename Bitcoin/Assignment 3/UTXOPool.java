@@ -1,32 +1,172 @@
+import java.security.PublicKey;
+import java.util.AbstractSet;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
-public class UTXOPool {
+public class UTXOPool implements Iterable<UTXO> {
 
     /**
      * The current collection of UTXOs, with each one mapped to its corresponding transaction output
      */
-    private HashMap<UTXO, Transaction.Output> H;
+    private UTXOStore H;
+
+    /** Commitment to the contents of {@code H}, or null if it has not been enabled */
+    private UTXOCommitment commitment;
+
+    /** Index of the UTXOs in {@code H} by address, or null if it has not been enabled */
+    private AddressIndex addresses;
 
     /** Creates a new empty UTXOPool */
     public UTXOPool() {
-        H = new HashMap<UTXO, Transaction.Output>();
+        H = new UTXOTable();
+    }
+
+    /** Creates a new UTXOPool holding the UTXOs in {@code store}, which it then changes */
+    public UTXOPool(UTXOStore store) {
+        H = store;
     }
 
-    /** Creates a new UTXOPool that is a copy of {@code uPool} */
+    /** Creates a new UTXOPool that is a copy of {@code uPool}, with the same kind of store */
     public UTXOPool(UTXOPool uPool) {
-        H = new HashMap<UTXO, Transaction.Output>(uPool.H);
+        H = uPool.H.copy();
+        if (uPool.commitment != null)
+            commitment = new UTXOCommitment(uPool.commitment);
+        if (uPool.addresses != null)
+            addresses = new AddressIndex(uPool.addresses);
+    }
+
+    /**
+     * @return a pool holding the same UTXOs over an {@link OverlayUTXOStore} on this pool's store,
+     *         so that neither making it nor copying it copies the store. It must not be used once
+     *         this pool changes.
+     */
+    UTXOPool overlay() {
+        return new UTXOPool(new OverlayUTXOStore(H));
+    }
+
+    /**
+     * Indexes the UTXOs in the pool by address, from now on and in every copy of the pool, so that
+     * {@link #getUTXOsFor} and {@link #getBalance} take time proportional to the number of UTXOs
+     * paying the address rather than to the size of the pool. Does nothing if already enabled.
+     */
+    public void enableAddressIndex() {
+        if (addresses != null)
+            return;
+        AddressIndex index = new AddressIndex();
+        for (UTXO utxo : H.keys())
+            index.add(utxo.getTxHash(), utxo.getIndex(), getTxOutput(utxo));
+        addresses = index;
+    }
+
+    /** @return true if the UTXOs in the pool are indexed by address */
+    public boolean hasAddressIndex() {
+        return addresses != null;
+    }
+
+    /**
+     * Keeps the commitment to the UTXOs in the pool up to date, from now on and in every copy of
+     * the pool, so that {@link #getCommitment} and {@link #hasSameCommitment} take constant time.
+     * This hashes every UTXO added to or removed from the pool. Does nothing if already enabled.
+     */
+    public void enableCommitment() {
+        if (commitment == null)
+            commitment = commit();
+    }
+
+    /** @return true if the commitment to the UTXOs in the pool is kept up to date */
+    public boolean hasCommitment() {
+        return commitment != null;
     }
 
     /** Adds a mapping from UTXO {@code utxo} to transaction output @code{txOut} to the pool */
     public void addUTXO(UTXO utxo, Transaction.Output txOut) {
-        H.put(utxo, txOut);
+        addUTXO(utxo.getTxHash(), utxo.getIndex(), txOut);
+    }
+
+    /**
+     * Adds a mapping from the UTXO with transaction hash {@code txHash} and index {@code index} to
+     * transaction output {@code txOut} to the pool, without creating a {@code UTXO}
+     */
+    public void addUTXO(byte[] txHash, int index, Transaction.Output txOut) {
+        Transaction.Output previous = H.put(txHash, index, txOut);
+        if (previous != null)
+            removed(txHash, index, previous);
+        added(txHash, index, txOut);
     }
 
     /** Removes the UTXO {@code utxo} from the pool */
     public void removeUTXO(UTXO utxo) {
-        H.remove(utxo);
+        removeUTXO(utxo.getTxHash(), utxo.getIndex());
+    }
+
+    /**
+     * Removes the UTXO with transaction hash {@code txHash} and index {@code index} from the pool.
+     * 
+     * @return the transaction output it corresponded to, or null if it was not in the pool
+     */
+    public Transaction.Output removeUTXO(byte[] txHash, int index) {
+        Transaction.Output previous = H.remove(txHash, index);
+        if (previous != null)
+            removed(txHash, index, previous);
+        return previous;
+    }
+
+    /**
+     * Adds a mapping from UTXO {@code utxo} to transaction output {@code txOut} to the pool, unless
+     * {@code utxo} is already in it. This is atomic if the store of the pool is thread-safe.
+     * 
+     * @return true if the UTXO was added
+     */
+    public boolean createUTXO(UTXO utxo, Transaction.Output txOut) {
+        return createUTXO(utxo.getTxHash(), utxo.getIndex(), txOut);
+    }
+
+    /**
+     * Like {@link #createUTXO(UTXO, Transaction.Output)} for the UTXO with transaction hash
+     * {@code txHash} and index {@code index}, without creating a {@code UTXO}
+     */
+    public boolean createUTXO(byte[] txHash, int index, Transaction.Output txOut) {
+        if (H.putIfAbsent(txHash, index, txOut) != null)
+            return false;
+        added(txHash, index, txOut);
+        return true;
+    }
+
+    /**
+     * Spends the UTXO {@code utxo}, removing it from the pool. This is atomic if the store of the
+     * pool is thread-safe, so of several threads spending the same UTXO exactly one succeeds.
+     * 
+     * @return the transaction output it corresponded to, or null if it was not in the pool
+     */
+    public Transaction.Output spendUTXO(UTXO utxo) {
+        return removeUTXO(utxo.getTxHash(), utxo.getIndex());
+    }
+
+    /**
+     * Spends all the UTXOs claimed by the inputs of {@code tx} if each of them is in the pool and
+     * claimed only once, and none of them otherwise. This is atomic if the store of the pool is
+     * thread-safe.
+     * 
+     * @return the transaction outputs claimed by the inputs, in order, or null if none were spent
+     */
+    public Transaction.Output[] spendAll(Transaction tx) {
+        byte[][] txHashes = new byte[tx.numInputs()][];
+        int[] indices = new int[tx.numInputs()];
+        for (int i = 0; i < indices.length; i++) {
+            txHashes[i] = tx.getPrevTxHash(i);
+            indices[i] = tx.getOutputIndex(i);
+        }
+        Transaction.Output[] spent = H.removeAll(txHashes, indices);
+        if (spent != null) {
+            for (int i = 0; i < spent.length; i++)
+                removed(txHashes[i], indices[i], spent[i]);
+        }
+        return spent;
     }
 
     /**
@@ -34,21 +174,161 @@ public class UTXOPool {
      *         not in the pool.
      */
     public Transaction.Output getTxOutput(UTXO ut) {
-        return H.get(ut);
+        return H.get(ut.getTxHash(), ut.getIndex());
+    }
+
+    /**
+     * @return the transaction output corresponding to the UTXO with transaction hash
+     *         {@code txHash} and index {@code index}, or null if it is not in the pool
+     */
+    public Transaction.Output getTxOutput(byte[] txHash, int index) {
+        return H.get(txHash, index);
     }
 
     /** @return true if UTXO {@code utxo} is in the pool and false otherwise */
     public boolean contains(UTXO utxo) {
-        return H.containsKey(utxo);
+        return H.contains(utxo.getTxHash(), utxo.getIndex());
+    }
+
+    /**
+     * @return true if the UTXO with transaction hash {@code txHash} and index {@code index} is in
+     *         the pool and false otherwise
+     */
+    public boolean contains(byte[] txHash, int index) {
+        return H.contains(txHash, index);
+    }
+
+    /**
+     * @return the {@link UTXOCommitment#SIZE}-byte commitment to the UTXOs in the pool and their
+     *         outputs, which is the same for any two pools with the same contents. Unless the
+     *         commitment is enabled this hashes the whole pool.
+     */
+    public byte[] getCommitment() {
+        return (commitment != null ? commitment : commit()).toBytes();
+    }
+
+    /**
+     * @return true if {@code other} has the same commitment as this pool, which means that they
+     *         almost certainly hold the same UTXOs and outputs; this takes constant time if both
+     *         pools have the commitment enabled, and hashes the others otherwise
+     */
+    public boolean hasSameCommitment(UTXOPool other) {
+        UTXOCommitment mine = commitment != null ? commitment : commit();
+        return mine.equals(other.commitment != null ? other.commitment : other.commit());
+    }
+
+    /** @return a new commitment to the UTXOs in the pool */
+    private UTXOCommitment commit() {
+        UTXOCommitment fresh = new UTXOCommitment();
+        for (UTXO utxo : H.keys())
+            fresh.add(utxo.getTxHash(), utxo.getIndex(), getTxOutput(utxo));
+        return fresh;
+    }
+
+    /**
+     * @return a new list of the UTXOs whose outputs pay {@code address}. Without the address index
+     *         this scans the whole pool.
+     */
+    public ArrayList<UTXO> getUTXOsFor(PublicKey address) {
+        int id = AddressTable.lookup(address);
+        if (id < 0)
+            return new ArrayList<UTXO>();
+        if (addresses != null)
+            return addresses.getUTXOs(id);
+        ArrayList<UTXO> owned = new ArrayList<UTXO>();
+        for (UTXO utxo : H.keys()) {
+            Transaction.Output output = getTxOutput(utxo);
+            if (output.address != null && output.getAddressId() == id)
+                owned.add(utxo);
+        }
+        return owned;
+    }
+
+    /**
+     * @return the sum in base units of the values of the outputs in the pool that pay
+     *         {@code address}. Without the address index this scans the whole pool.
+     */
+    public long getBalance(PublicKey address) {
+        int id = AddressTable.lookup(address);
+        if (id < 0)
+            return 0;
+        if (addresses != null)
+            return addresses.getBalance(id);
+        long balance = 0;
+        for (UTXO utxo : getUTXOsFor(address))
+            balance += getTxOutput(utxo).getAmount();
+        return balance;
+    }
+
+    /** @return the number of UTXOs in the pool */
+    public int size() {
+        return H.size();
+    }
+
+    /**
+     * @return a read-only view of the UTXOs in the pool, which reflects later changes to the pool.
+     *         Unlike {@link #getAllUTXO()}, this copies nothing.
+     */
+    public Set<UTXO> asSet() {
+        return new AbstractSet<UTXO>() {
+            @Override
+            public boolean contains(Object o) {
+                return o instanceof UTXO && UTXOPool.this.contains((UTXO) o);
+            }
+
+            @Override
+            public int size() {
+                return H.size();
+            }
+
+            @Override
+            public Iterator<UTXO> iterator() {
+                return UTXOPool.this.iterator();
+            }
+
+            @Override
+            public Spliterator<UTXO> spliterator() {
+                return UTXOPool.this.spliterator();
+            }
+        };
+    }
+
+    /** @return an iterator over the UTXOs in the pool, which must not change during iteration */
+    public Iterator<UTXO> iterator() {
+        return Spliterators.iterator(spliterator());
+    }
+
+    /**
+     * @return a spliterator over the UTXOs in the pool, which splits for parallel traversal. The
+     *         pool must not change during traversal.
+     */
+    public Spliterator<UTXO> spliterator() {
+        return H.spliterator();
+    }
+
+    /** @return a sequential stream of the UTXOs in the pool; use {@code parallel()} to split it */
+    public Stream<UTXO> stream() {
+        return StreamSupport.stream(spliterator(), false);
+    }
+
+    /** Records that the UTXO {@code (txHash, index)} now maps to {@code txOut} */
+    private void added(byte[] txHash, int index, Transaction.Output txOut) {
+        if (commitment != null)
+            commitment.add(txHash, index, txOut);
+        if (addresses != null)
+            addresses.add(txHash, index, txOut);
+    }
+
+    /** Records that the UTXO {@code (txHash, index)} no longer maps to {@code txOut} */
+    private void removed(byte[] txHash, int index, Transaction.Output txOut) {
+        if (commitment != null)
+            commitment.remove(txHash, index, txOut);
+        if (addresses != null)
+            addresses.remove(txHash, index, txOut);
     }
 
     /** Returns an {@code ArrayList} of all UTXOs in the pool */
     public ArrayList<UTXO> getAllUTXO() {
-        Set<UTXO> setUTXO = H.keySet();
-        ArrayList<UTXO> allUTXO = new ArrayList<UTXO>();
-        for (UTXO ut : setUTXO) {
-            allUTXO.add(ut);
-        }
-        return allUTXO;
+        return H.keys();
     }
 }
@@ -0,0 +1,93 @@
+import java.security.GeneralSecurityException;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Checks that the commitment and the address index of a {@link UTXOPool} agree with its contents,
+ * whether they are kept up to date or worked out on demand. Throws {@link IllegalStateException}
+ * on the first failure.
+ *
+ * <p>
+ * Usage: {@code java UTXOPoolTest}
+ */
+public class UTXOPoolTest {
+
+    public static void main(String[] args) throws GeneralSecurityException {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(1024);
+        PublicKey[] keys = new PublicKey[3];
+        for (int i = 0; i < keys.length; i++)
+            keys[i] = generator.generateKeyPair().getPublic();
+
+        testCommitmentIsOptIn(keys);
+        testAddressIndex(keys);
+        System.out.println("UTXOPoolTest passed");
+    }
+
+    private static void testCommitmentIsOptIn(PublicKey[] keys) {
+        UTXOPool plain = new UTXOPool();
+        UTXOPool committed = new UTXOPool();
+        committed.enableCommitment();
+        check(!plain.hasCommitment() && committed.hasCommitment(), "commitment not opt-in");
+        byte[] empty = plain.getCommitment();
+
+        Random random = new Random(3);
+        Transaction owner = new Transaction();
+        for (int i = 0; i < 500; i++) {
+            byte[] txHash = new byte[32];
+            txHash[0] = (byte) random.nextInt(20);
+            int index = random.nextInt(3);
+            if (random.nextInt(3) == 0) {
+                plain.removeUTXO(txHash, index);
+                committed.removeUTXO(txHash, index);
+            } else if (!plain.contains(txHash, index)) {
+                Transaction.Output output = owner.new Output(random.nextInt(50), keys[index]);
+                plain.addUTXO(txHash, index, output);
+                committed.addUTXO(txHash, index, output);
+            }
+        }
+        check(Arrays.equals(plain.getCommitment(), committed.getCommitment()),
+              "kept and computed commitments differ");
+        check(committed.hasSameCommitment(plain) && plain.hasSameCommitment(committed),
+              "same pools compare different");
+
+        UTXOPool copy = new UTXOPool(committed);
+        check(copy.hasCommitment(), "copy lost the commitment");
+        for (UTXO utxo : copy.getAllUTXO())
+            copy.removeUTXO(utxo);
+        check(Arrays.equals(copy.getCommitment(), empty), "emptied pool is not empty");
+        check(!copy.hasSameCommitment(committed), "copy changed the original");
+    }
+
+    private static void testAddressIndex(PublicKey[] keys) {
+        UTXOPool indexed = new UTXOPool();
+        UTXOPool plain = new UTXOPool();
+        Transaction owner = new Transaction();
+        for (int i = 0; i < 30; i++) {
+            byte[] txHash = new byte[32];
+            txHash[0] = (byte) i;
+            Transaction.Output output = owner.new Output(i, keys[i % keys.length]);
+            indexed.addUTXO(txHash, 0, output);
+            plain.addUTXO(txHash, 0, output);
+            if (i == 10)
+                indexed.enableAddressIndex();
+        }
+        byte[] spent = new byte[32];
+        indexed.removeUTXO(spent, 0);
+        plain.removeUTXO(spent, 0);
+        for (PublicKey key : keys) {
+            check(indexed.getBalance(key) == plain.getBalance(key), "balances differ");
+            check(indexed.getUTXOsFor(key).size() == plain.getUTXOsFor(key).size(),
+                  "owned UTXOs differ");
+        }
+        check(plain.getBalance(keys[1]) == (1 + 4 + 7 + 10 + 13 + 16 + 19 + 22 + 25 + 28)
+                                           * Transaction.COIN, "wrong balance");
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition)
+            throw new IllegalStateException(message);
+    }
+}
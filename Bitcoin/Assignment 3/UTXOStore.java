@@ -0,0 +1,78 @@
+import java.util.ArrayList;
+import java.util.Spliterator;
+
+/**
+ * A mapping from UTXOs, given as a transaction hash and an output index, to transaction outputs.
+ * This is the storage behind a {@link UTXOPool}.
+ */
+public interface UTXOStore {
+
+    /** @return the output of the UTXO {@code (txHash, index)}, or null if it is not in the store */
+    Transaction.Output get(byte[] txHash, int index);
+
+    /** @return true if the UTXO {@code (txHash, index)} is in the store */
+    boolean contains(byte[] txHash, int index);
+
+    /**
+     * Maps the UTXO {@code (txHash, index)} to {@code output}, which must not be null.
+     *
+     * @return the output it was previously mapped to, or null if it was not in the store
+     */
+    Transaction.Output put(byte[] txHash, int index, Transaction.Output output);
+
+    /**
+     * Removes the UTXO {@code (txHash, index)} from the store.
+     *
+     * @return the output it was mapped to, or null if it was not in the store
+     */
+    Transaction.Output remove(byte[] txHash, int index);
+
+    /**
+     * Maps the UTXO {@code (txHash, index)} to {@code output}, which must not be null, unless it is
+     * already in the store. This is atomic in a store that is safe for use by several threads.
+     *
+     * @return the output it is already mapped to, or null if it was added
+     */
+    default Transaction.Output putIfAbsent(byte[] txHash, int index, Transaction.Output output) {
+        Transaction.Output existing = get(txHash, index);
+        if (existing == null)
+            put(txHash, index, output);
+        return existing;
+    }
+
+    /**
+     * Removes every UTXO {@code (txHashes[i], indices[i])} if all of them are in the store and
+     * distinct, and none of them otherwise. This is atomic in a store that is safe for use by
+     * several threads.
+     *
+     * @return the outputs they were mapped to, in order, or null if none were removed
+     */
+    default Transaction.Output[] removeAll(byte[][] txHashes, int[] indices) {
+        Transaction.Output[] removed = new Transaction.Output[indices.length];
+        for (int i = 0; i < indices.length; i++) {
+            removed[i] = remove(txHashes[i], indices[i]);
+            if (removed[i] == null) {
+                for (int j = i - 1; j >= 0; j--)
+                    put(txHashes[j], indices[j], removed[j]);
+                return null;
+            }
+        }
+        return removed;
+    }
+
+    /** @return the number of UTXOs in the store */
+    int size();
+
+    /** @return a store holding the same entries, which changes independently of this one */
+    UTXOStore copy();
+
+    /** @return a new list of all UTXOs in the store */
+    ArrayList<UTXO> keys();
+
+    /**
+     * @return a spliterator over the UTXOs in the store that splits for parallel traversal, without
+     *         copying them first. The store must not change during traversal, unless it says
+     *         otherwise.
+     */
+    Spliterator<UTXO> spliterator();
+}
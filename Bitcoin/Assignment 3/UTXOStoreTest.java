@@ -0,0 +1,136 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Checks {@link UTXOStore} implementations against a {@link HashMap} through random additions,
+ * removals and copies. There are few enough transaction hashes, some with equal prefixes, that
+ * entries collide, move and are removed from the middle of probe sequences, tries and collision
+ * lists. Throws {@link IllegalStateException} on the first failure.
+ *
+ * <p>
+ * Usage: {@code java UTXOStoreTest}
+ */
+public class UTXOStoreTest {
+
+    private static PublicKey[] addresses;
+
+    private static byte[][] txHashes = new byte[600][];
+    private static Transaction owner = new Transaction();
+
+    public static void main(String[] args) throws GeneralSecurityException, IOException {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(1024);
+        addresses = new PublicKey[2];
+        for (int i = 0; i < addresses.length; i++)
+            addresses[i] = generator.generateKeyPair().getPublic();
+        Random random = new Random(5);
+        for (int i = 0; i < txHashes.length; i++) {
+            // A few hashes of other lengths, which tables keep on the side.
+            txHashes[i] = new byte[i % 50 == 0 ? 20 : UTXOTable.HASH_SIZE];
+            random.nextBytes(txHashes[i]);
+            // Some share their first eight bytes with the previous hash, which the stores hash.
+            if (i % 7 == 1)
+                System.arraycopy(txHashes[i - 1], 0, txHashes[i], 0, 8);
+        }
+
+        testAgainstMap(new UTXOTable());
+        testAgainstMap(new PersistentUTXOStore());
+        // A small cache, so that most reads go to the file, which grows as entries are added.
+        testAgainstMap(new MappedUTXOStore(Files.createTempDirectory("utxo"), 64));
+
+        // An overlay hiding and replacing outputs of a base store it must leave unchanged.
+        UTXOTable base = new UTXOTable();
+        for (int i = 0; i < txHashes.length; i += 2)
+            base.put(txHashes[i], 0, owner.new Output(i, addresses[0]));
+        UTXOTable baseBefore = base.copy();
+        testAgainstMap(new OverlayUTXOStore(base));
+        check(base.size() == baseBefore.size(), "overlay changed its base");
+        for (UTXO utxo : baseBefore.keys()) {
+            check(same(base.get(utxo.getTxHash(), utxo.getIndex()),
+                       baseBefore.get(utxo.getTxHash(), utxo.getIndex())),
+                  "overlay changed its base");
+        }
+        System.out.println("UTXOStoreTest passed");
+    }
+
+    /** A store and the map it should match */
+    private static class Copy {
+        final UTXOStore store;
+        final Map<UTXO, Transaction.Output> expected;
+
+        Copy(UTXOStore store, Map<UTXO, Transaction.Output> expected) {
+            this.store = store;
+            this.expected = expected;
+        }
+    }
+
+    /**
+     * Changes {@code store} at random, now and then copying it and going on to change the copy and
+     * the original independently, and checks every copy against its own map.
+     */
+    private static void testAgainstMap(UTXOStore store) {
+        Random random = new Random(11);
+        List<Copy> copies = new ArrayList<Copy>();
+        Map<UTXO, Transaction.Output> contents = new HashMap<UTXO, Transaction.Output>();
+        for (UTXO utxo : store.keys())
+            contents.put(utxo, store.get(utxo.getTxHash(), utxo.getIndex()));
+        copies.add(new Copy(store, contents));
+        for (int step = 0; step < 20000; step++) {
+            Copy copy = copies.get(random.nextInt(copies.size()));
+            byte[] txHash = txHashes[random.nextInt(txHashes.length)];
+            int index = random.nextInt(3);
+            UTXO utxo = new UTXO(txHash, index);
+            int action = random.nextInt(100);
+            if (action < 55) {
+                Transaction.Output output =
+                        owner.new Output(random.nextInt(1000), addresses[random.nextInt(2)]);
+                check(same(copy.store.put(txHash, index, output), copy.expected.put(utxo, output)),
+                      "put returned the wrong output at step " + step);
+            } else if (action < 99) {
+                check(same(copy.store.remove(txHash, index), copy.expected.remove(utxo)),
+                      "remove returned the wrong output at step " + step);
+            } else if (copies.size() < 8 && step % 4 == 0) {
+                copies.add(new Copy(copy.store.copy(),
+                                    new HashMap<UTXO, Transaction.Output>(copy.expected)));
+            }
+            if (step % 500 == 0) {
+                for (Copy c : copies)
+                    checkContents(c);
+            }
+        }
+        for (Copy c : copies)
+            checkContents(c);
+    }
+
+    private static void checkContents(Copy copy) {
+        check(copy.store.size() == copy.expected.size(), "size " + copy.store.size()
+                                                         + " instead of " + copy.expected.size());
+        for (byte[] txHash : txHashes) {
+            for (int index = 0; index < 3; index++) {
+                Transaction.Output expected = copy.expected.get(new UTXO(txHash, index));
+                check(same(copy.store.get(txHash, index), expected), "wrong output");
+                check(copy.store.contains(txHash, index) == (expected != null), "wrong contains");
+            }
+        }
+        check(new HashSet<UTXO>(copy.store.keys()).equals(copy.expected.keySet()), "wrong keys");
+        check(copy.store.keys().size() == copy.expected.size(), "repeated keys");
+    }
+
+    private static boolean same(Transaction.Output actual, Transaction.Output expected) {
+        return actual == null ? expected == null : actual.equals(expected);
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition)
+            throw new IllegalStateException(message);
+    }
+}
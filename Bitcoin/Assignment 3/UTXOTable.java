@@ -0,0 +1,309 @@
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * An open-addressing hash table from UTXOs to transaction outputs that stores its keys as
+ * primitives. A {@link #HASH_SIZE}-byte transaction hash is kept as four longs next to the output
+ * index, in parallel arrays indexed by slot, so that looking up, adding or removing a UTXO by its
+ * transaction hash and index allocates nothing. Collisions are resolved by linear probing, and
+ * removals shift later entries back instead of leaving tombstones.
+ *
+ * <p>
+ * Hashes of any other length are kept in a small ordinary map on the side. Null outputs cannot be
+ * stored.
+ */
+public class UTXOTable implements UTXOStore {
+
+    public static final int HASH_SIZE = 32;
+
+    private static final int WORDS = HASH_SIZE / 8;
+    private static final int INITIAL_CAPACITY = 16;
+
+    /** {@code WORDS} longs per slot holding the transaction hash of the entry in that slot */
+    private long[] hashWords;
+    private int[] indices;
+    /** The output of the entry in each slot, or null if the slot is free */
+    private Transaction.Output[] outputs;
+    private int mask;
+    private int size;
+    /** Number of additions and removals, checked by spliterators */
+    private int modCount;
+
+    /** Entries whose transaction hash is not {@code HASH_SIZE} bytes long */
+    private Map<UTXO, Transaction.Output> overflow = new HashMap<UTXO, Transaction.Output>();
+
+    /** Creates an empty table */
+    public UTXOTable() {
+        allocate(INITIAL_CAPACITY);
+    }
+
+    /** Creates a table holding the same entries as {@code other} */
+    public UTXOTable(UTXOTable other) {
+        hashWords = other.hashWords.clone();
+        indices = other.indices.clone();
+        outputs = other.outputs.clone();
+        mask = other.mask;
+        size = other.size;
+        overflow = new HashMap<UTXO, Transaction.Output>(other.overflow);
+    }
+
+    /** @return the output of the UTXO {@code (txHash, index)}, or null if it is not in the table */
+    @Override
+    public Transaction.Output get(byte[] txHash, int index) {
+        if (txHash.length != HASH_SIZE)
+            return overflow.get(new UTXO(txHash, index));
+        int slot = find(txHash, index);
+        return slot >= 0 ? outputs[slot] : null;
+    }
+
+    /** @return true if the UTXO {@code (txHash, index)} is in the table */
+    @Override
+    public boolean contains(byte[] txHash, int index) {
+        return get(txHash, index) != null;
+    }
+
+    /**
+     * Maps the UTXO {@code (txHash, index)} to {@code output}.
+     *
+     * @return the output it was previously mapped to, or null if it was not in the table
+     */
+    @Override
+    public Transaction.Output put(byte[] txHash, int index, Transaction.Output output) {
+        if (output == null)
+            throw new IllegalArgumentException("output must not be null");
+        if (txHash.length != HASH_SIZE)
+            return overflow.put(new UTXO(txHash, index), output);
+
+        int slot = find(txHash, index);
+        if (slot >= 0) {
+            Transaction.Output previous = outputs[slot];
+            outputs[slot] = output;
+            return previous;
+        }
+
+        if ((size + 1) * 3 > (mask + 1) * 2) {
+            resize((mask + 1) * 2);
+        }
+        slot = home(word(txHash, 0), index);
+        while (outputs[slot] != null)
+            slot = (slot + 1) & mask;
+        for (int w = 0; w < WORDS; w++)
+            hashWords[slot * WORDS + w] = word(txHash, w);
+        indices[slot] = index;
+        outputs[slot] = output;
+        size++;
+        modCount++;
+        return null;
+    }
+
+    /**
+     * Removes the UTXO {@code (txHash, index)} from the table.
+     *
+     * @return the output it was mapped to, or null if it was not in the table
+     */
+    @Override
+    public Transaction.Output remove(byte[] txHash, int index) {
+        if (txHash.length != HASH_SIZE)
+            return overflow.remove(new UTXO(txHash, index));
+        int slot = find(txHash, index);
+        if (slot < 0)
+            return null;
+        Transaction.Output previous = outputs[slot];
+        deleteSlot(slot);
+        size--;
+        modCount++;
+        return previous;
+    }
+
+    /** @return the number of UTXOs in the table */
+    @Override
+    public int size() {
+        return size + overflow.size();
+    }
+
+    /** @return a copy of this table, made by copying its arrays */
+    @Override
+    public UTXOTable copy() {
+        return new UTXOTable(this);
+    }
+
+    /** @return a new list of all UTXOs in the table */
+    @Override
+    public ArrayList<UTXO> keys() {
+        ArrayList<UTXO> keys = new ArrayList<UTXO>(size());
+        byte[] txHash = new byte[HASH_SIZE];
+        for (int slot = 0; slot <= mask; slot++) {
+            if (outputs[slot] != null) {
+                for (int w = 0; w < WORDS; w++)
+                    putWord(txHash, w, hashWords[slot * WORDS + w]);
+                // UTXO copies the hash, so the buffer can be reused.
+                keys.add(new UTXO(txHash, indices[slot]));
+            }
+        }
+        keys.addAll(overflow.keySet());
+        return keys;
+    }
+
+    @Override
+    public Spliterator<UTXO> spliterator() {
+        Spliterator<UTXO> slots = new SlotSpliterator(0, mask + 1, size, modCount);
+        if (overflow.isEmpty())
+            return slots;
+        return Stream.concat(StreamSupport.stream(slots, false), overflow.keySet().stream())
+                     .spliterator();
+    }
+
+    private UTXO keyAt(int slot) {
+        byte[] txHash = new byte[HASH_SIZE];
+        for (int w = 0; w < WORDS; w++)
+            putWord(txHash, w, hashWords[slot * WORDS + w]);
+        return new UTXO(txHash, indices[slot]);
+    }
+
+    /** @return the slot holding {@code (txHash, index)}, or -1 if there is none */
+    private int find(byte[] txHash, int index) {
+        long w0 = word(txHash, 0);
+        long w1 = word(txHash, 1);
+        long w2 = word(txHash, 2);
+        long w3 = word(txHash, 3);
+        int slot = home(w0, index);
+        while (outputs[slot] != null) {
+            int base = slot * WORDS;
+            if (indices[slot] == index && hashWords[base] == w0 && hashWords[base + 1] == w1
+                    && hashWords[base + 2] == w2 && hashWords[base + 3] == w3)
+                return slot;
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /** Empties {@code slot}, moving back later entries of its probe run that belong before it */
+    private void deleteSlot(int slot) {
+        int free = slot;
+        int next = slot;
+        while (true) {
+            next = (next + 1) & mask;
+            if (outputs[next] == null)
+                break;
+            int home = home(hashWords[next * WORDS], indices[next]);
+            // Move the entry unless its home slot lies cyclically in (free, next].
+            boolean stays = free <= next ? free < home && home <= next
+                                         : free < home || home <= next;
+            if (!stays) {
+                System.arraycopy(hashWords, next * WORDS, hashWords, free * WORDS, WORDS);
+                indices[free] = indices[next];
+                outputs[free] = outputs[next];
+                free = next;
+            }
+        }
+        outputs[free] = null;
+    }
+
+    private void resize(int capacity) {
+        long[] oldHashWords = hashWords;
+        int[] oldIndices = indices;
+        Transaction.Output[] oldOutputs = outputs;
+        allocate(capacity);
+        for (int old = 0; old < oldOutputs.length; old++) {
+            if (oldOutputs[old] == null)
+                continue;
+            int slot = home(oldHashWords[old * WORDS], oldIndices[old]);
+            while (outputs[slot] != null)
+                slot = (slot + 1) & mask;
+            System.arraycopy(oldHashWords, old * WORDS, hashWords, slot * WORDS, WORDS);
+            indices[slot] = oldIndices[old];
+            outputs[slot] = oldOutputs[old];
+        }
+    }
+
+    private void allocate(int capacity) {
+        hashWords = new long[capacity * WORDS];
+        indices = new int[capacity];
+        outputs = new Transaction.Output[capacity];
+        mask = capacity - 1;
+    }
+
+    /** @return the first slot probed for a key whose first hash word is {@code w0} */
+    private int home(long w0, int index) {
+        // Transaction hashes are already uniformly distributed, but the index is not.
+        long h = w0 ^ (index * 0x9E3779B97F4A7C15L);
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        return (int) h & mask;
+    }
+
+    private static long word(byte[] txHash, int w) {
+        long word = 0;
+        for (int i = w * 8; i < w * 8 + 8; i++)
+            word = (word << 8) | (txHash[i] & 0xFF);
+        return word;
+    }
+
+    private static void putWord(byte[] txHash, int w, long word) {
+        for (int i = w * 8 + 7; i >= w * 8; i--) {
+            txHash[i] = (byte) word;
+            word >>>= 8;
+        }
+    }
+
+    /**
+     * Traverses a range of slots, splitting it in half. A change to the table during traversal
+     * is detected and reported as a {@link ConcurrentModificationException}.
+     */
+    private final class SlotSpliterator implements Spliterator<UTXO> {
+        private int origin;
+        private final int fence;
+        private long estimate;
+        private final int expectedModCount;
+
+        SlotSpliterator(int origin, int fence, long estimate, int expectedModCount) {
+            this.origin = origin;
+            this.fence = fence;
+            this.estimate = estimate;
+            this.expectedModCount = expectedModCount;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super UTXO> action) {
+            while (origin < fence) {
+                if (modCount != expectedModCount)
+                    throw new ConcurrentModificationException();
+                int slot = origin++;
+                if (outputs[slot] != null) {
+                    action.accept(keyAt(slot));
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public Spliterator<UTXO> trySplit() {
+            int middle = (origin + fence) >>> 1;
+            if (middle <= origin)
+                return null;
+            estimate >>>= 1;
+            SlotSpliterator prefix =
+                new SlotSpliterator(origin, middle, estimate, expectedModCount);
+            origin = middle;
+            return prefix;
+        }
+
+        @Override
+        public long estimateSize() {
+            return estimate;
+        }
+
+        @Override
+        public int characteristics() {
+            return DISTINCT | NONNULL;
+        }
+    }
+}
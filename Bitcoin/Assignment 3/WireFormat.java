@@ -0,0 +1,377 @@
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.security.PublicKey;
+import java.security.spec.InvalidKeySpecException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A compact, versioned binary encoding of {@link Transaction}s and {@link Block}s which, unlike
+ * {@link Transaction#getRawTx()} and {@link Block#getRawBlock()}, can be decoded again.
+ *
+ * <p>
+ * Counts, lengths and indices are unsigned LEB128 varints and hashes are fixed
+ * {@link #HASH_SIZE}-byte fields. Output addresses are not repeated: each distinct address is
+ * stored once in an address table, and outputs refer to it by index. A standalone
+ * transaction is encoded as
+ *
+ * <pre>
+ * version | address table | transaction body
+ * </pre>
+ *
+ * and a block, whose transactions all share a single address table, as
+ *
+ * <pre>
+ * version | flags (has prevBlockHash, finalized) | [prevBlockHash] | address table
+ *         | coinbase body | #transactions | transaction bodies
+ * </pre>
+ *
+ * where
+ *
+ * <pre>
+ * address table: #addresses | (signature scheme id | length | X.509 encoding)...
+ * body:          flags (coinbase, has hash) | [hash] | #inputs | inputs | #outputs | outputs
+ * input:         flags (has prevTxHash, has signature) | [prevTxHash] | outputIndex
+ *                | [length | signature]
+ * output:        value (8-byte IEEE 754 double) | address index
+ * </pre>
+ *
+ * Version 1 of the format predates {@link SignatureScheme}: its address table entries carry no
+ * scheme id and are all RSA keys. It can still be decoded.
+ */
+public class WireFormat {
+
+    public static final byte VERSION = 2;
+    private static final byte VERSION_RSA_ONLY = 1;
+    public static final int HASH_SIZE = 32;
+
+    private static final int BLOCK_HAS_PREV_HASH = 1;
+    private static final int BLOCK_FINALIZED = 2;
+    private static final int TX_COINBASE = 1;
+    private static final int TX_HAS_HASH = 2;
+    private static final int INPUT_HAS_PREV_HASH = 1;
+    private static final int INPUT_HAS_SIGNATURE = 2;
+
+    /**
+     * @return the encoding of {@code tx}
+     * @throws IllegalArgumentException if an output of {@code tx} has no address
+     */
+    public static byte[] encodeTransaction(Transaction tx) {
+        Addresses addresses = new Addresses();
+        addresses.add(tx);
+        ByteBuffer buf = ByteBuffer.allocate(1 + addresses.size() + bodySize(tx, addresses));
+        writeTransaction(buf, tx, addresses);
+        return buf.array();
+    }
+
+    /**
+     * Writes the encoding of {@code tx} into {@code buf} starting at its current position.
+     *
+     * @throws java.nio.BufferOverflowException if {@code buf} is too small
+     * @throws IllegalArgumentException if an output of {@code tx} has no address
+     */
+    public static void encodeTransaction(Transaction tx, ByteBuffer buf) {
+        Addresses addresses = new Addresses();
+        addresses.add(tx);
+        writeTransaction(buf, tx, addresses);
+    }
+
+    /**
+     * Reads one transaction from {@code buf}, advancing its position past it. Hashes and signatures
+     * are read straight into the arrays held by the returned transaction. An encoded transaction
+     * hash is not trusted: the hash is computed again from the decoded transaction.
+     *
+     * @throws IllegalArgumentException if {@code buf} does not start with a valid encoding, or the
+     *         encoded hash is not the hash of the transaction
+     */
+    public static Transaction decodeTransaction(ByteBuffer buf) {
+        try {
+            byte version = checkVersion(buf.get());
+            List<PublicKey> addresses = readAddresses(buf, version);
+            return readBody(buf, addresses);
+        } catch (BufferUnderflowException x) {
+            throw new IllegalArgumentException("truncated transaction", x);
+        }
+    }
+
+    /**
+     * @return the encoding of {@code block}
+     * @throws IllegalArgumentException if an output of the block, such as a coinbase created for
+     *         a null address, has no address
+     */
+    public static byte[] encodeBlock(Block block) {
+        Addresses addresses = new Addresses();
+        addresses.add(block.getCoinbase());
+        for (Transaction tx : block.getTransactions())
+            addresses.add(tx);
+
+        int size = 2 + addresses.size() + bodySize(block.getCoinbase(), addresses);
+        if (block.getPrevBlockHash() != null)
+            size += HASH_SIZE;
+        size += varintSize(block.getTransactions().size());
+        for (Transaction tx : block.getTransactions())
+            size += bodySize(tx, addresses);
+
+        ByteBuffer buf = ByteBuffer.allocate(size);
+        buf.put(VERSION);
+        int flags = 0;
+        if (block.getPrevBlockHash() != null)
+            flags |= BLOCK_HAS_PREV_HASH;
+        if (block.getHash() != null)
+            flags |= BLOCK_FINALIZED;
+        buf.put((byte) flags);
+        if (block.getPrevBlockHash() != null)
+            putHash(buf, block.getPrevBlockHash());
+        addresses.write(buf);
+        writeBody(buf, block.getCoinbase(), addresses);
+        putVarint(buf, block.getTransactions().size());
+        for (Transaction tx : block.getTransactions())
+            writeBody(buf, tx, addresses);
+        return buf.array();
+    }
+
+    /**
+     * Reads one block from {@code buf}, advancing its position past it. A block that was finalized
+     * when it was encoded is finalized again, which only hashes its header. Transaction hashes are
+     * checked as by {@link #decodeTransaction(ByteBuffer)}.
+     *
+     * @throws IllegalArgumentException if {@code buf} does not start with a valid encoding, or an
+     *         encoded transaction hash is not the hash of its transaction
+     */
+    public static Block decodeBlock(ByteBuffer buf) {
+        try {
+            byte version = checkVersion(buf.get());
+            int flags = buf.get();
+            byte[] prevBlockHash = null;
+            if ((flags & BLOCK_HAS_PREV_HASH) != 0)
+                prevBlockHash = readBytes(buf, HASH_SIZE);
+            List<PublicKey> addresses = readAddresses(buf, version);
+            Block block = new Block(prevBlockHash, readBody(buf, addresses));
+            int numTxs = readCount(buf);
+            for (int i = 0; i < numTxs; i++)
+                block.addTransaction(readBody(buf, addresses));
+            if ((flags & BLOCK_FINALIZED) != 0)
+                block.finalize();
+            return block;
+        } catch (BufferUnderflowException x) {
+            throw new IllegalArgumentException("truncated block", x);
+        }
+    }
+
+    /** The address table under construction while encoding */
+    private static class Addresses {
+        /** Mapping from address ids in the {@link AddressTable} to indices in this table */
+        private Map<Integer, Integer> indices = new HashMap<Integer, Integer>();
+        private List<byte[]> encodings = new ArrayList<byte[]>();
+        private List<SignatureScheme> schemes = new ArrayList<SignatureScheme>();
+        private int size;
+
+        public void add(Transaction tx) {
+            for (int i = 0; i < tx.numOutputs(); i++) {
+                int addressId = tx.getAddressId(i);
+                if (addressId < 0)
+                    throw new IllegalArgumentException("output " + i + " has no address");
+                if (!indices.containsKey(addressId)) {
+                    PublicKey address = AddressTable.getAddress(addressId);
+                    byte[] encoding = address.getEncoded();
+                    indices.put(addressId, encodings.size());
+                    encodings.add(encoding);
+                    schemes.add(SignatureScheme.forKey(address));
+                    size += 1 + varintSize(encoding.length) + encoding.length;
+                }
+            }
+        }
+
+        public int indexOf(int addressId) {
+            return indices.get(addressId);
+        }
+
+        /** @return the encoded size of the table */
+        public int size() {
+            return varintSize(encodings.size()) + size;
+        }
+
+        public void write(ByteBuffer buf) {
+            putVarint(buf, encodings.size());
+            for (int i = 0; i < encodings.size(); i++) {
+                buf.put((byte) schemes.get(i).getId());
+                putVarint(buf, encodings.get(i).length);
+                buf.put(encodings.get(i));
+            }
+        }
+    }
+
+    private static void writeTransaction(ByteBuffer buf, Transaction tx, Addresses addresses) {
+        buf.put(VERSION);
+        addresses.write(buf);
+        writeBody(buf, tx, addresses);
+    }
+
+    private static int bodySize(Transaction tx, Addresses addresses) {
+        int size = 1 + varintSize(tx.numInputs()) + varintSize(tx.numOutputs());
+        if (tx.getHash() != null)
+            size += HASH_SIZE;
+        for (int i = 0; i < tx.numInputs(); i++) {
+            size += 1 + varintSize(tx.getOutputIndex(i) & 0xFFFFFFFFL);
+            if (tx.getPrevTxHash(i) != null)
+                size += HASH_SIZE;
+            byte[] signature = tx.getSignature(i);
+            if (signature != null)
+                size += varintSize(signature.length) + signature.length;
+        }
+        for (int i = 0; i < tx.numOutputs(); i++)
+            size += Double.SIZE / 8 + varintSize(addresses.indexOf(tx.getAddressId(i)));
+        return size;
+    }
+
+    private static void writeBody(ByteBuffer buf, Transaction tx, Addresses addresses) {
+        int flags = 0;
+        if (tx.isCoinbase())
+            flags |= TX_COINBASE;
+        if (tx.getHash() != null)
+            flags |= TX_HAS_HASH;
+        buf.put((byte) flags);
+        if (tx.getHash() != null)
+            putHash(buf, tx.getHash());
+
+        putVarint(buf, tx.numInputs());
+        for (int i = 0; i < tx.numInputs(); i++) {
+            byte[] prevTxHash = tx.getPrevTxHash(i);
+            byte[] signature = tx.getSignature(i);
+            int inFlags = 0;
+            if (prevTxHash != null)
+                inFlags |= INPUT_HAS_PREV_HASH;
+            if (signature != null)
+                inFlags |= INPUT_HAS_SIGNATURE;
+            buf.put((byte) inFlags);
+            if (prevTxHash != null)
+                putHash(buf, prevTxHash);
+            putVarint(buf, tx.getOutputIndex(i) & 0xFFFFFFFFL);
+            if (signature != null) {
+                putVarint(buf, signature.length);
+                buf.put(signature);
+            }
+        }
+
+        putVarint(buf, tx.numOutputs());
+        for (int i = 0; i < tx.numOutputs(); i++) {
+            buf.putDouble(tx.getValue(i));
+            putVarint(buf, addresses.indexOf(tx.getAddressId(i)));
+        }
+    }
+
+    private static Transaction readBody(ByteBuffer buf, List<PublicKey> addresses) {
+        int flags = buf.get();
+        Transaction tx = new Transaction((flags & TX_COINBASE) != 0);
+        byte[] hash = null;
+        if ((flags & TX_HAS_HASH) != 0)
+            hash = readBytes(buf, HASH_SIZE);
+
+        int numInputs = readCount(buf);
+        for (int i = 0; i < numInputs; i++) {
+            int inFlags = buf.get();
+            byte[] prevTxHash = null;
+            if ((inFlags & INPUT_HAS_PREV_HASH) != 0)
+                prevTxHash = readBytes(buf, HASH_SIZE);
+            int outputIndex = (int) readVarint(buf);
+            byte[] signature = null;
+            if ((inFlags & INPUT_HAS_SIGNATURE) != 0)
+                signature = readBytes(buf, readCount(buf));
+            // Hand the freshly read arrays over directly instead of letting the transaction copy
+            // them.
+            tx.addInput(prevTxHash, outputIndex, signature);
+        }
+
+        int numOutputs = readCount(buf);
+        for (int i = 0; i < numOutputs; i++) {
+            double value = buf.getDouble();
+            long address = readVarint(buf);
+            if (address >= addresses.size())
+                throw new IllegalArgumentException("address index out of range: " + address);
+            tx.addOutput(value, addresses.get((int) address));
+        }
+
+        if (hash != null) {
+            tx.finalize();
+            if (!Arrays.equals(hash, tx.getHash()))
+                throw new IllegalArgumentException("transaction hash does not match its contents");
+        }
+        return tx;
+    }
+
+    private static List<PublicKey> readAddresses(ByteBuffer buf, byte version) {
+        int numAddresses = readCount(buf);
+        List<PublicKey> addresses = new ArrayList<PublicKey>(numAddresses);
+        try {
+            for (int i = 0; i < numAddresses; i++) {
+                SignatureScheme scheme = SignatureScheme.RSA;
+                if (version != VERSION_RSA_ONLY)
+                    scheme = SignatureScheme.forId(buf.get());
+                byte[] encoding = readBytes(buf, readCount(buf));
+                addresses.add(scheme.decodeAddress(encoding));
+            }
+        } catch (InvalidKeySpecException x) {
+            throw new IllegalArgumentException("invalid address", x);
+        }
+        return addresses;
+    }
+
+    private static byte checkVersion(byte version) {
+        if (version != VERSION && version != VERSION_RSA_ONLY)
+            throw new IllegalArgumentException("unsupported version: " + version);
+        return version;
+    }
+
+    private static void putHash(ByteBuffer buf, byte[] hash) {
+        if (hash.length != HASH_SIZE)
+            throw new IllegalArgumentException("hash must be " + HASH_SIZE + " bytes");
+        buf.put(hash);
+    }
+
+    private static byte[] readBytes(ByteBuffer buf, int length) {
+        byte[] bytes = new byte[length];
+        buf.get(bytes);
+        return bytes;
+    }
+
+    /** @return a varint that is used as a count or length and so must fit in the buffer */
+    private static int readCount(ByteBuffer buf) {
+        long count = readVarint(buf);
+        if (count > buf.remaining())
+            throw new IllegalArgumentException("count exceeds remaining input: " + count);
+        return (int) count;
+    }
+
+    private static int varintSize(long value) {
+        int size = 1;
+        while ((value >>>= 7) != 0)
+            size++;
+        return size;
+    }
+
+    private static void putVarint(ByteBuffer buf, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buf.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buf.put((byte) value);
+    }
+
+    /** Reads an unsigned varint of at most 32 bits */
+    private static long readVarint(ByteBuffer buf) {
+        long value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = buf.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                if (value > 0xFFFFFFFFL)
+                    break;
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("malformed varint");
+    }
+}
@@ -0,0 +1,95 @@
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.util.Arrays;
+
+/**
+ * Checks that {@link WireFormat} decodes what it encodes, does not trust encoded transaction
+ * hashes and refuses outputs without an address. Throws {@link IllegalStateException} on the
+ * first failure.
+ *
+ * <p>
+ * Usage: {@code java WireFormatTest}
+ */
+public class WireFormatTest {
+
+    public static void main(String[] args) throws GeneralSecurityException {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(1024);
+        PublicKey key = generator.generateKeyPair().getPublic();
+
+        Block block = new Block(new byte[32], key);
+        Transaction tx = new Transaction();
+        tx.addInput(block.getCoinbase().getHash(), 0);
+        tx.addSignature(new byte[] { 1, 2, 3 }, 0);
+        tx.addOutput(0.1 + 0.2, key);
+        tx.finalize();
+        block.addTransaction(tx);
+        block.finalize();
+
+        testRoundTrip(block, tx);
+        testForgedHashIsRejected(tx);
+        testMissingAddressIsRejected(key);
+        System.out.println("WireFormatTest passed");
+    }
+
+    private static void testRoundTrip(Block block, Transaction tx) {
+        Transaction decoded = WireFormat.decodeTransaction(
+                ByteBuffer.wrap(WireFormat.encodeTransaction(tx)));
+        check(Arrays.equals(decoded.getRawTx(), tx.getRawTx()), "transaction changed");
+        check(Arrays.equals(decoded.getHash(), tx.getHash()), "transaction hash changed");
+
+        Block decodedBlock = WireFormat.decodeBlock(ByteBuffer.wrap(WireFormat.encodeBlock(block)));
+        check(Arrays.equals(decodedBlock.getHash(), block.getHash()), "block hash changed");
+        check(Arrays.equals(decodedBlock.getRawBlock(), block.getRawBlock()), "block changed");
+    }
+
+    private static void testForgedHashIsRejected(Transaction tx) {
+        byte[] encoding = WireFormat.encodeTransaction(tx);
+        // Flip one bit of the encoded hash, leaving the transaction itself as it was.
+        int hashOffset = indexOf(encoding, tx.getHash());
+        check(hashOffset > 0, "hash not encoded");
+        encoding[hashOffset] ^= 1;
+        try {
+            WireFormat.decodeTransaction(ByteBuffer.wrap(encoding));
+            throw new IllegalStateException("forged hash accepted");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    private static void testMissingAddressIsRejected(PublicKey key) {
+        Transaction tx = new Transaction();
+        tx.addOutput(1, null);
+        try {
+            WireFormat.encodeTransaction(tx);
+            throw new IllegalStateException("output without an address encoded");
+        } catch (IllegalArgumentException expected) {
+            check(expected.getMessage().equals("output 0 has no address"), "wrong failure");
+        }
+
+        // Coinbases are not validated, so one can reach the block store with its address cleared.
+        Block block = new Block(new byte[32], key);
+        block.getCoinbase().getOutput(0).address = null;
+        block.finalize();
+        try {
+            WireFormat.encodeBlock(block);
+            throw new IllegalStateException("coinbase without an address encoded");
+        } catch (IllegalArgumentException expected) {
+            check(expected.getMessage().equals("output 0 has no address"), "wrong failure");
+        }
+    }
+
+    private static int indexOf(byte[] array, byte[] target) {
+        for (int i = 0; i + target.length <= array.length; i++) {
+            if (Arrays.equals(Arrays.copyOfRange(array, i, i + target.length), target))
+                return i;
+        }
+        return -1;
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition)
+            throw new IllegalStateException(message);
+    }
+}